@@ -0,0 +1,62 @@
+package com.emulation.cpu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emulation.cpu.CPU6502;
+import com.emulation.cpu.bench.Workloads.Memory;
+import com.emulation.cpu.bench.Workloads.Workload;
+
+/**
+ * Throughput of the ARITH workload with each CPU6502.Arithmetic: the
+ * handlers' own ADC, SBC and compare code against the ALU tables, binary and
+ * decimal. Counters are reported as in CPUBenchmark.
+ * 
+ * Run with: java -jar jmh/target/benchmarks.jar ArithmeticBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArithmeticBenchmark {
+  
+  @Param({ "BINARY", "TABLE", "DECIMAL" })
+  public CPU6502.Arithmetic  arithmetic;
+  
+  @Param({ "SWITCH", "JIT" })
+  public CPU6502.Dispatch    dispatch;
+  
+  @Param({ "false", "true" })
+  public boolean             lazyFlags;
+  
+  private CPU6502            cpu;
+  
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.cpu = Workloads.create(Workload.ARITH, this.dispatch, Memory.SIMPLE,
+        this.arithmetic);
+    this.cpu.setLazyFlags(this.lazyFlags);
+  }
+  
+  @Benchmark
+  public long run(CPUBenchmark.Counters counters) {
+    long cycles = this.cpu.runInstructions(CPUBenchmark.SLICE);
+    counters.instructions += CPUBenchmark.SLICE;
+    counters.cycles += cycles;
+    return cycles;
+  }
+}
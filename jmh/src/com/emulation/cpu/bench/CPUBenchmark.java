@@ -0,0 +1,98 @@
+package com.emulation.cpu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emulation.cpu.CPU6502;
+import com.emulation.cpu.bench.Workloads.Memory;
+import com.emulation.cpu.bench.Workloads.Workload;
+
+/**
+ * Throughput of CPU6502 on the guest programs in Workloads.
+ * 
+ * Each invocation runs SLICE instructions. Throughput is reported per
+ * microsecond, so the "cycles" counter reads directly as emulated MHz and the
+ * "instructions" counter as millions of instructions per second. Compare the
+ * "cycles" score against CPU6502.CPUFrequency (1.79 MHz) for the real-time
+ * factor.
+ * 
+ * Run with: java -jar jmh/target/benchmarks.jar CPUBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CPUBenchmark {
+  
+  // instructions executed per benchmark invocation
+  static final int           SLICE         = 1000;
+  
+  // instructions between NMIs in the interrupt storm
+  static final int           NMI_INTERVAL  = 25;
+  
+  @Param({ "ALU", "BRANCH", "RMW", "STACK", "INTERRUPT" })
+  public Workload            workload;
+  
+  @Param({ "SWITCH", "TABLE", "BLOCK", "JIT" })
+  public CPU6502.Dispatch    dispatch;
+  
+  @Param({ "false", "true" })
+  public boolean             lazyFlags;
+  
+  @Param({ "SIMPLE", "PAGED", "MAPPED" })
+  public Memory              memory;
+  
+  private CPU6502            cpu;
+  
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long instructions;
+    public long cycles;
+    
+    @Setup(Level.Iteration)
+    public void clear() {
+      this.instructions = 0;
+      this.cycles = 0;
+    }
+  }
+  
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.cpu = Workloads.create(this.workload, this.dispatch,
+        this.memory);
+    this.cpu.setLazyFlags(this.lazyFlags);
+  }
+  
+  @Benchmark
+  public long run(Counters counters) {
+    long cycles;
+    if (this.workload == Workload.INTERRUPT) {
+      cycles = 0;
+      for (int i = 0; i < SLICE; i += NMI_INTERVAL) {
+        cycles += this.cpu.runInstructions(NMI_INTERVAL);
+        this.cpu.triggerNMI();
+      }
+    } else {
+      cycles = this.cpu.runInstructions(SLICE);
+    }
+    counters.instructions += SLICE;
+    counters.cycles += cycles;
+    return cycles;
+  }
+}
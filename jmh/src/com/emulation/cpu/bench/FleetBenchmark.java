@@ -0,0 +1,94 @@
+package com.emulation.cpu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emulation.cpu.CPU6502;
+import com.emulation.cpu.Fleet;
+import com.emulation.cpu.bench.Workloads.Memory;
+import com.emulation.cpu.bench.Workloads.Workload;
+
+/**
+ * Aggregate throughput of a Fleet of independent machines.
+ * 
+ * Each invocation runs every machine for BUDGET cycles. The "cycles" counter
+ * is reported per microsecond, so it reads as the emulated MHz of the whole
+ * fleet. Compare the scores for different thread counts to see how the fleet
+ * scales with cores.
+ * 
+ * Run with: java -jar jmh/target/benchmarks.jar FleetBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FleetBenchmark {
+  
+  // cycles per machine per invocation
+  static final long       BUDGET   = 100000;
+  
+  // cycles per scheduling slice
+  static final long       QUANTUM  = 10000;
+  
+  @Param({ "1", "2", "4", "8" })
+  public int              threads;
+  
+  @Param({ "256" })
+  public int              machines;
+  
+  @Param({ "ALU", "RMW" })
+  public Workload         workload;
+  
+  @Param({ "JIT" })
+  public CPU6502.Dispatch dispatch;
+  
+  private Fleet           fleet;
+  
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long cycles;
+    
+    @Setup(Level.Iteration)
+    public void clear() {
+      this.cycles = 0;
+    }
+  }
+  
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.fleet = new Fleet(this.threads);
+    for (int i = 0; i < this.machines; i++) {
+      this.fleet.add(Workloads.create(this.workload, this.dispatch,
+          Memory.PAGED));
+    }
+  }
+  
+  @Benchmark
+  public long run(Counters counters) throws InterruptedException {
+    Fleet.Report report = this.fleet.run(BUDGET, QUANTUM);
+    counters.cycles += report.getCycles();
+    return report.getCycles();
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.fleet.close();
+  }
+}
@@ -0,0 +1,224 @@
+package com.emulation.cpu.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.emulation.cpu.Assembler;
+import com.emulation.cpu.CPU6502;
+import com.emulation.cpu.CPUMemMapper;
+import com.emulation.cpu.PagedMemMapper;
+import com.emulation.cpu.RomImage;
+import com.emulation.cpu.SimpleMemMapper;
+
+/**
+ * Guest programs used by the benchmarks. Every program starts at ORIGIN and
+ * loops forever, so it can be run for any number of cycles.
+ */
+public final class Workloads {
+  
+  public static final int ORIGIN      = 0x8000;
+  public static final int NMI_HANDLER = 0x9000;
+  
+  public enum Workload {
+    ALU, BRANCH, RMW, STACK, INTERRUPT, ARITH
+  }
+  
+  public enum Memory {
+    SIMPLE, PAGED, MAPPED
+  }
+  
+  // tight loop of immediate ALU operations
+  static final String ALU = String.join("\n", //
+      "start:  LDX #$00", //
+      "        CLC", //
+      "loop:   ADC #$07", //
+      "        EOR #$5A", //
+      "        AND #$7F", //
+      "        ORA #$01", //
+      "        DEX", //
+      "        BNE loop", //
+      "        JMP start");
+  
+  // short basic blocks with taken and not taken branches
+  static final String BRANCH = String.join("\n", //
+      "start:  LDX #$00", //
+      "loop:   INX", //
+      "        TXA", //
+      "        AND #$01", //
+      "        BEQ even", //
+      "        LDY #$01", //
+      "even:   CPX #$40", //
+      "        BCC loop", //
+      "        JMP start");
+  
+  // read-modify-write sweep over three pages
+  static final String RMW = String.join("\n", //
+      "start:  LDX #$00", //
+      "loop:   INC $0200,X", //
+      "        ASL $0300,X", //
+      "        ROR $0300,X", //
+      "        DEC $0400,X", //
+      "        INX", //
+      "        BNE loop", //
+      "        JMP start");
+  
+  // nested subroutine calls with pushes and pulls
+  static final String STACK = String.join("\n", //
+      "start:  JSR outer", //
+      "        PHA", //
+      "        PLA", //
+      "        JMP start", //
+      "        .org $8010", //
+      "outer:  JSR inner", //
+      "        PHP", //
+      "        PLP", //
+      "        RTS", //
+      "        .org $8020", //
+      "inner:  PHA", //
+      "        TXA", //
+      "        PHA", //
+      "        PLA", //
+      "        TAX", //
+      "        PLA", //
+      "        RTS");
+  
+  // busy main loop, the benchmark raises NMIs into it
+  static final String INTERRUPT = String.join("\n", //
+      "start:  INX", //
+      "        JMP start");
+  
+  // ADC, SBC and compares on immediate and zero page operands, with D set so
+  // that the DECIMAL arithmetic runs in BCD
+  static final String ARITH = String.join("\n", //
+      "start:  SED", //
+      "        LDX #$00", //
+      "        CLC", //
+      "loop:   TXA", //
+      "        ADC #$19", //
+      "        STA $10", //
+      "        SBC #$07", //
+      "        CMP $10", //
+      "        ADC $10", //
+      "        SBC #$33", //
+      "        CMP #$50", //
+      "        CPX #$80", //
+      "        INX", //
+      "        BNE loop", //
+      "        JMP start");
+  
+  // NMI handler for INTERRUPT
+  static final String HANDLER = String.join("\n", //
+      "        PHA", //
+      "        INC $10", //
+      "        PLA", //
+      "        RTI");
+  
+  private Workloads() {
+  }
+  
+  /**
+   * Create a CPU over a fresh mapper with the workload loaded and the CPU
+   * reset to ORIGIN. SIMPLE is a flat 64K SimpleMemMapper. PAGED is a
+   * PagedMemMapper laid out like a NES: 2K of RAM mirrored up to 0x1fff, an
+   * I/O device at 0x2000-0x3fff and the program in 32K of ROM at 0x8000.
+   * MAPPED is PAGED with the ROM in a temporary file mapped as a RomImage.
+   */
+  public static CPU6502 create(Workload workload, CPU6502.Dispatch dispatch,
+      Memory memory) {
+    return create(workload, dispatch, memory, CPU6502.Arithmetic.BINARY);
+  }
+  
+  // create builds the CPU with arithmetic for ADC, SBC and compares
+  public static CPU6502 create(Workload workload, CPU6502.Dispatch dispatch,
+      Memory memory, CPU6502.Arithmetic arithmetic) {
+    Assembler asm = new Assembler(ORIGIN);
+    switch (workload) {
+      case ALU:
+        asm.source(ALU);
+        break;
+      case BRANCH:
+        asm.source(BRANCH);
+        break;
+      case RMW:
+        asm.source(RMW);
+        break;
+      case STACK:
+        asm.source(STACK);
+        break;
+      case INTERRUPT:
+        asm.source(INTERRUPT);
+        asm.org(NMI_HANDLER).source(HANDLER);
+        break;
+      case ARITH:
+        asm.source(ARITH);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown workload " + workload);
+    }
+    // NMI and reset vectors
+    asm.org(0xfffa).word(NMI_HANDLER).word(ORIGIN);
+    byte[] image = asm.assemble();
+    
+    CPUMemMapper m;
+    switch (memory) {
+      case SIMPLE:
+        SimpleMemMapper simple = new SimpleMemMapper();
+        for (int i = 0; i < image.length; i++) {
+          simple.write(i, image[i]);
+        }
+        m = simple;
+        break;
+      case PAGED:
+      case MAPPED:
+        PagedMemMapper paged = new PagedMemMapper();
+        byte[] ram = new byte[0x800];
+        for (int page = 0x00; page < 0x20; page += 0x08) {
+          paged.mapRAM(page, 0x08, ram, 0);
+        }
+        paged.mapIO(0x20, 0x20, new Registers());
+        if (memory == Memory.MAPPED) {
+          paged.mapROM(0x80, 0x80, mapFile(image, 0x8000), 0);
+        } else {
+          paged.mapROM(0x80, 0x80, image, 0x8000);
+        }
+        m = paged;
+        break;
+      default:
+        throw new IllegalArgumentException("unknown memory " + memory);
+    }
+    
+    CPU6502 cpu = new CPU6502(m, arithmetic);
+    cpu.setDispatch(dispatch);
+    return cpu;
+  }
+  
+  // mapFile writes image from offset on to a temporary file and maps it
+  static RomImage mapFile(byte[] image, int offset) {
+    try {
+      Path file = Files.createTempFile("workload", ".rom");
+      file.toFile().deleteOnExit();
+      Files.write(file, Arrays.copyOfRange(image, offset, image.length));
+      return RomImage.map(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+  
+  // eight registers mirrored over the I/O pages of the PAGED layout
+  static final class Registers implements CPUMemMapper {
+    final byte[] registers = new byte[8];
+    
+    @Override
+    public byte read(int address) {
+      return this.registers[address & 7];
+    }
+    
+    @Override
+    public void write(int address, int value) {
+      this.registers[address & 7] = (byte) value;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.emulation.cpu;
+
+/**
+ * Lookup tables for ADC and SBC, see CPU6502.Arithmetic.
+ *
+ * Tables are indexed by decimal &lt;&lt; 17 | carry &lt;&lt; 16 | A &lt;&lt; 8 |
+ * operand, see index().
+ * An entry holds the result in bits 0-7 and the N, V, Z and C flags in bits
+ * 8-15, at their positions in P. A compare is SBC with the carry set, keeping
+ * only N, Z and C.
+ *
+ * Decimal mode follows the NMOS 6502: the result is the BCD sum or difference
+ * of any two bytes, valid BCD or not, Z is taken from the binary result, and
+ * for ADC N and V come from the sum before the high digit is adjusted. SBC
+ * sets every flag as in binary mode.
+ */
+final class ALU {
+
+  static final int    C   = 0x01;
+  static final int    Z   = 0x02;
+  static final int    V   = 0x40;
+  static final int    N   = 0x80;
+
+  // 256K entries each, 512K bytes
+  static final char[] ADC = build(true);
+  static final char[] SBC = build(false);
+
+  private ALU() {
+  }
+
+  // index returns the table index of A op operand with carry in
+  static int index(int decimal, int carry, int a, int b) {
+    return decimal << 17 | carry << 16 | (a & 0xff) << 8 | (b & 0xff);
+  }
+
+  private static char[] build(boolean add) {
+    char[] table = new char[1 << 18];
+    for (int i = 0; i < table.length; i++) {
+      boolean decimal = (i >> 17) != 0;
+      int carry = (i >> 16) & 1;
+      int a = (i >> 8) & 0xff;
+      int b = i & 0xff;
+      table[i] = (char) (add ? adc(a, b, carry, decimal)
+          : sbc(a, b, carry, decimal));
+    }
+    return table;
+  }
+
+  // adc returns the table entry for A + operand + carry
+  static int adc(int a, int b, int carry, boolean decimal) {
+    int sum = a + b + carry;
+    int binary = sum & 0xff;
+    if (!decimal) {
+      return entry(binary, sum > 0xff, overflow(a, b, binary), binary);
+    }
+    int low = (a & 0x0f) + (b & 0x0f) + carry;
+    if (low >= 0x0a) {
+      low = ((low + 0x06) & 0x0f) + 0x10;
+    }
+    int high = (a & 0xf0) + (b & 0xf0) + low;
+    // N and V see the sum before the high digit is adjusted
+    int signed = (byte) (a & 0xf0) + (byte) (b & 0xf0) + low;
+    boolean v = signed < -128 || signed > 127;
+    if (high >= 0xa0) {
+      high += 0x60;
+    }
+    int flags = entry(high & 0xff, high > 0xff, v, binary);
+    return (flags & ~(N << 8)) | ((signed & 0x80) << 8);
+  }
+
+  // sbc returns the table entry for A - operand - (1 - carry)
+  static int sbc(int a, int b, int carry, boolean decimal) {
+    int binary = adc(a, b ^ 0xff, carry, false);
+    if (!decimal) {
+      return binary;
+    }
+    int low = (a & 0x0f) - (b & 0x0f) + carry - 1;
+    if (low < 0) {
+      low = ((low - 0x06) & 0x0f) - 0x10;
+    }
+    int result = (a & 0xf0) - (b & 0xf0) + low;
+    if (result < 0) {
+      result -= 0x60;
+    }
+    return (binary & 0xff00) | (result & 0xff);
+  }
+
+  private static boolean overflow(int a, int b, int result) {
+    return ((a ^ result) & (b ^ result) & 0x80) != 0;
+  }
+
+  // entry packs result with flags, N and Z from zn
+  private static int entry(int result, boolean c, boolean v, int zn) {
+    int flags = (c ? C : 0) | (v ? V : 0) | (zn == 0 ? Z : 0) | (zn & N);
+    return flags << 8 | result;
+  }
+}
@@ -0,0 +1,550 @@
+package com.emulation.cpu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.emulation.cpu.CPU6502.Modes;
+
+/**
+ * Assembles 6502 programs in process, from calls or from source text.
+ *
+ * Opcodes come from the tables of CPU6502, so every instruction the CPU
+ * implements can be assembled, in every addressing mode it has. Labels can
+ * be used before they are defined; references are resolved by assemble().
+ *
+ * Source lines look like
+ *
+ * <pre>
+ * ptr = $10
+ * loop:  LDA (ptr),Y     ; comment
+ *        .org $9000
+ *        .byte $01, %10, 3
+ *        .word handler
+ * </pre>
+ *
+ * Operands are #imm, addr, addr,X, addr,Y, (addr,X), (addr),Y, (addr) and
+ * A. Numbers are $hex, %binary or decimal; a label may be followed by +n or
+ * -n, and #&lt;expr or #&gt;expr select the low or high byte. An address below
+ * 0x100 uses zero page when the instruction has the mode, unless it is
+ * written with four hex digits ($0010); a label defined later is assumed to
+ * be absolute. Disassembler output assembles back to the same bytes, apart
+ * from the duplicate encodings of the unofficial NOPs.
+ */
+public class Assembler {
+
+  // opcodes by mnemonic, indexed by Modes ordinal, -1 when missing
+  private static final Map<String, int[]> OPCODES = new HashMap<>();
+
+  static {
+    for (int op = 0xff; op >= 0; op--) {
+      if (CPU6502.instructionSizes[op] == 0) {
+        continue;
+      }
+      int[] modes = OPCODES.computeIfAbsent(CPU6502.instructionNames[op],
+          name -> newModes());
+      // lowest opcode wins, except for the official NOP
+      if (modes[Modes.imp.ordinal()] == 0xea
+          && CPU6502.instructionModes[op] == Modes.imp) {
+        continue;
+      }
+      modes[CPU6502.instructionModes[op].ordinal()] = op;
+    }
+  }
+
+  // kinds of fixup
+  private static final int    REL  = 0;
+  private static final int    WORD = 1;
+  private static final int    BYTE = 2;
+  private static final int    LOW  = 3;
+  private static final int    HIGH = 4;
+
+  // a reference to a label, resolved by assemble
+  private static final class Fixup {
+    final int    address;
+    final int    kind;
+    final String label;
+    final int    offset;
+    final String where;
+
+    Fixup(int address, int kind, String label, int offset, String where) {
+      this.address = address;
+      this.kind = kind;
+      this.label = label;
+      this.offset = offset;
+      this.where = where;
+    }
+  }
+
+  // an operand: a number, or a label plus an offset; selector is '<', '>'
+  // or 0, wide is set for numbers written with four hex digits
+  private static final class Expr {
+    String  label;
+    int     value;
+    char    selector;
+    boolean wide;
+  }
+
+  private final byte[]               image  = new byte[0x10000];
+  private final BitSet               used   = new BitSet(0x10000);
+  private final Map<String, Integer> labels = new HashMap<>();
+  private final List<Fixup>          fixups = new ArrayList<>();
+  private int                        PC;
+  // source line being assembled, for error messages
+  private String                     where  = "";
+
+  // Assembler starts assembling at origin
+  public Assembler(int origin) {
+    this.org(origin);
+  }
+
+  private static int[] newModes() {
+    int[] modes = new int[Modes.values().length];
+    Arrays.fill(modes, -1);
+    return modes;
+  }
+
+  // getPC returns the address of the next byte
+  public int getPC() {
+    return this.PC;
+  }
+
+  // org continues assembling at address
+  public Assembler org(int address) {
+    if (address < 0 || address > 0xffff) {
+      throw this.error("address out of range: " + address);
+    }
+    this.PC = address;
+    return this;
+  }
+
+  // label defines name at the current address
+  public Assembler label(String name) {
+    return this.define(name, this.PC);
+  }
+
+  // define defines name as value, such as a zero page variable
+  public Assembler define(String name, int value) {
+    if (this.labels.putIfAbsent(name, value) != null) {
+      throw this.error("label defined twice: " + name);
+    }
+    return this;
+  }
+
+  // address returns the address of a defined label
+  public int address(String label) {
+    Integer address = this.labels.get(label);
+    if (address == null) {
+      throw new IllegalArgumentException("undefined label " + label);
+    }
+    return address;
+  }
+
+  // op assembles an instruction without operand, implied or accumulator
+  public Assembler op(String mnemonic) {
+    int[] modes = this.modes(mnemonic);
+    if (modes[Modes.imp.ordinal()] >= 0) {
+      return this.op(mnemonic, Modes.imp, 0);
+    }
+    return this.op(mnemonic, Modes.acc, 0);
+  }
+
+  // op assembles an instruction with a numeric operand; for rel the operand
+  // is the branch target
+  public Assembler op(String mnemonic, Modes mode, int operand) {
+    int opcode = this.opcode(mnemonic, mode);
+    this.emit(opcode);
+    switch (operandSize(mode)) {
+      case 0:
+        break;
+      case 1:
+        if (mode == Modes.rel) {
+          this.emit(this.branch(this.PC + 1, operand));
+        } else {
+          this.checkByte(operand);
+          this.emit(operand);
+        }
+        break;
+      default:
+        this.emit(operand);
+        this.emit(operand >> 8);
+        break;
+    }
+    return this;
+  }
+
+  // op assembles an instruction whose operand is label plus offset: the
+  // branch target for rel, the address for the other modes
+  public Assembler op(String mnemonic, Modes mode, String label) {
+    Expr expr = new Expr();
+    expr.label = label;
+    return this.op(mnemonic, mode, expr);
+  }
+
+  private Assembler op(String mnemonic, Modes mode, Expr expr) {
+    if (expr.label == null || this.labels.containsKey(expr.label)) {
+      return this.op(mnemonic, mode, this.value(expr));
+    }
+    int opcode = this.opcode(mnemonic, mode);
+    this.emit(opcode);
+    int kind;
+    switch (operandSize(mode)) {
+      case 0:
+        throw this.error(mnemonic + " " + mode + " takes no operand");
+      case 1:
+        kind = mode == Modes.rel ? REL
+            : expr.selector == '<' ? LOW
+            : expr.selector == '>' ? HIGH : BYTE;
+        break;
+      default:
+        kind = WORD;
+        break;
+    }
+    this.fixups.add(new Fixup(this.PC, kind, expr.label, expr.value,
+        this.where));
+    this.emit(0);
+    if (kind == WORD) {
+      this.emit(0);
+    }
+    return this;
+  }
+
+  // bytes assembles data bytes
+  public Assembler bytes(int... values) {
+    for (int value : values) {
+      this.checkByte(value);
+      this.emit(value);
+    }
+    return this;
+  }
+
+  // word assembles a little endian 16-bit value
+  public Assembler word(int value) {
+    this.emit(value);
+    this.emit(value >> 8);
+    return this;
+  }
+
+  // word assembles the address of label, such as a vector
+  public Assembler word(String label) {
+    this.fixups.add(new Fixup(this.PC, WORD, label, 0, this.where));
+    return this.word(0);
+  }
+
+  /**
+   * Assemble source text, one statement per line, see the class comment.
+   * Errors name the line.
+   */
+  public Assembler source(String text) {
+    String[] lines = text.split("\r?\n", -1);
+    for (int i = 0; i < lines.length; i++) {
+      this.where = "line " + (i + 1) + ": " + lines[i].trim() + ": ";
+      try {
+        this.statement(lines[i]);
+      } finally {
+        this.where = "";
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Resolve every label reference and return the 64K image, with zero
+   * everywhere nothing was assembled.
+   */
+  public byte[] assemble() {
+    for (Fixup fixup : this.fixups) {
+      Integer target = this.labels.get(fixup.label);
+      if (target == null) {
+        throw new IllegalArgumentException(fixup.where + "undefined label "
+            + fixup.label);
+      }
+      int value = target + fixup.offset;
+      String where = this.where;
+      this.where = fixup.where;
+      try {
+        switch (fixup.kind) {
+          case REL:
+            this.put(fixup.address, this.branch(fixup.address + 1, value));
+            break;
+          case WORD:
+            this.put(fixup.address, value);
+            this.put(fixup.address + 1, value >> 8);
+            break;
+          case BYTE:
+            this.checkByte(value);
+            this.put(fixup.address, value);
+            break;
+          case LOW:
+            this.put(fixup.address, value);
+            break;
+          default:
+            this.put(fixup.address, value >> 8);
+            break;
+        }
+      } finally {
+        this.where = where;
+      }
+    }
+    this.fixups.clear();
+    return this.image.clone();
+  }
+
+  // load assembles and writes every assembled byte through m
+  public void load(CPUMemMapper m) {
+    byte[] image = this.assemble();
+    for (int i = this.used.nextSetBit(0); i >= 0;
+        i = this.used.nextSetBit(i + 1)) {
+      m.write(i, image[i] & 0xff);
+    }
+  }
+
+  // load assembles and copies every assembled byte into image
+  public void load(byte[] image) {
+    byte[] assembled = this.assemble();
+    for (int i = this.used.nextSetBit(0); i >= 0;
+        i = this.used.nextSetBit(i + 1)) {
+      image[i] = assembled[i];
+    }
+  }
+
+  private void statement(String line) {
+    int comment = line.indexOf(';');
+    String s = (comment >= 0 ? line.substring(0, comment) : line).trim();
+    int colon = s.indexOf(':');
+    if (colon > 0 && isName(s.substring(0, colon).trim())) {
+      this.label(s.substring(0, colon).trim());
+      s = s.substring(colon + 1).trim();
+    }
+    if (s.isEmpty()) {
+      return;
+    }
+    int equals = s.indexOf('=');
+    if (equals > 0 && isName(s.substring(0, equals).trim())) {
+      this.define(s.substring(0, equals).trim(),
+          this.value(this.expr(s.substring(equals + 1).replace(" ", ""))));
+      return;
+    }
+    int space = s.indexOf(' ');
+    String name = space < 0 ? s : s.substring(0, space);
+    String operand = space < 0 ? "" : s.substring(space + 1).replace(" ", "");
+    switch (name.toLowerCase(Locale.ROOT)) {
+      case ".org":
+        this.org(this.value(this.expr(operand)));
+        return;
+      case ".byte":
+        for (String item : operand.split(",")) {
+          Expr expr = this.expr(item);
+          if (expr.label != null && !this.labels.containsKey(expr.label)) {
+            int kind = expr.selector == '<' ? LOW
+                : expr.selector == '>' ? HIGH : BYTE;
+            this.fixups.add(new Fixup(this.PC, kind, expr.label, expr.value,
+                this.where));
+            this.emit(0);
+          } else {
+            this.bytes(this.value(expr));
+          }
+        }
+        return;
+      case ".word":
+        for (String item : operand.split(",")) {
+          Expr expr = this.expr(item);
+          if (expr.label != null && !this.labels.containsKey(expr.label)) {
+            this.fixups.add(new Fixup(this.PC, WORD, expr.label, expr.value,
+                this.where));
+            this.word(0);
+          } else {
+            this.word(this.value(expr));
+          }
+        }
+        return;
+      default:
+        this.instruction(name.toUpperCase(Locale.ROOT), operand);
+        return;
+    }
+  }
+
+  private void instruction(String mnemonic, String operand) {
+    int[] modes = this.modes(mnemonic);
+    String upper = operand.toUpperCase(Locale.ROOT);
+    if (operand.isEmpty()) {
+      this.op(mnemonic);
+    } else if (upper.equals("A") && modes[Modes.acc.ordinal()] >= 0) {
+      this.op(mnemonic, Modes.acc, 0);
+    } else if (operand.startsWith("#")) {
+      this.op(mnemonic, Modes.imm, this.expr(operand.substring(1)));
+    } else if (operand.startsWith("(") && upper.endsWith(",X)")) {
+      this.op(mnemonic, Modes.izx,
+          this.expr(operand.substring(1, operand.length() - 3)));
+    } else if (operand.startsWith("(") && upper.endsWith("),Y")) {
+      this.op(mnemonic, Modes.izy,
+          this.expr(operand.substring(1, operand.length() - 3)));
+    } else if (operand.startsWith("(") && operand.endsWith(")")) {
+      this.op(mnemonic, Modes.ind,
+          this.expr(operand.substring(1, operand.length() - 1)));
+    } else if (upper.endsWith(",X")) {
+      Expr expr = this.expr(operand.substring(0, operand.length() - 2));
+      this.op(mnemonic, this.pick(modes, expr, Modes.zpx, Modes.abx), expr);
+    } else if (upper.endsWith(",Y")) {
+      Expr expr = this.expr(operand.substring(0, operand.length() - 2));
+      this.op(mnemonic, this.pick(modes, expr, Modes.zpy, Modes.aby), expr);
+    } else if (modes[Modes.rel.ordinal()] >= 0) {
+      this.op(mnemonic, Modes.rel, this.expr(operand));
+    } else {
+      Expr expr = this.expr(operand);
+      this.op(mnemonic, this.pick(modes, expr, Modes.zpg, Modes.abs), expr);
+    }
+  }
+
+  // pick returns the zero page mode when the operand is known to fit and the
+  // instruction has it, otherwise the absolute one if it has that
+  private Modes pick(int[] modes, Expr expr, Modes zp, Modes abs) {
+    boolean known = expr.label == null || this.labels.containsKey(expr.label);
+    if (modes[zp.ordinal()] >= 0
+        && ((known && !expr.wide && (this.value(expr) & ~0xff) == 0)
+            || modes[abs.ordinal()] < 0)) {
+      return zp;
+    }
+    return abs;
+  }
+
+  // expr parses [<|>](number|label)[(+|-)number]
+  private Expr expr(String s) {
+    Expr expr = new Expr();
+    if (s.startsWith("<") || s.startsWith(">")) {
+      expr.selector = s.charAt(0);
+      s = s.substring(1);
+    }
+    if (s.isEmpty()) {
+      throw this.error("missing operand");
+    }
+    int sign = Math.max(s.indexOf('+', 1), s.indexOf('-', 1));
+    String base = sign < 0 ? s : s.substring(0, sign);
+    if (isName(base)) {
+      expr.label = base;
+    } else {
+      expr.value = this.number(base);
+      expr.wide = base.length() == 5 && base.charAt(0) == '$';
+    }
+    if (sign >= 0) {
+      int offset = this.number(s.substring(sign + 1));
+      expr.value += s.charAt(sign) == '-' ? -offset : offset;
+    }
+    return expr;
+  }
+
+  // value returns the value of an expression whose label is defined
+  private int value(Expr expr) {
+    int value = expr.value;
+    if (expr.label != null) {
+      Integer address = this.labels.get(expr.label);
+      if (address == null) {
+        throw this.error("undefined label " + expr.label);
+      }
+      value += address;
+    }
+    switch (expr.selector) {
+      case '<':
+        return value & 0xff;
+      case '>':
+        return (value >> 8) & 0xff;
+      default:
+        return value;
+    }
+  }
+
+  private int number(String s) {
+    try {
+      if (s.startsWith("$")) {
+        return Integer.parseInt(s.substring(1), 16);
+      }
+      if (s.startsWith("%")) {
+        return Integer.parseInt(s.substring(1), 2);
+      }
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      throw this.error("bad number " + s);
+    }
+  }
+
+  private static boolean isName(String s) {
+    if (s.isEmpty() || !(Character.isLetter(s.charAt(0))
+        || s.charAt(0) == '_')) {
+      return false;
+    }
+    for (int i = 1; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '_') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int[] modes(String mnemonic) {
+    int[] modes = OPCODES.get(mnemonic);
+    if (modes == null) {
+      throw this.error("unknown instruction " + mnemonic);
+    }
+    return modes;
+  }
+
+  private int opcode(String mnemonic, Modes mode) {
+    int opcode = this.modes(mnemonic)[mode.ordinal()];
+    if (opcode < 0) {
+      throw this.error(mnemonic + " has no " + mode + " mode");
+    }
+    return opcode;
+  }
+
+  private static int operandSize(Modes mode) {
+    switch (mode) {
+      case imp:
+      case acc:
+        return 0;
+      case abs:
+      case abx:
+      case aby:
+      case ind:
+        return 2;
+      default:
+        return 1;
+    }
+  }
+
+  // branch returns the offset from next to target, wrapping at 64K like
+  // the CPU
+  private int branch(int next, int target) {
+    int offset = (short) (target - next);
+    if (offset < -128 || offset > 127) {
+      throw this.error(String.format("branch to $%04X out of range", target));
+    }
+    return offset;
+  }
+
+  private void checkByte(int value) {
+    if (value < -128 || value > 0xff) {
+      throw this.error("value does not fit in a byte: " + value);
+    }
+  }
+
+  private void emit(int value) {
+    if (this.PC > 0xffff) {
+      throw this.error("program runs past $FFFF");
+    }
+    this.put(this.PC++, value);
+  }
+
+  private void put(int address, int value) {
+    this.image[address] = (byte) value;
+    this.used.set(address);
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(this.where + message);
+  }
+}
@@ -0,0 +1,223 @@
+package com.emulation.cpu;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one fixed-width little endian record per instruction into a ring
+ * buffer, which a background thread drains into a channel, usually a
+ * FileChannel. Read the file back with TraceReader. This is the only binary
+ * trace format.
+ *
+ * The file starts with a header of HEADER_SIZE bytes: the magic "T652",
+ * RECORD_SIZE, and the cycle count when tracing started as 8 bytes. Records
+ * follow:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     2  PC
+ *      2     1  opcode
+ *      3     2  the two bytes after the opcode
+ *      5     1  A
+ *      6     1  X
+ *      7     1  Y
+ *      8     1  P (NVUBDIZC)
+ *      9     1  SP
+ *     10     1  interrupt (0 none, 1 NMI, 2 IRQ)
+ *     11     1  0
+ *     12     4  cycles since the previous record, unsigned
+ * </pre>
+ *
+ * The opcode and operand bytes are read with CPU6502.peek, so tracing does
+ * not touch I/O registers.
+ *
+ * The CPU thread is the only producer and the writer thread the only
+ * consumer, so the ring needs no locks: each side publishes its position
+ * with an ordered store and reads the other's. The CPU thread only waits
+ * when the ring is full, which getWaits counts.
+ */
+public class BinaryTraceSink implements TraceSink, Flushable, Closeable {
+
+  public static final int           MAGIC       = 0x32353654;
+  public static final int           RECORD_SIZE = 16;
+  public static final int           HEADER_SIZE = 16;
+
+  // the writer thread polls this often while the ring is empty
+  private static final long         IDLE        = 100_000;
+
+  private final CPU6502             cpu;
+  private final WritableByteChannel out;
+  private final ByteBuffer          ring;
+  private final int                 mask;
+  private final Thread              writer;
+
+  // records written by the CPU thread and by the writer thread
+  private final AtomicLong          head        = new AtomicLong();
+  private final AtomicLong          tail        = new AtomicLong();
+
+  // CPU thread only: next record, last tail read, cycles of the previous
+  // record
+  private long                      next;
+  private long                      tailSeen;
+  private long                      cycles;
+  private long                      waits;
+
+  private volatile boolean          closed;
+  private volatile IOException      failure;
+
+  // BinaryTraceSink buffers 64K records of cpu
+  public BinaryTraceSink(CPU6502 cpu, WritableByteChannel out)
+      throws IOException {
+    this(cpu, out, 1 << 16);
+  }
+
+  /**
+   * Trace cpu into out through a ring of records records, a power of two.
+   * Writes the header and starts the writer thread; set the sink on cpu
+   * afterwards.
+   */
+  public BinaryTraceSink(CPU6502 cpu, WritableByteChannel out, int records)
+      throws IOException {
+    if (records < 1 || (records & (records - 1)) != 0) {
+      throw new IllegalArgumentException("records " + records);
+    }
+    this.cpu = cpu;
+    this.out = out;
+    this.ring = ByteBuffer.allocateDirect(records * RECORD_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    this.mask = records - 1;
+    this.cycles = cpu.cycles;
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(RECORD_SIZE).putLong(this.cycles).flip();
+    while (header.hasRemaining()) {
+      out.write(header);
+    }
+
+    this.writer = new Thread(this::drain, "BinaryTraceSink writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  @Override
+  public void trace(int PC, byte SP, byte A, byte X, byte Y, byte P,
+      int interrupt, long cycles) {
+    long next = this.next;
+    if (next - this.tailSeen > this.mask) {
+      this.waitForSpace(next);
+    }
+    CPU6502 cpu = this.cpu;
+    ByteBuffer ring = this.ring;
+    int at = (int) (next & this.mask) * RECORD_SIZE;
+    ring.putShort(at, (short) PC);
+    ring.put(at + 2, cpu.peek(PC));
+    ring.put(at + 3, cpu.peek(PC + 1));
+    ring.put(at + 4, cpu.peek(PC + 2));
+    ring.put(at + 5, A);
+    ring.put(at + 6, X);
+    ring.put(at + 7, Y);
+    ring.put(at + 8, P);
+    ring.put(at + 9, SP);
+    ring.put(at + 10, (byte) interrupt);
+    ring.put(at + 11, (byte) 0);
+    ring.putInt(at + 12, (int) (cycles - this.cycles));
+    this.cycles = cycles;
+    this.next = next + 1;
+    this.head.lazySet(next + 1);
+  }
+
+  // getWaits returns the number of times the CPU thread found the ring full
+  public long getWaits() {
+    return this.waits;
+  }
+
+  private void waitForSpace(long next) {
+    this.waits++;
+    for (int spins = 0;; spins++) {
+      this.tailSeen = this.tail.get();
+      if (next - this.tailSeen <= this.mask) {
+        return;
+      }
+      this.check();
+      if (spins < 100) {
+        Thread.onSpinWait();
+      } else {
+        LockSupport.parkNanos(IDLE / 10);
+      }
+    }
+  }
+
+  private void check() {
+    IOException failure = this.failure;
+    if (failure != null) {
+      throw new IllegalStateException("trace write failed", failure);
+    }
+  }
+
+  // drain runs on the writer thread until the sink is closed and empty
+  private void drain() {
+    ByteBuffer view = this.ring.duplicate();
+    int records = this.mask + 1;
+    long tail = 0;
+    try {
+      while (true) {
+        boolean closed = this.closed;
+        long head = this.head.get();
+        if (head == tail) {
+          if (closed) {
+            return;
+          }
+          LockSupport.parkNanos(IDLE);
+          continue;
+        }
+        int from = (int) (tail & this.mask);
+        int n = (int) Math.min(head - tail, records - from);
+        view.limit((from + n) * RECORD_SIZE).position(from * RECORD_SIZE);
+        while (view.hasRemaining()) {
+          this.out.write(view);
+        }
+        tail += n;
+        this.tail.lazySet(tail);
+      }
+    } catch (IOException e) {
+      this.failure = e;
+    }
+  }
+
+  // flush waits until every record traced so far is written to the channel
+  @Override
+  public void flush() throws IOException {
+    long head = this.head.get();
+    while (this.tail.get() < head && this.writer.isAlive()) {
+      LockSupport.unpark(this.writer);
+      LockSupport.parkNanos(IDLE / 10);
+    }
+    if (this.failure != null) {
+      throw this.failure;
+    }
+  }
+
+  // close writes the remaining records, stops the writer thread and closes
+  // the channel
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    LockSupport.unpark(this.writer);
+    try {
+      this.writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.out.close();
+    if (this.failure != null) {
+      throw this.failure;
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package com.emulation.cpu;
+
+/**
+ * Cache of decoded basic blocks, keyed by the PC of their first instruction.
+ *
+ * A block is a straight-line run of instructions that ends after the first
+ * branch, jump, call, return, BRK or KIL. Its opcodes are looked up in
+ * DecodeTable and its operand bytes are read once, when the block is built.
+ * Relative branch targets and immediate operand addresses are resolved at
+ * that point as well. Decoding reads ahead of execution, so it goes through
+ * CPUMemMapper.peek() and never triggers device side effects.
+ *
+ * Every CPU write is reported to written(). A write to any byte covered by a
+ * cached block drops that block, so self-modifying code is decoded again the
+ * next time it runs. Writes that bypass the CPU, for example a host loading
+ * a new program straight into the mapper, must be followed by clear() or
+ * invalidate(). Remapping pages of a PagedMemMapper invalidates them
+ * automatically.
+ */
+public class BlockCache {
+
+  // longest block, in instructions
+  static final int MAX_INSTRUCTIONS = 32;
+  // longest block, in bytes
+  static final int MAX_BYTES        = MAX_INSTRUCTIONS * 3;
+
+  static final class Block {
+    final int     start;
+    // first address after the block
+    final int     end;
+    final int     length;
+    // per instruction: DecodeTable entry, then (PC << 16) | operand
+    final int[]   code;
+    // upper bound of the cycles the block takes, interrupts excluded
+    final int     maxCycles;
+    boolean       valid = true;
+    // executions counted by the JIT engine, and the code it generated
+    int           runs;
+    CompiledBlock compiled;
+
+    Block(int start, int end, int length, int[] code) {
+      this.start = start;
+      this.end = end;
+      this.length = length;
+      this.code = code;
+      int cycles = 0;
+      for (int i = 0; i < length; i++) {
+        int entry = code[i * 2];
+        // a taken branch adds one cycle, two when it crosses a page
+        cycles += DecodeTable.cycles(entry) + DecodeTable.pageCycles(entry)
+            + (DecodeTable.mode(entry) == DecodeTable.REL ? 2 : 0);
+      }
+      this.maxCycles = cycles;
+    }
+  }
+
+  private final CPUMemMapper m;
+  private final Block[]      blocks = new Block[0x10000];
+  // number of cached blocks covering each address
+  private final short[]      cover  = new short[0x10000];
+  private final int[]        scratch = new int[MAX_INSTRUCTIONS * 2];
+
+  private long               hits;
+  private long               misses;
+  private long               invalidations;
+
+  public BlockCache(CPUMemMapper m) {
+    this.m = m;
+    if (m instanceof PagedMemMapper) {
+      // remapping a page replaces the code in it
+      ((PagedMemMapper) m).setBlockCache(this);
+    }
+  }
+
+  // lookup returns the block starting at PC, decoding it if needed
+  Block lookup(int PC) {
+    PC &= 0xffff;
+    Block block = this.blocks[PC];
+    if (block != null) {
+      this.hits++;
+      return block;
+    }
+    this.misses++;
+    block = this.decode(PC);
+    this.blocks[PC] = block;
+    for (int a = block.start; a < block.end; a++) {
+      this.cover[a & 0xffff]++;
+    }
+    return block;
+  }
+
+  private Block decode(int start) {
+    int[] code = this.scratch;
+    int PC = start;
+    int n = 0;
+    while (n < MAX_INSTRUCTIONS) {
+      int entry = DecodeTable.ENTRIES[this.m.peek(PC & 0xffff) & 0xff];
+      int size = DecodeTable.size(entry);
+      int operand;
+      switch (DecodeTable.mode(entry)) {
+        case DecodeTable.ABS:
+        case DecodeTable.ABX:
+        case DecodeTable.ABY:
+        case DecodeTable.IND:
+          operand = (this.m.peek((PC + 1) & 0xffff) & 0xff)
+              | ((this.m.peek((PC + 2) & 0xffff) & 0xff) << 8);
+          break;
+        case DecodeTable.IMM:
+          // the operand address, not its value, so writes to it still count
+          operand = (PC + 1) & 0xffff;
+          break;
+        case DecodeTable.REL:
+          // branch target
+          operand = (PC + 2 + this.m.peek((PC + 1) & 0xffff)) & 0xffff;
+          break;
+        case DecodeTable.IZX:
+        case DecodeTable.IZY:
+        case DecodeTable.ZPG:
+        case DecodeTable.ZPX:
+        case DecodeTable.ZPY:
+          operand = this.m.peek((PC + 1) & 0xffff) & 0xff;
+          break;
+        default:
+          operand = 0;
+          break;
+      }
+      code[n * 2] = entry;
+      code[n * 2 + 1] = ((PC & 0xffff) << 16) | operand;
+      n++;
+      // illegal opcodes have size 0 and never advance PC
+      PC += Math.max(size, 1);
+      if (endsBlock(entry) || PC > 0xffff) {
+        break;
+      }
+    }
+    int[] copy = new int[n * 2];
+    System.arraycopy(code, 0, copy, 0, n * 2);
+    return new Block(start, PC, n, copy);
+  }
+
+  // endsBlock returns true for instructions that may not continue at the
+  // next address
+  static boolean endsBlock(int entry) {
+    if (DecodeTable.mode(entry) == DecodeTable.REL
+        || DecodeTable.size(entry) == 0) {
+      return true;
+    }
+    switch (DecodeTable.handler(entry)) {
+      case DecodeTable.BRK:
+      case DecodeTable.JMP:
+      case DecodeTable.JSR:
+      case DecodeTable.RTI:
+      case DecodeTable.RTS:
+      case DecodeTable.KIL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Must be called for every write to memory. Drops every block covering
+   * address.
+   */
+  public void written(int address) {
+    address &= 0xffff;
+    if (this.cover[address] == 0) {
+      return;
+    }
+    // blocks may wrap from 0xffff to 0x0000, so distances are taken mod 64K
+    for (int back = 0; back < MAX_BYTES; back++) {
+      Block block = this.blocks[(address - back) & 0xffff];
+      if (block != null && block.end - block.start > back) {
+        this.drop(block);
+      }
+    }
+  }
+
+  private void drop(Block block) {
+    block.valid = false;
+    this.blocks[block.start] = null;
+    for (int a = block.start; a < block.end; a++) {
+      this.cover[a & 0xffff]--;
+    }
+    this.invalidations++;
+  }
+
+  // invalidate drops every block covering an address in
+  // [address, address + length)
+  public void invalidate(int address, int length) {
+    for (int i = 0; i < length; i++) {
+      this.written(address + i);
+    }
+  }
+
+  // clear drops every cached block
+  public void clear() {
+    for (int i = 0; i < this.blocks.length; i++) {
+      Block block = this.blocks[i];
+      if (block != null) {
+        this.drop(block);
+      }
+    }
+  }
+
+  // getHits returns the number of block lookups served from the cache
+  public long getHits() {
+    return this.hits;
+  }
+
+  // getMisses returns the number of blocks decoded
+  public long getMisses() {
+    return this.misses;
+  }
+
+  // getInvalidations returns the number of blocks dropped by writes
+  public long getInvalidations() {
+    return this.invalidations;
+  }
+}
@@ -1,5 +1,6 @@
 package com.emulation.cpu;
 
+import java.lang.invoke.MethodHandles;
 import java.util.Formatter;
 
 public class CPU6502 {
@@ -22,15 +23,99 @@ public class CPU6502 {
   private byte      N;                         // negative flag
   private Interrupt interrupt = Interrupt.NONE;
   
+  // lazy flags, see setLazyFlags: Z is set when zResult is 0, N when bit 7
+  // of nResult is set, and flagOp with its operands holds the ADC, SBC or
+  // compare that C and V still have to be computed from
+  private static final int FLAG_NONE = 0;
+  private static final int FLAG_CMP  = 1;
+  private static final int FLAG_ADC  = 2;
+  private static final int FLAG_SBC  = 3;
+  
+  private boolean   lazyFlags;
+  private byte      zResult;
+  private byte      nResult;
+  private int       flagOp;
+  private byte      flagA;
+  private byte      flagB;
+  private byte      flagCarry;
+  
   private enum Interrupt {
     NONE, NMI, IRQ
   }
   
+  // Instruction dispatch engines, see setDispatch
+  public enum Dispatch {
+    SWITCH, TABLE, BLOCK, JIT
+  }
+  
+  // ADC, SBC and compare implementations, see CPU6502(CPUMemMapper,
+  // Arithmetic)
+  public enum Arithmetic {
+    BINARY, TABLE, DECIMAL
+  }
+  
+  private final Arithmetic arithmetic;
+  // ADC, SBC and compare read the ALU tables, with D when decimalMask is 1
+  private final boolean    aluTables;
+  private final int        decimalMask;
+  
   public int              stall;
   public long             cycles;
   public static final int CPUFrequency = 1789773;
   
   private CPUMemMapper m;
+  // m when it is a PagedMemMapper, read and written without an interface call
+  private PagedMemMapper paged;
+  
+  // scratch decoder reused for every step, so decoding allocates nothing
+  private final Instruction decoded = new Instruction();
+  
+  // trace hook, checked once per step; tracing is false while the sink is NONE
+  private TraceSink trace = TraceSink.NONE;
+  private boolean   tracing;
+  
+  // execution profiler, checked once per step; null when off
+  private Profiler  profiler;
+  
+  // JMX monitor, checked at the start and end of every run call; null when
+  // not registered
+  CPUMonitor        monitor;
+  
+  // Flight Recorder counters, published at the end of every run call; null
+  // when not registered
+  Telemetry.Counters telemetry;
+  
+  private Dispatch  dispatch = Dispatch.SWITCH;
+  private boolean   tableDispatch;
+  
+  // decoded block cache and position in the current block, BLOCK and JIT
+  // engines only
+  private BlockCache       blockCache;
+  private BlockCache.Block block;
+  private int              blockIndex;
+  
+  // translates hot blocks, JIT engine only
+  private Recompiler       recompiler;
+  
+  // statistics for Telemetry and CPUMonitor, updated once per run call or
+  // per interrupt and only read by the thread running the CPU: instructions
+  // executed, stall cycles consumed, stall cycles added by DMA, interrupts
+  // and NMIs serviced, their total latency in cycles and the largest since
+  // the last publish, and the cycle the pending interrupt was raised at
+  long                     instructions;
+  long                     stallCycles;
+  long                     dmaCycles;
+  long                     interrupts;
+  long                     nmis;
+  long                     interruptLatency;
+  long                     maxInterruptLatency;
+  private long             raisedAt;
+  
+  // events scheduled by devices, see schedule
+  private final EventQueue events   = new EventQueue();
+  // the run loops only compare cycles with deadline: it is Long.MIN_VALUE
+  // while an interrupt is pending, otherwise the cycle of the next event
+  private long             deadline = Long.MAX_VALUE;
 
   /*
     |------+--------+------+------+--------+--------+------+--------+------+------+--------+--------|
@@ -181,7 +266,7 @@ public class CPU6502 {
   */
   
   // List of all the opcodes
-  private String[] instructionNames = { //
+  static final String[] instructionNames = { //
       "BRK", "ORA", "KIL", "SLO", "NOP", "ORA", "ASL", "SLO", // 00-07
       "PHP", "ORA", "ASL", "ANC", "NOP", "ORA", "ASL", "SLO", // 08-15
       "BPL", "ORA", "KIL", "SLO", "NOP", "ORA", "ASL", "SLO", // 16-31
@@ -223,7 +308,7 @@ public class CPU6502 {
     zpx, zpy
   }
   
-  private Modes[] instructionModes = { //
+  static final Modes[] instructionModes = { //
       Modes.imp, Modes.izx, Modes.imp, Modes.izx, Modes.zpg, Modes.zpg,
       Modes.zpg, Modes.zpg, Modes.imp, Modes.imm, Modes.acc, Modes.imm,
       Modes.abs, Modes.abs, Modes.abs, Modes.abs, Modes.rel, Modes.izy,
@@ -268,7 +353,7 @@ public class CPU6502 {
       Modes.zpx, Modes.zpx, Modes.imp, Modes.aby, Modes.imp, Modes.aby,
       Modes.abx, Modes.abx, Modes.abx, Modes.abx, };
   
-  private byte[] instructionSizes = { 1, 2, 0, 0, 2, 2, 2, 0, 1, 2, 1, 0, 3, 3,
+  static final byte[] instructionSizes = { 1, 2, 0, 0, 2, 2, 2, 0, 1, 2, 1, 0, 3, 3,
       3, 0, 2, 2, 0, 0, 2, 2, 2, 0, 1, 3, 1, 0, 3, 3, 3, 0, 3, 2, 0, 0, 2, 2, 2,
       0, 1, 2, 1, 0, 3, 3, 3, 0, 2, 2, 0, 0, 2, 2, 2, 0, 1, 3, 1, 0, 3, 3, 3, 0,
       1, 2, 0, 0, 2, 2, 2, 0, 1, 2, 1, 0, 3, 3, 3, 0, 2, 2, 0, 0, 2, 2, 2, 0, 1,
@@ -280,7 +365,7 @@ public class CPU6502 {
       2, 0, 1, 3, 1, 0, 3, 3, 3, 0, 2, 2, 0, 0, 2, 2, 2, 0, 1, 2, 1, 0, 3, 3, 3,
       0, 2, 2, 0, 0, 2, 2, 2, 0, 1, 3, 1, 0, 3, 3, 3, 0, };
   
-  private byte[] instructionCycles = { 7, 6, 2, 8, 3, 3, 5, 5, 3, 2, 2, 2, 4, 4,
+  static final byte[] instructionCycles = { 7, 6, 2, 8, 3, 3, 5, 5, 3, 2, 2, 2, 4, 4,
       6, 6, 2, 5, 2, 8, 4, 4, 6, 6, 2, 4, 2, 7, 4, 4, 7, 7, 6, 6, 2, 8, 3, 3, 5,
       5, 4, 2, 2, 2, 4, 4, 6, 6, 2, 5, 2, 8, 4, 4, 6, 6, 2, 4, 2, 7, 4, 4, 7, 7,
       6, 6, 2, 8, 3, 3, 5, 5, 3, 2, 2, 2, 3, 4, 6, 6, 2, 5, 2, 8, 4, 4, 6, 6, 2,
@@ -292,7 +377,7 @@ public class CPU6502 {
       6, 6, 2, 4, 2, 7, 4, 4, 7, 7, 2, 6, 2, 8, 3, 3, 5, 5, 2, 2, 2, 2, 4, 4, 6,
       6, 2, 5, 2, 8, 4, 4, 6, 6, 2, 4, 2, 7, 4, 4, 7, 7, };
   
-  private byte[] instructionPageCycles = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+  static final byte[] instructionPageCycles = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
       0, 0, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0,
       0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1, 1,
       0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0, 0, 0, 0, 0,
@@ -321,8 +406,9 @@ public class CPU6502 {
             + "+---------------------------------------------------------------+\n"
             + "| 0x%X\t| 0x%X\t| 0x%X\t| 0x%X\t| 0x%X\t| 0x%X\t| %s\t\t|\n"
             + "+---------------------------------------------------------------+\n",
-        this.PC, this.SP, this.A, this.X, this.Y, this.C, this.Z, this.I,
-        this.D, this.B, this.U, this.V, this.N, this.interrupt);
+        this.PC, this.SP, this.A, this.X, this.Y, this.flagC(), this.flagZ(),
+        this.I, this.D, this.B, this.U, this.flagV(), this.flagN(),
+        this.interrupt);
     format.close();
     return sb.toString();
   }
@@ -349,50 +435,734 @@ public class CPU6502 {
     // Attend interrupt if it is set
     switch (this.interrupt) {
       case NMI:
+        this.nmis++;
         this.nmi();
         break;
       case IRQ:
         this.irq();
         break;
       default:
-        break;
+        return;
+    }
+    // latency runs to the first cycle of the handler, after the 7 cycles of
+    // the entry
+    long latency = this.cycles - this.raisedAt;
+    this.interrupts++;
+    this.interruptLatency += latency;
+    if (latency > this.maxInterruptLatency) {
+      this.maxInterruptLatency = latency;
     }
     // clear interrupt after handling
     this.interrupt = Interrupt.NONE;
-
+  }
+  
+  // fireEvents fires every event due by now, in cycle order
+  private void fireEvents() {
+    EventQueue events = this.events;
+    while (events.next() <= this.cycles) {
+      long cycle = events.next();
+      events.poll().fire(this, cycle);
+    }
+  }
+  
+  private void updateDeadline() {
+    this.deadline = this.interrupt != Interrupt.NONE ? Long.MIN_VALUE
+        : this.events.next();
+  }
+  
+  /**
+   * Schedule event to fire before the first instruction that starts at or
+   * after cycle, or before the next one if cycle has passed. Events due at
+   * the same cycle fire in the order they were scheduled. Between events the
+   * run loops only compare cycles with the next event's cycle, so a device
+   * that interrupts on a timer costs nothing until it fires. The JIT engine
+   * only runs a compiled block when it ends before the next event; an event
+   * scheduled from inside a compiled block fires after the memory access
+   * that scheduled it, like an interrupt raised by a device.
+   * Pending events are part of snapshots, so restore and fork bring them
+   * back; the event objects themselves are shared, not copied.
+   */
+  public void schedule(long cycle, CycleEvent event) {
+    this.events.add(cycle, event);
+    if (cycle < this.deadline) {
+      this.deadline = cycle;
+    }
+  }
+  
+  // cancel removes every pending occurrence of event, returns true if there
+  // was one
+  public boolean cancel(CycleEvent event) {
+    boolean removed = this.events.remove(event);
+    this.updateDeadline();
+    return removed;
+  }
+  
+  // nextEvent returns the cycle of the next scheduled event, or
+  // Long.MAX_VALUE
+  public long nextEvent() {
+    return this.events.next();
+  }
+  
+  // getInstructions returns the number of instructions executed so far
+  public long getInstructions() {
+    return this.instructions;
   }
 
   /**
    * Execute one CPU instruction
    *
-   * @return number of cycles executed
-   * @throws Exception
+   * @return number of cycles executed, 0 while paused, see isPaused
    */
-  public long step() throws Exception {
+  public long step() {
+    CPUMonitor monitor = this.monitor;
+    if (monitor != null && monitor.enter(this)) {
+      return 0;
+    }
     
+    long cycles = 1;
     // wait till stall cycles are complete
     if (this.stall > 0) {
       this.stall--;
-      return 1;
+      this.stallCycles++;
+    } else {
+      this.instructions++;
+      cycles = this.execute();
     }
-    
+    this.publish(monitor);
+    return cycles;
+  }
+  
+  /**
+   * Run until at least budget cycles have elapsed. Stall cycles count towards
+   * the budget and are consumed in bulk. While paused it returns at once.
+   *
+   * @return number of cycles executed beyond budget, -budget while paused
+   */
+  public long runCycles(long budget) {
+    CPUMonitor monitor = this.monitor;
+    if (monitor != null && monitor.enter(this)) {
+      return -budget;
+    }
+    long done = 0;
+    long instructions = 0;
+    while (done < budget) {
+      int stall = this.stall;
+      if (stall > 0) {
+        long n = Math.min(stall, budget - done);
+        this.stall = stall - (int) n;
+        this.stallCycles += n;
+        done += n;
+      } else if (this.recompiler != null) {
+        long cycles = this.cycles;
+        instructions += this.executeCompiled(Long.MAX_VALUE);
+        done += this.cycles - cycles;
+      } else {
+        done += this.execute();
+        instructions++;
+      }
+    }
+    this.instructions += instructions;
+    this.publish(monitor);
+    return done - budget;
+  }
+  
+  /**
+   * Run n instructions. Pending stall cycles are consumed in bulk before each
+   * instruction. While paused it returns at once.
+   *
+   * @return number of cycles executed, stall cycles included
+   */
+  public long runInstructions(long n) {
+    CPUMonitor monitor = this.monitor;
+    if (monitor != null && monitor.enter(this)) {
+      return 0;
+    }
+    long done = 0;
+    for (long i = 0; i < n; i++) {
+      int stall = this.stall;
+      if (stall != 0) {
+        done += stall;
+        this.stallCycles += stall;
+        this.stall = 0;
+      }
+      if (this.recompiler != null) {
+        long cycles = this.cycles;
+        i += this.executeCompiled(n - i) - 1;
+        done += this.cycles - cycles;
+      } else {
+        done += this.execute();
+      }
+    }
+    this.instructions += n;
+    this.publish(monitor);
+    return done;
+  }
+  
+  /**
+   * Run until condition is reached before an instruction, or until at least
+   * budget cycles have elapsed, whichever happens first. The condition is not
+   * checked while stall cycles are consumed. While paused it returns at once.
+   *
+   * @return number of cycles executed, stall cycles included
+   */
+  public long runUntil(StopCondition condition, long budget) {
+    CPUMonitor monitor = this.monitor;
+    if (monitor != null && monitor.enter(this)) {
+      return 0;
+    }
+    long done = 0;
+    long instructions = 0;
+    while (done < budget) {
+      int stall = this.stall;
+      if (stall > 0) {
+        long n = Math.min(stall, budget - done);
+        this.stall = stall - (int) n;
+        this.stallCycles += n;
+        done += n;
+      } else if (condition.reached(this)) {
+        break;
+      } else {
+        done += this.execute();
+        instructions++;
+      }
+    }
+    this.instructions += instructions;
+    this.publish(monitor);
+    return done;
+  }
+  
+  /**
+   * Return true if the CPU is paused through its CPUMonitor. Run calls then
+   * return at once without running anything, and the host decides when to
+   * try again; Fleet and RealTimeRunner do this for their machines.
+   */
+  public boolean isPaused() {
+    CPUMonitor monitor = this.monitor;
+    return monitor != null && monitor.isPaused();
+  }
+  
+  // publish hands the statistics to the monitor and to Telemetry, called at
+  // the end of every run call
+  private void publish(CPUMonitor monitor) {
+    if (monitor != null) {
+      monitor.publish(this);
+    }
+    Telemetry.Counters telemetry = this.telemetry;
+    if (telemetry != null) {
+      telemetry.publish(this);
+    }
+  }
+  
+  // execute runs one instruction, stall cycles must already be consumed
+  private long execute() {
     long cycles = this.cycles;
-    this.handleInterrupt();
-    Instruction instr = this.fetchInstruction();
+    boolean due = cycles >= this.deadline;
+    if (due) {
+      this.fireEvents();
+    }
+    if (this.tracing) {
+      this.trace.trace(this.PC, this.SP, this.A, this.X, this.Y,
+          this.getFlags(), this.interrupt.ordinal(), this.cycles);
+    }
+    if (due) {
+      this.handleInterrupt();
+      this.updateDeadline();
+    }
+    Profiler profiler = this.profiler;
+    if (profiler != null) {
+      int PC = this.PC;
+      int opcode = this.peek(PC) & 0xff;
+      long start = this.cycles;
+      this.executeNext();
+      profiler.record(PC, opcode, this.cycles - start);
+    } else {
+      this.executeNext();
+    }
+    return this.cycles - cycles;
+  }
+  
+  // executeNext executes the instruction at PC with the selected engine
+  private void executeNext() {
+    if (this.tableDispatch) {
+      this.executeTable();
+      return;
+    }
+    if (this.blockCache != null) {
+      this.executeBlock();
+      return;
+    }
+    Instruction instr = this.fetchInstruction(this.decoded);
     
     // increment PC based on opcode
-    this.PC += this.instructionSizes[instr.opcode];
+    this.PC = (this.PC + instructionSizes[instr.opcode]) & 0xffff;
     // increment cycles based on opcode
-    this.cycles += this.instructionCycles[instr.opcode];
+    this.cycles += instructionCycles[instr.opcode];
     if (instr.pageCrossed) {
-      cycles += this.instructionPageCycles[instr.opcode];
+      this.cycles += instructionPageCycles[instr.opcode];
     }
     
-    System.out.println(this);
     this.executeInstrutcion(instr);
-    System.out.println(this);
+  }
+  
+  // executeTable decodes and executes one instruction using the packed
+  // DecodeTable entry of its opcode
+  private void executeTable() {
+    int PC = this.PC;
+    int entry = DecodeTable.ENTRIES[this.read(PC) & 0xff];
+    int mode = DecodeTable.mode(entry);
+    int address;
+    int index;
+    boolean pageCrossed = false;
     
-    return this.cycles - cycles;
+    switch (mode) {
+      case DecodeTable.ABS:
+        address = this.read16(PC + 1);
+        break;
+      case DecodeTable.ABX:
+        index = this.X & 0xff;
+        address = (this.read16(PC + 1) + index) & 0xffff;
+        pageCrossed = this.pagesDiffer(address - index, address);
+        break;
+      case DecodeTable.ABY:
+        index = this.Y & 0xff;
+        address = (this.read16(PC + 1) + index) & 0xffff;
+        pageCrossed = this.pagesDiffer(address - index, address);
+        break;
+      case DecodeTable.IMM:
+        address = PC + 1;
+        break;
+      case DecodeTable.IZX:
+        address = this.read16bug((this.read(PC + 1) + this.X) & 0xff);
+        break;
+      case DecodeTable.IND:
+        address = this.read16bug(this.read16(PC + 1));
+        break;
+      case DecodeTable.IZY:
+        index = this.Y & 0xff;
+        address = (this.read16bug(this.read(PC + 1) & 0xff) + index) & 0xffff;
+        pageCrossed = this.pagesDiffer(address - index, address);
+        break;
+      case DecodeTable.REL:
+        // operand is a signed 8 bit offset
+        address = (PC + 2 + this.read(PC + 1)) & 0xffff;
+        break;
+      case DecodeTable.ZPG:
+        address = this.read(PC + 1) & 0xff;
+        break;
+      case DecodeTable.ZPX:
+        address = (this.read(PC + 1) + this.X) & 0xff;
+        break;
+      case DecodeTable.ZPY:
+        address = (this.read(PC + 1) + this.Y) & 0xff;
+        break;
+      default:
+        // acc, imp
+        address = 0;
+        break;
+    }
+    
+    this.PC = (PC + DecodeTable.size(entry)) & 0xffff;
+    this.cycles += DecodeTable.cycles(entry);
+    if (pageCrossed) {
+      this.cycles += DecodeTable.pageCycles(entry);
+    }
+    this.dispatch(DecodeTable.handler(entry), address,
+        DecodeTable.MODES[mode]);
+  }
+  
+  // executeBlock executes the next instruction of the current cached block,
+  // looking up the block starting at PC when execution left it
+  private void executeBlock() {
+    BlockCache.Block block = this.block;
+    int i = this.blockIndex;
+    int PC = this.PC;
+    if (block == null || !block.valid || i >= block.length
+        || (block.code[i * 2 + 1] >>> 16) != (PC & 0xffff)) {
+      block = this.blockCache.lookup(PC);
+      this.block = block;
+      i = 0;
+    }
+    int entry = block.code[i * 2];
+    int operand = block.code[i * 2 + 1] & 0xffff;
+    this.blockIndex = i + 1;
+    
+    int mode = DecodeTable.mode(entry);
+    int penalty = DecodeTable.pageCycles(entry);
+    int address;
+    
+    // the helpers add the page crossing penalty themselves
+    this.PC = (PC + DecodeTable.size(entry)) & 0xffff;
+    this.cycles += DecodeTable.cycles(entry);
+    switch (mode) {
+      case DecodeTable.ABX:
+        address = this.addressAbx(operand, penalty);
+        break;
+      case DecodeTable.ABY:
+        address = this.addressAby(operand, penalty);
+        break;
+      case DecodeTable.IZX:
+        address = this.addressIzx(operand);
+        break;
+      case DecodeTable.IND:
+        address = this.addressInd(operand);
+        break;
+      case DecodeTable.IZY:
+        address = this.addressIzy(operand, penalty);
+        break;
+      case DecodeTable.ZPX:
+        address = this.addressZpx(operand);
+        break;
+      case DecodeTable.ZPY:
+        address = this.addressZpy(operand);
+        break;
+      default:
+        // abs, imm, rel and zpg operands are already resolved addresses
+        address = operand;
+        break;
+    }
+    this.dispatch(DecodeTable.handler(entry), address,
+        DecodeTable.MODES[mode]);
+  }
+  
+  // executeCompiled runs the whole block starting at PC when it has been
+  // compiled, has at most limit instructions and ends before the next
+  // event, otherwise it runs one instruction through executeBlock. Events
+  // and interrupts are serviced between blocks; compiled code returns early
+  // when a read or write raises an interrupt. Returns the number of
+  // instructions executed.
+  private int executeCompiled(long limit) {
+    BlockCache.Block block = this.block;
+    int i = this.blockIndex;
+    if (this.tracing || this.profiler != null
+        || block != null && block.valid && i < block.length
+        && (block.code[i * 2 + 1] >>> 16) == (this.PC & 0xffff)) {
+      // in the middle of an interpreted block
+      this.execute();
+      return 1;
+    }
+    if (this.cycles >= this.deadline) {
+      this.fireEvents();
+      this.handleInterrupt();
+      this.updateDeadline();
+    }
+    block = this.blockCache.lookup(this.PC);
+    if (block.compiled == null && ++block.runs == Recompiler.THRESHOLD) {
+      block.compiled = this.recompiler.compile(block);
+    }
+    // a compiled block runs whole, so it must end before the next event
+    if (block.compiled == null || block.length > limit
+        || this.cycles + block.maxCycles > this.deadline) {
+      this.block = block;
+      this.blockIndex = 0;
+      this.executeBlock();
+      return 1;
+    }
+    this.block = null;
+    return block.compiled.run(this, block);
+  }
+  
+  // The address helpers below compute indexed and indirect operand
+  // addresses for executeBlock and the code generated by Recompiler. The
+  // ones taking a penalty add it to cycles when a page is crossed.
+  
+  private int addressAbx(int base, int penalty) {
+    int address = (base + (this.X & 0xff)) & 0xffff;
+    if (this.pagesDiffer(base, address)) {
+      this.cycles += penalty;
+    }
+    return address;
+  }
+  
+  private int addressAby(int base, int penalty) {
+    int address = (base + (this.Y & 0xff)) & 0xffff;
+    if (this.pagesDiffer(base, address)) {
+      this.cycles += penalty;
+    }
+    return address;
+  }
+  
+  private int addressIzx(int operand) {
+    return this.read16bug((operand + this.X) & 0xff);
+  }
+  
+  private int addressInd(int operand) {
+    return this.read16bug(operand);
+  }
+  
+  private int addressIzy(int operand, int penalty) {
+    int base = this.read16bug(operand);
+    int address = (base + (this.Y & 0xff)) & 0xffff;
+    if (this.pagesDiffer(base, address)) {
+      this.cycles += penalty;
+    }
+    return address;
+  }
+  
+  private int addressZpx(int operand) {
+    return (operand + this.X) & 0xff;
+  }
+  
+  private int addressZpy(int operand) {
+    return (operand + this.Y) & 0xff;
+  }
+  
+  // dispatch calls the handler with the given DecodeTable handler index
+  private void dispatch(int handler, int address, Modes mode) {
+    int PC = this.PC;
+    switch (handler) {
+      case DecodeTable.ADC:
+        this.adc(address, PC, mode);
+        break;
+      case DecodeTable.AND:
+        this.and(address, PC, mode);
+        break;
+      case DecodeTable.ASL:
+        this.asl(address, PC, mode);
+        break;
+      case DecodeTable.BCC:
+        this.bcc(address, PC, mode);
+        break;
+      case DecodeTable.BCS:
+        this.bcs(address, PC, mode);
+        break;
+      case DecodeTable.BEQ:
+        this.beq(address, PC, mode);
+        break;
+      case DecodeTable.BIT:
+        this.bit(address, PC, mode);
+        break;
+      case DecodeTable.BMI:
+        this.bmi(address, PC, mode);
+        break;
+      case DecodeTable.BNE:
+        this.bne(address, PC, mode);
+        break;
+      case DecodeTable.BPL:
+        this.bpl(address, PC, mode);
+        break;
+      case DecodeTable.BRK:
+        this.brk(address, PC, mode);
+        break;
+      case DecodeTable.BVC:
+        this.bvc(address, PC, mode);
+        break;
+      case DecodeTable.BVS:
+        this.bvs(address, PC, mode);
+        break;
+      case DecodeTable.CLC:
+        this.clc(address, PC, mode);
+        break;
+      case DecodeTable.CLD:
+        this.cld(address, PC, mode);
+        break;
+      case DecodeTable.CLI:
+        this.cli(address, PC, mode);
+        break;
+      case DecodeTable.CLV:
+        this.clv(address, PC, mode);
+        break;
+      case DecodeTable.CMP:
+        this.cmp(address, PC, mode);
+        break;
+      case DecodeTable.CPX:
+        this.cpx(address, PC, mode);
+        break;
+      case DecodeTable.CPY:
+        this.cpy(address, PC, mode);
+        break;
+      case DecodeTable.DEC:
+        this.dec(address, PC, mode);
+        break;
+      case DecodeTable.DEX:
+        this.dex(address, PC, mode);
+        break;
+      case DecodeTable.DEY:
+        this.dey(address, PC, mode);
+        break;
+      case DecodeTable.EOR:
+        this.eor(address, PC, mode);
+        break;
+      case DecodeTable.INC:
+        this.inc(address, PC, mode);
+        break;
+      case DecodeTable.INX:
+        this.inx(address, PC, mode);
+        break;
+      case DecodeTable.INY:
+        this.iny(address, PC, mode);
+        break;
+      case DecodeTable.JMP:
+        this.jmp(address, PC, mode);
+        break;
+      case DecodeTable.JSR:
+        this.jsr(address, PC, mode);
+        break;
+      case DecodeTable.LDA:
+        this.lda(address, PC, mode);
+        break;
+      case DecodeTable.LDX:
+        this.ldx(address, PC, mode);
+        break;
+      case DecodeTable.LDY:
+        this.ldy(address, PC, mode);
+        break;
+      case DecodeTable.LSR:
+        this.lsr(address, PC, mode);
+        break;
+      case DecodeTable.NOP:
+        this.nop(address, PC, mode);
+        break;
+      case DecodeTable.ORA:
+        this.ora(address, PC, mode);
+        break;
+      case DecodeTable.PHA:
+        this.pha(address, PC, mode);
+        break;
+      case DecodeTable.PHP:
+        this.php(address, PC, mode);
+        break;
+      case DecodeTable.PLA:
+        this.pla(address, PC, mode);
+        break;
+      case DecodeTable.PLP:
+        this.plp(address, PC, mode);
+        break;
+      case DecodeTable.ROL:
+        this.rol(address, PC, mode);
+        break;
+      case DecodeTable.ROR:
+        this.ror(address, PC, mode);
+        break;
+      case DecodeTable.RTI:
+        this.rti(address, PC, mode);
+        break;
+      case DecodeTable.RTS:
+        this.rts(address, PC, mode);
+        break;
+      case DecodeTable.SBC:
+        this.sbc(address, PC, mode);
+        break;
+      case DecodeTable.SEC:
+        this.sec(address, PC, mode);
+        break;
+      case DecodeTable.SED:
+        this.sed(address, PC, mode);
+        break;
+      case DecodeTable.SEI:
+        this.sei(address, PC, mode);
+        break;
+      case DecodeTable.STA:
+        this.sta(address, PC, mode);
+        break;
+      case DecodeTable.STX:
+        this.stx(address, PC, mode);
+        break;
+      case DecodeTable.STY:
+        this.sty(address, PC, mode);
+        break;
+      case DecodeTable.TAX:
+        this.tax(address, PC, mode);
+        break;
+      case DecodeTable.TAY:
+        this.tay(address, PC, mode);
+        break;
+      case DecodeTable.TSX:
+        this.tsx(address, PC, mode);
+        break;
+      case DecodeTable.TXA:
+        this.txa(address, PC, mode);
+        break;
+      case DecodeTable.TXS:
+        this.txs(address, PC, mode);
+        break;
+      case DecodeTable.TYA:
+        this.tya(address, PC, mode);
+        break;
+      case DecodeTable.AHX:
+        this.ahx(address, PC, mode);
+        break;
+      case DecodeTable.ALR:
+        this.alr(address, PC, mode);
+        break;
+      case DecodeTable.ANC:
+        this.anc(address, PC, mode);
+        break;
+      case DecodeTable.ARR:
+        this.arr(address, PC, mode);
+        break;
+      case DecodeTable.AXS:
+        this.axs(address, PC, mode);
+        break;
+      case DecodeTable.DCP:
+        this.dcp(address, PC, mode);
+        break;
+      case DecodeTable.ISC:
+        this.isc(address, PC, mode);
+        break;
+      case DecodeTable.KIL:
+        this.kil(address, PC, mode);
+        break;
+      case DecodeTable.LAS:
+        this.las(address, PC, mode);
+        break;
+      case DecodeTable.LAX:
+        this.lax(address, PC, mode);
+        break;
+      case DecodeTable.RLA:
+        this.rla(address, PC, mode);
+        break;
+      case DecodeTable.RRA:
+        this.rra(address, PC, mode);
+        break;
+      case DecodeTable.SAX:
+        this.sax(address, PC, mode);
+        break;
+      case DecodeTable.SHX:
+        this.shx(address, PC, mode);
+        break;
+      case DecodeTable.SHY:
+        this.shy(address, PC, mode);
+        break;
+      case DecodeTable.SLO:
+        this.slo(address, PC, mode);
+        break;
+      case DecodeTable.SRE:
+        this.sre(address, PC, mode);
+        break;
+      case DecodeTable.TAS:
+        this.tas(address, PC, mode);
+        break;
+      case DecodeTable.XAA:
+        this.xaa(address, PC, mode);
+        break;
+      default:
+        break;
+    }
+  }
+  
+  public int getPC() {
+    return this.PC;
+  }
+  
+  public byte getA() {
+    return this.A;
+  }
+  
+  public byte getX() {
+    return this.X;
+  }
+  
+  public byte getY() {
+    return this.Y;
+  }
+  
+  public byte getSP() {
+    return this.SP;
+  }
+  
+  // getStatus returns the processor status flags NVUBDIZC
+  public byte getStatus() {
+    return this.getFlags();
   }
 
   /**
@@ -402,7 +1172,7 @@ public class CPU6502 {
 
     switch (instr.opcode) {
       case 0x00:
-        this.brk(instr.address, instr.opcode, instr.mode);
+        this.brk(instr.address, this.PC, instr.mode);
         break;
       case 0x01:
       case 0x05:
@@ -412,7 +1182,7 @@ public class CPU6502 {
       case 0x19:
       case 0x0D:
       case 0x1D:
-        this.ora(instr.address, instr.opcode, instr.mode);
+        this.ora(instr.address, this.PC, instr.mode);
         break;
       // KIL (illegal)
       case 0x02:
@@ -431,7 +1201,13 @@ public class CPU6502 {
         break;
       // illegal
       case 0x03:
-        this.slo(instr.address, instr.opcode, instr.mode);
+      case 0x07:
+      case 0x0F:
+      case 0x13:
+      case 0x17:
+      case 0x1B:
+      case 0x1F:
+        this.slo(instr.address, this.PC, instr.mode);
         break;
       case 0x04:
       case 0x44:
@@ -461,31 +1237,31 @@ public class CPU6502 {
       case 0x7c:
       case 0xdc:
       case 0xfc:
-        this.nop(instr.address, instr.opcode, instr.mode);
+        this.nop(instr.address, this.PC, instr.mode);
         break;
       case 0x06:
       case 0x0A:
       case 0x0E:
       case 0x16:
       case 0x1E:
-        this.asl(instr.address, instr.opcode, instr.mode);
+        this.asl(instr.address, this.PC, instr.mode);
         break;
       case 0x08:
-        this.php(instr.address, instr.opcode, instr.mode);
+        this.php(instr.address, this.PC, instr.mode);
         break;
       // anc (illegal)
       case 0x0B:
       case 0x2B:
-        this.anc(instr.address, instr.opcode, instr.mode);
+        this.anc(instr.address, this.PC, instr.mode);
         break;
       case 0x10:
-        this.bpl(instr.address, instr.opcode, instr.mode);
+        this.bpl(instr.address, this.PC, instr.mode);
         break;
       case 0x18:
-        this.clc(instr.address, instr.opcode, instr.mode);
+        this.clc(instr.address, this.PC, instr.mode);
         break;
       case 0x20:
-        this.jsr(instr.address, instr.opcode, instr.mode);
+        this.jsr(instr.address, this.PC, instr.mode);
         break;
       case 0x21:
       case 0x25:
@@ -495,7 +1271,7 @@ public class CPU6502 {
       case 0x35:
       case 0x39:
       case 0x3D:
-        this.and(instr.address, instr.opcode, instr.mode);
+        this.and(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x23:
@@ -505,25 +1281,30 @@ public class CPU6502 {
       case 0x37:
       case 0x3b:
       case 0x3f:
-        this.rla(instr.address, instr.opcode, instr.mode);
+        this.rla(instr.address, this.PC, instr.mode);
         break;
       case 0x24:
-        this.bit(instr.address, instr.opcode, instr.mode);
+      case 0x2C:
+        this.bit(instr.address, this.PC, instr.mode);
         break;
       case 0x26:
-        this.rol(instr.address, instr.opcode, instr.mode);
+      case 0x2A:
+      case 0x2E:
+      case 0x36:
+      case 0x3E:
+        this.rol(instr.address, this.PC, instr.mode);
         break;
       case 0x28:
-        this.plp(instr.address, instr.opcode, instr.mode);
+        this.plp(instr.address, this.PC, instr.mode);
         break;
       case 0x30:
-        this.bmi(instr.address, instr.opcode, instr.mode);
+        this.bmi(instr.address, this.PC, instr.mode);
         break;
       case 0x38:
-        this.sec(instr.address, instr.opcode, instr.mode);
+        this.sec(instr.address, this.PC, instr.mode);
         break;
       case 0x40:
-        this.rti(instr.address, instr.opcode, instr.mode);
+        this.rti(instr.address, this.PC, instr.mode);
         break;
       case 0x41:
       case 0x45:
@@ -533,7 +1314,7 @@ public class CPU6502 {
       case 0x55:
       case 0x59:
       case 0x5D:
-        this.eor(instr.address, instr.opcode, instr.mode);
+        this.eor(instr.address, this.PC, instr.mode);
         break;
       // SRE (illegal)
       case 0x43:
@@ -543,32 +1324,34 @@ public class CPU6502 {
       case 0x57:
       case 0x5B:
       case 0x5F:
-        this.sre(instr.address, instr.opcode, instr.mode);
+        this.sre(instr.address, this.PC, instr.mode);
         break;
       case 0x46:
       case 0x4A:
       case 0x4E:
       case 0x56:
       case 0x5E:
-        this.lsr(instr.address, instr.opcode, instr.mode);
+        this.lsr(instr.address, this.PC, instr.mode);
+        break;
       case 0x48:
-        this.pha(instr.address, instr.opcode, instr.mode);
-        // ALR (illegal)
+        this.pha(instr.address, this.PC, instr.mode);
+        break;
+      // ALR (illegal)
       case 0x4B:
-        this.alr(instr.address, instr.opcode, instr.mode);
+        this.alr(instr.address, this.PC, instr.mode);
         break;
       case 0x4C:
       case 0x6C:
-        this.jmp(instr.address, instr.opcode, instr.mode);
+        this.jmp(instr.address, this.PC, instr.mode);
         break;
       case 0x50:
-        this.bvc(instr.address, instr.opcode, instr.mode);
+        this.bvc(instr.address, this.PC, instr.mode);
         break;
       case 0x58:
-        this.cli(instr.address, instr.opcode, instr.mode);
+        this.cli(instr.address, this.PC, instr.mode);
         break;
       case 0x60:
-        this.rts(instr.address, instr.opcode, instr.mode);
+        this.rts(instr.address, this.PC, instr.mode);
         break;
       case 0x61:
       case 0x65:
@@ -578,7 +1361,7 @@ public class CPU6502 {
       case 0x75:
       case 0x79:
       case 0x7D:
-        this.adc(instr.address, instr.opcode, instr.mode);
+        this.adc(instr.address, this.PC, instr.mode);
         break;
       // RRA (illegal)
       case 0x63:
@@ -588,19 +1371,27 @@ public class CPU6502 {
       case 0x7b:
       case 0x6f:
       case 0x7f:
-        this.rra(instr.address, instr.opcode, instr.mode);
+        this.rra(instr.address, this.PC, instr.mode);
+        break;
       case 0x66:
-        this.ror(instr.address, instr.opcode, instr.mode);
+      case 0x6A:
+      case 0x6E:
+      case 0x76:
+      case 0x7E:
+        this.ror(instr.address, this.PC, instr.mode);
+        break;
       case 0x68:
-        this.pla(instr.address, instr.opcode, instr.mode);
-        // illegal
+        this.pla(instr.address, this.PC, instr.mode);
+        break;
+      // illegal
       case 0x6B:
-        this.arr(instr.address, instr.opcode, instr.mode);
+        this.arr(instr.address, this.PC, instr.mode);
+        break;
       case 0x70:
-        this.bvs(instr.address, instr.opcode, instr.mode);
+        this.bvs(instr.address, this.PC, instr.mode);
         break;
       case 0x78:
-        this.sei(instr.address, instr.opcode, instr.mode);
+        this.sei(instr.address, this.PC, instr.mode);
         break;
       case 0x81:
       case 0x85:
@@ -609,67 +1400,67 @@ public class CPU6502 {
       case 0x95:
       case 0x99:
       case 0x9d:
-        this.sta(instr.address, instr.opcode, instr.mode);
+        this.sta(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x83:
       case 0x87:
       case 0x8F:
       case 0x97:
-        this.sax(instr.address, instr.opcode, instr.mode);
+        this.sax(instr.address, this.PC, instr.mode);
         break;
       case 0x84:
       case 0x8C:
       case 0x94:
-        this.sty(instr.address, instr.opcode, instr.mode);
+        this.sty(instr.address, this.PC, instr.mode);
         break;
       case 0x86:
       case 0x8E:
       case 0x96:
-        this.stx(instr.address, instr.opcode, instr.mode);
+        this.stx(instr.address, this.PC, instr.mode);
         break;
       case 0x88:
-        this.dey(instr.address, instr.opcode, instr.mode);
+        this.dey(instr.address, this.PC, instr.mode);
         break;
       case 0x8A:
-        this.txa(instr.address, instr.opcode, instr.mode);
+        this.txa(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x8B:
-        this.xaa(instr.address, instr.opcode, instr.mode);
+        this.xaa(instr.address, this.PC, instr.mode);
         break;
       case 0x90:
-        this.bcc(instr.address, instr.opcode, instr.mode);
+        this.bcc(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x93:
       case 0x9f:
-        this.ahx(instr.address, instr.opcode, instr.mode);
+        this.ahx(instr.address, this.PC, instr.mode);
         break;
       case 0x98:
-        this.tya(instr.address, instr.opcode, instr.mode);
+        this.tya(instr.address, this.PC, instr.mode);
         break;
       case 0x9A:
-        this.txs(instr.address, instr.opcode, instr.mode);
+        this.txs(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x9B:
-        this.tas(instr.address, instr.opcode, instr.mode);
+        this.tas(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x9C:
-        this.shy(instr.address, instr.opcode, instr.mode);
+        this.shy(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0x9E:
-        this.shx(instr.address, instr.opcode, instr.mode);
+        this.shx(instr.address, this.PC, instr.mode);
         break;
       case 0xA0:
       case 0xA4:
       case 0xAC:
       case 0xB4:
       case 0xBC:
-        this.ldy(instr.address, instr.opcode, instr.mode);
+        this.ldy(instr.address, this.PC, instr.mode);
         break;
       case 0xA1:
       case 0xA5:
@@ -679,14 +1470,14 @@ public class CPU6502 {
       case 0xB5:
       case 0xB9:
       case 0xBD:
-        this.lda(instr.address, instr.opcode, instr.mode);
+        this.lda(instr.address, this.PC, instr.mode);
         break;
       case 0xA2:
       case 0xA6:
       case 0xAE:
       case 0xB6:
       case 0xBE:
-        this.ldx(instr.address, instr.opcode, instr.mode);
+        this.ldx(instr.address, this.PC, instr.mode);
         break;
       case 0xA3:
       case 0xA7:
@@ -695,32 +1486,41 @@ public class CPU6502 {
       case 0xB3:
       case 0xB7:
       case 0xBF:
-        this.lax(instr.address, instr.opcode, instr.mode);
+        this.lax(instr.address, this.PC, instr.mode);
         break;
       case 0xA8:
-        this.tay(instr.address, instr.opcode, instr.mode);
+        this.tay(instr.address, this.PC, instr.mode);
         break;
       case 0xAA:
-        this.tax(instr.address, instr.opcode, instr.mode);
+        this.tax(instr.address, this.PC, instr.mode);
         break;
       case 0xB0:
-        this.bcs(instr.address, instr.opcode, instr.mode);
+        this.bcs(instr.address, this.PC, instr.mode);
         break;
       case 0xB8:
-        this.clv(instr.address, instr.opcode, instr.mode);
+        this.clv(instr.address, this.PC, instr.mode);
         break;
       case 0xBA:
-        this.tsx(instr.address, instr.opcode, instr.mode);
+        this.tsx(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0xBB:
-        this.las(instr.address, instr.opcode, instr.mode);
+        this.las(instr.address, this.PC, instr.mode);
         break;
       case 0xC0:
-        this.cpy(instr.address, instr.opcode, instr.mode);
+      case 0xC4:
+      case 0xCC:
+        this.cpy(instr.address, this.PC, instr.mode);
         break;
       case 0xC1:
-        this.cmp(instr.address, instr.opcode, instr.mode);
+      case 0xC5:
+      case 0xC9:
+      case 0xCD:
+      case 0xD1:
+      case 0xD5:
+      case 0xD9:
+      case 0xDD:
+        this.cmp(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0xC3:
@@ -730,31 +1530,34 @@ public class CPU6502 {
       case 0xD7:
       case 0xDB:
       case 0xDF:
-        this.dcp(instr.address, instr.opcode, instr.mode);
+        this.dcp(instr.address, this.PC, instr.mode);
         break;
       case 0xC6:
-        this.dec(instr.address, instr.opcode, instr.mode);
+      case 0xCE:
+      case 0xD6:
+      case 0xDE:
+        this.dec(instr.address, this.PC, instr.mode);
         break;
       case 0xC8:
-        this.iny(instr.address, instr.opcode, instr.mode);
+        this.iny(instr.address, this.PC, instr.mode);
         break;
       case 0xCA:
-        this.dex(instr.address, instr.opcode, instr.mode);
+        this.dex(instr.address, this.PC, instr.mode);
         break;
       // illegal
       case 0xCB:
-        this.axs(instr.address, instr.opcode, instr.mode);
+        this.axs(instr.address, this.PC, instr.mode);
         break;
       case 0xD0:
-        this.bne(instr.address, instr.opcode, instr.mode);
+        this.bne(instr.address, this.PC, instr.mode);
         break;
       case 0xD8:
-        this.cld(instr.address, instr.opcode, instr.mode);
+        this.cld(instr.address, this.PC, instr.mode);
         break;
       case 0xE0:
       case 0xE4:
       case 0xEC:
-        this.cpx(instr.address, instr.opcode, instr.mode);
+        this.cpx(instr.address, this.PC, instr.mode);
         break;
       case 0xE1:
       case 0xE5:
@@ -765,7 +1568,7 @@ public class CPU6502 {
       case 0xF5:
       case 0xF9:
       case 0xFD:
-        this.sbc(instr.address, instr.opcode, instr.mode);
+        this.sbc(instr.address, this.PC, instr.mode);
         break;
       case 0xE3:
       case 0xE7:
@@ -774,22 +1577,22 @@ public class CPU6502 {
       case 0xF7:
       case 0xFB:
       case 0xFF:
-        this.isc(instr.address, instr.opcode, instr.mode);
+        this.isc(instr.address, this.PC, instr.mode);
         break;
       case 0xE6:
       case 0xEE:
       case 0xF6:
       case 0xFE:
-        this.inc(instr.address, instr.opcode, instr.mode);
+        this.inc(instr.address, this.PC, instr.mode);
         break;
       case 0xE8:
-        this.inx(instr.address, instr.opcode, instr.mode);
+        this.inx(instr.address, this.PC, instr.mode);
         break;
       case 0xF0:
-        this.beq(instr.address, instr.opcode, instr.mode);
+        this.beq(instr.address, this.PC, instr.mode);
         break;
       case 0xF8:
-        this.sed(instr.address, instr.opcode, instr.mode);
+        this.sed(instr.address, this.PC, instr.mode);
         break;
       default:
         break;
@@ -797,8 +1600,7 @@ public class CPU6502 {
 
   }
 
-  private Instruction fetchInstruction() {
-    Instruction instr = new Instruction();
+  private Instruction fetchInstruction(Instruction instr) {
     // fetch instruction
     // step 1: fetch Opcode
     // step 2: fetch operand
@@ -807,7 +1609,7 @@ public class CPU6502 {
     // assume PC is set correctly. Next read is an opcode value
     instr.opcode = this.read(this.PC) & 0xff;
     // given opcode corresponds to only one addressing mode
-    instr.mode = this.instructionModes[instr.opcode];
+    instr.mode = instructionModes[instr.opcode];
 
     // step 2: fetch operand
     // instr.address;
@@ -819,13 +1621,13 @@ public class CPU6502 {
         instr.address = this.read16(this.PC + 1);
         break;
       case abx:
-        instr.address = this.read16(this.PC + 1) + this.X;
-        instr.pageCrossed = this.pagesDiffer(instr.address - this.X,
+        instr.address = (this.read16(this.PC + 1) + (this.X & 0xff)) & 0xffff;
+        instr.pageCrossed = this.pagesDiffer(instr.address - (this.X & 0xff),
             instr.address);
         break;
       case aby:
-        instr.address = this.read16(this.PC + 1) + this.Y;
-        instr.pageCrossed = this.pagesDiffer(instr.address - this.Y,
+        instr.address = (this.read16(this.PC + 1) + (this.Y & 0xff)) & 0xffff;
+        instr.pageCrossed = this.pagesDiffer(instr.address - (this.Y & 0xff),
             instr.address);
         break;
       case acc:
@@ -838,35 +1640,34 @@ public class CPU6502 {
         instr.address = 0;
         break;
       case izx:
-        instr.address = this.read16bug(this.read(this.PC + 1) + this.X);
+        instr.address = this.read16bug((this.read(this.PC + 1) + this.X) & 0xff);
         break;
       case ind:
         instr.address = this.read16bug(this.read16(this.PC + 1));
         break;
       case izy:
-        instr.address = this.read16bug(this.read(this.PC + 1)) + this.Y;
-        instr.pageCrossed = this.pagesDiffer(instr.address - this.Y,
+        instr.address = (this.read16bug(this.read(this.PC + 1) & 0xff)
+            + (this.Y & 0xff)) & 0xffff;
+        instr.pageCrossed = this.pagesDiffer(instr.address - (this.Y & 0xff),
             instr.address);
         break;
       case rel:
         int offset = this.read(this.PC + 1) & 0xFF;
         if (offset < 0x80) {
-          instr.address = this.PC + 2 + offset;
+          instr.address = (this.PC + 2 + offset) & 0xffff;
         } else {
           // way to simulate signed 8 bit operations
-          instr.address = (this.PC + 2 + offset) - 0x100;
+          instr.address = (this.PC + 2 + offset - 0x100) & 0xffff;
         }
         break;
       case zpg:
-        System.out.println("here1");
-        instr.address = this.read(this.PC + 1);
-        // instr.address = this.PC + 1;
+        instr.address = this.read(this.PC + 1) & 0xff;
         break;
       case zpx:
-        instr.address = this.read(this.PC + 1) + this.X;
+        instr.address = (this.read(this.PC + 1) + this.X) & 0xff;
         break;
       case zpy:
-        instr.address = this.read(this.PC + 1) + this.Y;
+        instr.address = (this.read(this.PC + 1) + this.Y) & 0xff;
         break;
       default:
         instr.address = 0;
@@ -876,53 +1677,308 @@ public class CPU6502 {
   }
   
   public byte read(int address) {
+    PagedMemMapper paged = this.paged;
+    if (paged != null) {
+      return paged.read(address);
+    }
     return this.m.read(address);
   }
   
+  // peek returns the byte at address like read, without the side effects a
+  // read has on I/O devices, see CPUMemMapper.peek
+  public byte peek(int address) {
+    return this.m.peek(address & 0xffff);
+  }
+  
   public void write(int address, int value) {
-    this.m.write(address & 0xff, value & 0xff);
+    PagedMemMapper paged = this.paged;
+    if (paged != null) {
+      // ROM and I/O writes leave the code bytes alone; an I/O write that
+      // remaps pages invalidates the block cache through the mapper
+      if (paged.store(address & 0xffff, value & 0xff)
+          && this.blockCache != null) {
+        this.blockCache.written(address);
+      }
+      return;
+    }
+    this.m.write(address & 0xffff, value & 0xff);
+    if (this.blockCache != null) {
+      this.blockCache.written(address);
+    }
+  }
+  
+  /**
+   * Copy length bytes from src to dst through CPUMemMapper.dma, the way a DMA
+   * unit would, and stall the CPU for the time it takes. See dmaStall.
+   */
+  public void dma(int src, int dst, int length) {
+    this.m.dma(src, dst, length);
+    if (this.blockCache != null) {
+      this.blockCache.invalidate(dst, length);
+    }
+    this.dmaStall(length);
+  }
+  
+  /**
+   * Copy length bytes from src into a device buffer, like the OAM DMA of the
+   * NES copies a page to sprite memory, and stall the CPU for the time it
+   * takes. See dmaStall.
+   */
+  public void dma(int src, byte[] dst, int offset, int length) {
+    this.m.readBlock(src, dst, offset, length);
+    this.dmaStall(length);
+  }
+  
+  // dmaStall adds the cycles a DMA of length bytes takes from the CPU: one to
+  // halt it, one more to align when started on an odd cycle, and a read and
+  // a write cycle per byte. A 256 byte OAM copy stalls 513 or 514 cycles.
+  private void dmaStall(int length) {
+    int cycles = 1 + (int) (this.cycles & 1) + 2 * length;
+    this.stall += cycles;
+    this.dmaCycles += cycles;
   }
   
-  // Read16 reads two memory locations using read to return a double-word
-  // value
+  // Read16 reads two memory locations through the mapper to return a
+  // double-word value
   private int read16(int address) {
-    int lo = this.read(address) & 0xff;
-    int hi = this.read(address + 1) & 0xff;
-    return ((hi << 8) | lo) & 0xffff;
+    PagedMemMapper paged = this.paged;
+    if (paged != null) {
+      return paged.read16(address);
+    }
+    return this.m.read16(address);
   }
   
   /**
    * Reset 6502 chip
    */
   public void reset() {
-    System.out.println("********** Resetting CPU ************");
-
     // read instruction at location 0xfffc
     this.PC = this.read16(0xfffc);
-    System.out.printf("Reset CPU PC: 0x%x\n", this.PC);
     
     // Initialize stack pointer
     this.SP = (byte) 0xFD;
 
     // Set flags I = 1 and U = 1
     this.setFlags(0x24);
-
-    System.out.println("********** CPU Reset Complete ************");
   }
 
   public CPU6502(CPUMemMapper m) {
+    this(m, Arithmetic.BINARY);
+  }
+  
+  /**
+   * Create a CPU whose ADC, SBC and compare instructions use arithmetic.
+   * BINARY computes them with the code in the handlers and ignores D, as
+   * the NES 2A03 does. TABLE looks the result and the flags up in the ALU
+   * tables, still ignoring D. DECIMAL looks them up too, and follows D into
+   * the BCD arithmetic of the NMOS 6502, flags included.
+   */
+  public CPU6502(CPUMemMapper m, Arithmetic arithmetic) {
     this.m = m;
+    if (m instanceof PagedMemMapper) {
+      this.paged = (PagedMemMapper) m;
+    }
+    this.arithmetic = arithmetic;
+    this.aluTables = arithmetic != Arithmetic.BINARY;
+    this.decimalMask = arithmetic == Arithmetic.DECIMAL ? 1 : 0;
     this.reset();
   }
   
+  public Arithmetic getArithmetic() {
+    return this.arithmetic;
+  }
+  
+  /**
+   * Set the sink that receives the CPU state before every instruction. Pass
+   * TraceSink.NONE (or null) to switch tracing off.
+   */
+  public void setTraceSink(TraceSink sink) {
+    this.trace = sink == null ? TraceSink.NONE : sink;
+    this.tracing = this.trace != TraceSink.NONE;
+  }
+  
+  /**
+   * Count executions and cycles per opcode and per PC into profiler. Pass
+   * null to switch profiling off, which leaves one null check per step.
+   * While profiling, the JIT engine runs blocks in the BLOCK interpreter so
+   * that every instruction is counted.
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+  }
+  
+  public Profiler getProfiler() {
+    return this.profiler;
+  }
+  
+  /**
+   * Select the instruction dispatch engine. SWITCH decodes through the
+   * Instruction scratch object and the executeInstrutcion switch, TABLE
+   * decodes through the packed DecodeTable. BLOCK runs basic blocks decoded
+   * once into a BlockCache. JIT is BLOCK plus a Recompiler that turns blocks
+   * run Recompiler.THRESHOLD times into JVM bytecode; compiled blocks are
+   * only used by runCycles and runInstructions, which run them whole. All of
+   * them run the same handlers.
+   */
+  public void setDispatch(Dispatch dispatch) {
+    this.dispatch = dispatch;
+    this.tableDispatch = dispatch == Dispatch.TABLE;
+    if (dispatch == Dispatch.BLOCK || dispatch == Dispatch.JIT) {
+      if (this.blockCache == null) {
+        this.blockCache = new BlockCache(this.m);
+      }
+    } else {
+      this.blockCache = null;
+    }
+    if (dispatch == Dispatch.JIT) {
+      if (this.recompiler == null) {
+        this.recompiler = new Recompiler(MethodHandles.lookup());
+      }
+    } else {
+      this.recompiler = null;
+    }
+    this.block = null;
+  }
+  
+  // getBlockCache returns the block cache of the BLOCK and JIT engines, or
+  // null
+  public BlockCache getBlockCache() {
+    return this.blockCache;
+  }
+  
+  public Dispatch getDispatch() {
+    return this.dispatch;
+  }
+  
+  /**
+   * Switch lazy flag evaluation on or off. With lazy flags the handlers only
+   * record the last result, and the last ADC, SBC or compare operands; Z, N,
+   * C and V are computed from them when a branch, PHP, BRK, an interrupt or
+   * getStatus reads them. The flags seen by the program are the same in
+   * both modes.
+   */
+  public void setLazyFlags(boolean lazy) {
+    int flags = this.getFlags();
+    this.lazyFlags = lazy;
+    this.setFlags(flags);
+  }
+  
+  public boolean isLazyFlags() {
+    return this.lazyFlags;
+  }
+  
+  /**
+   * Registers, flags, cycle count, pending stall cycles, pending interrupt
+   * and scheduled events of a CPU6502 at one point in time, and the contents
+   * of its memory when it runs on a PagedMemMapper.
+   */
+  public static final class Snapshot {
+    private final int                       PC;
+    private final byte                      SP;
+    private final byte                      A;
+    private final byte                      X;
+    private final byte                      Y;
+    private final byte                      status;
+    private final Interrupt                 interrupt;
+    private final long                      cycles;
+    private final int                       stall;
+    private final PagedMemMapper.Snapshot   memory;
+    private final EventQueue                events;
+    
+    Snapshot(CPU6502 cpu) {
+      this.PC = cpu.PC;
+      this.SP = cpu.SP;
+      this.A = cpu.A;
+      this.X = cpu.X;
+      this.Y = cpu.Y;
+      this.status = cpu.getFlags();
+      this.interrupt = cpu.interrupt;
+      this.cycles = cpu.cycles;
+      this.stall = cpu.stall;
+      this.memory = cpu.paged == null ? null : cpu.paged.snapshot();
+      this.events = cpu.events.copy();
+    }
+    
+    public long getCycles() {
+      return this.cycles;
+    }
+    
+    // hasMemory returns true if the snapshot includes the memory contents
+    public boolean hasMemory() {
+      return this.memory != null;
+    }
+    
+    // getDirtyPages returns the number of memory pages written since the
+    // previous snapshot or restore, see PagedMemMapper.Snapshot
+    public int getDirtyPages() {
+      return this.memory == null ? 0 : this.memory.getDirtyPages();
+    }
+    
+    // changedPages returns the number of memory pages this snapshot does not
+    // share with previous, see PagedMemMapper.Snapshot
+    int changedPages(Snapshot previous) {
+      return this.memory.changedPages(previous.memory);
+    }
+  }
+  
+  /**
+   * Take a snapshot of the CPU state. With a PagedMemMapper it includes the
+   * memory, shared copy-on-write, so it costs a copy of the page tables and
+   * nothing more until pages are written. Other mappers are not included.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+  
+  /**
+   * Return to the state of snapshot. The same snapshot can be restored any
+   * number of times, and into other CPUs running on a PagedMemMapper.
+   */
+  public void restore(Snapshot snapshot) {
+    if (snapshot.memory != null) {
+      if (this.paged == null) {
+        throw new IllegalArgumentException(
+            "snapshot has memory but the mapper is not a PagedMemMapper");
+      }
+      // clears the block cache
+      this.paged.restore(snapshot.memory);
+    }
+    this.PC = snapshot.PC;
+    this.SP = snapshot.SP;
+    this.A = snapshot.A;
+    this.X = snapshot.X;
+    this.Y = snapshot.Y;
+    this.setFlags(snapshot.status);
+    this.interrupt = snapshot.interrupt;
+    this.raisedAt = snapshot.cycles;
+    this.cycles = snapshot.cycles;
+    this.stall = snapshot.stall;
+    this.events.copyFrom(snapshot.events);
+    this.block = null;
+    this.updateDeadline();
+  }
+  
+  /**
+   * Return a new CPU in the same state, with the same dispatch engine, flag
+   * mode and arithmetic, and its own copy-on-write fork of the memory. A fork
+   * costs a copy of the page tables plus one page copy for every page either
+   * CPU writes afterwards. The fork gets the scheduled events; I/O devices
+   * and the event objects are shared with this CPU.
+   */
+  public CPU6502 fork() {
+    if (this.paged == null) {
+      throw new IllegalStateException("fork needs a PagedMemMapper");
+    }
+    CPU6502 fork = new CPU6502(new PagedMemMapper(), this.arithmetic);
+    fork.setDispatch(this.dispatch);
+    fork.setLazyFlags(this.lazyFlags);
+    fork.restore(this.snapshot());
+    return fork;
+  }
+  
   public static void main(String[] args) throws Exception {
     CPU6502 cpu = new CPU6502(new SimpleMemMapper());
     cpu.step();
-    for (int i = 0; i < 256; i++) {
-      // System.out.printf("%s,%s,%d,%d\n", cpu.instructionNames[i],
-      // cpu.instructionModes[i], cpu.instructionCycles[i],
-      // cpu.instructionSizes[i]);
-    }
   }
   
   // addBranchCycles adds a cycle for taking a branch and adds another cycle
@@ -935,27 +1991,30 @@ public class CPU6502 {
   }
   
   public void compare(byte a, byte b) {
-    this.setZN((byte) (a - b));
-    if (a >= b) {
-      this.C = 1;
-    } else {
-      this.C = 0;
+    if (this.aluTables) {
+      this.setALUFlags(ALU.SBC[ALU.index(0, 1, a, b)] >> 8, false);
+      return;
     }
+    this.setZN((byte) (a - b));
+    this.setFlagOp(FLAG_CMP, a, b, (byte) 0);
   }
   
   // read16bug emulates a 6502 bug that caused the low byte to wrap without
   // incrementing the high byte
   private int read16bug(int address) {
+    if ((address & 0xff) != 0xff) {
+      return this.read16(address);
+    }
     int a = address;
-    int b = (a & 0xFF00) | ((a) + 1);
-    int lo = this.read(a);
-    int hi = this.read(b);
-    return ((hi) << 8) | (lo);
+    int b = (a & 0xFF00) | ((a + 1) & 0xFF);
+    int lo = this.read(a) & 0xff;
+    int hi = this.read(b) & 0xff;
+    return (hi << 8) | lo;
   }
   
   // push pushes a byte onto the stack
   public void push(byte value) {
-    this.write(0x100 | this.SP, value & 0xff);
+    this.write(0x100 | (this.SP & 0xff), value & 0xff);
     this.SP--;
   }
   
@@ -964,7 +2023,7 @@ public class CPU6502 {
     this.SP++;
     // SP is 8 bit, 0x00 to 0xFF
     // stack is 0x100-0x1FF
-    return this.read(0x100 | (this.SP));
+    return this.read(0x100 | (this.SP & 0xff));
   }
   
   // push16 pushes two bytes onto the stack
@@ -977,22 +2036,28 @@ public class CPU6502 {
   
   // pull16 pops two bytes from the stack
   private int pull16() {
-    int lo = (this.pull());
-    int hi = (this.pull());
+    int sp = this.SP & 0xff;
+    if (sp < 0xfe) {
+      // both bytes are inside page 1
+      this.SP += 2;
+      return this.read16(0x101 + sp);
+    }
+    int lo = this.pull() & 0xff;
+    int hi = this.pull() & 0xff;
     return (hi << 8) | lo;
   }
   
   // Flags returns the processor status flags
   private byte getFlags() {
     byte flags = 0;
-    flags |= this.C << 0;
-    flags |= this.Z << 1;
+    flags |= this.flagC() << 0;
+    flags |= this.flagZ() << 1;
     flags |= this.I << 2;
     flags |= this.D << 3;
     flags |= this.B << 4;
     flags |= this.U << 5;
-    flags |= this.V << 6;
-    flags |= this.N << 7;
+    flags |= this.flagV() << 6;
+    flags |= this.flagN() << 7;
     return flags;
   }
   
@@ -1007,10 +2072,128 @@ public class CPU6502 {
     this.U = (byte) ((flags >> 5) & 0x1);
     this.V = (byte) ((flags >> 6) & 0x1);
     this.N = (byte) ((flags >> 7) & 0x1);
+    // the lazy state describes the same Z and N, and nothing is pending
+    this.zResult = (byte) (this.Z ^ 1);
+    this.nResult = (byte) (this.N << 7);
+    this.flagOp = FLAG_NONE;
+  }
+  
+  // The flag accessors below must be used for every read of C, Z, V and N.
+  // In lazy mode Z and N live in zResult and nResult, and in both modes C
+  // and V are stale while an ADC, SBC or compare is pending in flagOp.
+  
+  private byte flagC() {
+    if (this.flagOp != FLAG_NONE) {
+      this.resolveFlags();
+    }
+    return this.C;
+  }
+  
+  private byte flagV() {
+    if (this.flagOp != FLAG_NONE) {
+      this.resolveFlags();
+    }
+    return this.V;
+  }
+  
+  private byte flagZ() {
+    if (this.lazyFlags) {
+      return (byte) (this.zResult == 0 ? 1 : 0);
+    }
+    return this.Z;
+  }
+  
+  private byte flagN() {
+    if (this.lazyFlags) {
+      return (byte) ((this.nResult >> 7) & 1);
+    }
+    return this.N;
+  }
+  
+  // setC and setV resolve a pending operation first, so that the flag it
+  // does not overwrite keeps its value
+  
+  private void setC(int value) {
+    if (this.flagOp != FLAG_NONE) {
+      this.resolveFlags();
+    }
+    this.C = (byte) value;
+  }
+  
+  private void setV(int value) {
+    if (this.flagOp != FLAG_NONE) {
+      this.resolveFlags();
+    }
+    this.V = (byte) value;
+  }
+  
+  // setFlagOp records the operands of an ADC, SBC or compare. C and V (only
+  // C for a compare) are computed from them right away in eager mode, and
+  // when they are first read in lazy mode.
+  private void setFlagOp(int op, byte a, byte b, byte c) {
+    if (this.flagOp > FLAG_CMP) {
+      // a compare leaves V alone, so V of the pending ADC or SBC is needed
+      this.resolveFlags();
+    }
+    this.flagOp = op;
+    this.flagA = a;
+    this.flagB = b;
+    this.flagCarry = c;
+    if (!this.lazyFlags) {
+      this.resolveFlags();
+    }
+  }
+  
+  // resolveFlags computes C and V from the pending operation. Sums are
+  // unsigned: C is bit 8 of the sum, and a subtraction adds the complement
+  // of its operand like the ALU does.
+  private void resolveFlags() {
+    int a = this.flagA & 0xff;
+    int b = this.flagB & 0xff;
+    int sum;
+    switch (this.flagOp) {
+      case FLAG_CMP:
+        this.C = (byte) ((a + (b ^ 0xff) + 1) >> 8);
+        break;
+      case FLAG_ADC:
+        sum = a + b + this.flagCarry;
+        this.C = (byte) (sum >> 8);
+        this.V = (byte) (((a ^ sum) & (b ^ sum) & 0x80) >> 7);
+        break;
+      case FLAG_SBC:
+        b ^= 0xff;
+        sum = a + b + this.flagCarry;
+        this.C = (byte) (sum >> 8);
+        this.V = (byte) (((a ^ sum) & (b ^ sum) & 0x80) >> 7);
+        break;
+      default:
+        break;
+    }
+    this.flagOp = FLAG_NONE;
+  }
+  
+  // setALUFlags sets C, Z and N, and V when setV, from the flags of an ALU
+  // table entry
+  private void setALUFlags(int flags, boolean setV) {
+    this.setC(flags & ALU.C);
+    if (setV) {
+      this.V = (byte) ((flags >> 6) & 1);
+    }
+    if (this.lazyFlags) {
+      this.zResult = (byte) (~flags & ALU.Z);
+      this.nResult = (byte) flags;
+    } else {
+      this.Z = (byte) ((flags >> 1) & 1);
+      this.N = (byte) ((flags >> 7) & 1);
+    }
   }
   
   // setZ sets the zero flag if the argument is zero
   public void setZ(byte value) {
+    if (this.lazyFlags) {
+      this.zResult = value;
+      return;
+    }
     if (value == 0) {
       this.Z = 1;
     } else {
@@ -1020,6 +2203,10 @@ public class CPU6502 {
   
   // setN sets the negative flag if the argument is negative (high bit is set)
   public void setN(byte value) {
+    if (this.lazyFlags) {
+      this.nResult = value;
+      return;
+    }
     /* 1000 0000b */
     if ((value & 0x80) != 0) {
       this.N = 1;
@@ -1030,47 +2217,54 @@ public class CPU6502 {
   
   // setZN sets the zero flag and the negative flag
   public void setZN(byte value) {
+    if (this.lazyFlags) {
+      this.zResult = value;
+      this.nResult = value;
+      return;
+    }
     this.setZ((byte) (value & 0xff));
     this.setN((byte) (value & 0xff));
   }
   
   // triggerNMI causes a non-maskable interrupt to occur on the next cycle
   public void triggerNMI() {
+    if (this.interrupt == Interrupt.NONE) {
+      this.raisedAt = this.cycles;
+    }
     this.interrupt = Interrupt.NMI;
+    this.deadline = Long.MIN_VALUE;
   }
   
   // triggerIRQ causes an IRQ interrupt to occur on the next cycle
   public void triggerIRQ() {
     if (this.I == 0) {
+      if (this.interrupt == Interrupt.NONE) {
+        this.raisedAt = this.cycles;
+      }
       this.interrupt = Interrupt.IRQ;
+      this.deadline = Long.MIN_VALUE;
     }
   }
   
-  private boolean pagesDiffer(int j, int address) {
-    // TODO Auto-generated method stub
-    return false;
+  // pagesDiffer returns true if the two addresses reference different pages
+  private boolean pagesDiffer(int a, int b) {
+    return (a & 0xFF00) != (b & 0xFF00);
   }
   
   // ADC - Add with Carry
   public void adc(int address, int PC, Modes mode) {
     byte a = this.A;
     byte b = this.read(address);
-    byte c = this.C;
+    byte c = this.flagC();
+    if (this.aluTables) {
+      int entry = ALU.ADC[ALU.index(this.D & this.decimalMask, c, a, b)];
+      this.A = (byte) entry;
+      this.setALUFlags(entry >> 8, true);
+      return;
+    }
     this.A = (byte) (a + b + c);
     this.setZN(this.A);
-    
-    if (((a) + (b) + (c)) > 0xFF) {
-      this.C = 1;
-    } else {
-      this.C = 0;
-    }
-    
-    // check for overflow
-    if ((((a ^ b) & 0x80) == 0) && (((a ^ this.A) & 0x80) != 0)) {
-      this.V = 1;
-    } else {
-      this.V = 0;
-    }
+    this.setFlagOp(FLAG_ADC, a, b, c);
   }
   
   // AND - Logical AND
@@ -1083,12 +2277,12 @@ public class CPU6502 {
   public void asl(int address, int PC, Modes mode) {
     if (mode == Modes.acc) {
       // set carry to 1, if bit 7 is 1
-      this.C = (byte) ((this.A >> 7) & 1);
+      this.setC((byte) ((this.A >> 7) & 1));
       this.A <<= 1;
       this.setZN(this.A);
     } else {
       byte value = this.read(address);
-      this.C = (byte) ((value >> 7) & 1);
+      this.setC((byte) ((value >> 7) & 1));
       value <<= 1;
       this.write(address, value);
       this.setZN(value);
@@ -1097,7 +2291,7 @@ public class CPU6502 {
   
   // BCC - Branch if Carry Clear
   public void bcc(int address, int PC, Modes mode) {
-    if (this.C == 0) {
+    if (this.flagC() == 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1105,7 +2299,7 @@ public class CPU6502 {
   
   // BCS - Branch if Carry Set
   public void bcs(int address, int PC, Modes mode) {
-    if (this.C != 0) {
+    if (this.flagC() != 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1113,7 +2307,7 @@ public class CPU6502 {
   
   // BEQ - Branch if Equal
   public void beq(int address, int PC, Modes mode) {
-    if (this.Z != 0) {
+    if (this.flagZ() != 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1122,14 +2316,14 @@ public class CPU6502 {
   // BIT - Bit Test
   public void bit(int address, int PC, Modes mode) {
     byte value = this.read(address);
-    this.V = (byte) ((value >> 6) & 1);
+    this.setV((byte) ((value >> 6) & 1));
     this.setZ((byte) (value & this.A));
     this.setN(value);
   }
   
   // BMI - Branch if Minus
   public void bmi(int address, int PC, Modes mode) {
-    if (this.N != 0) {
+    if (this.flagN() != 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1137,7 +2331,7 @@ public class CPU6502 {
   
   // BNE - Branch if Not Equal
   public void bne(int address, int PC, Modes mode) {
-    if (this.Z == 0) {
+    if (this.flagZ() == 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1145,9 +2339,9 @@ public class CPU6502 {
   
   // BPL - Branch if Positive
   public void bpl(int address, int PC, Modes mode) {
-    if (this.N == 0) {
+    if (this.flagN() == 0) {
       this.PC = address;
-      this.addBranchCycles(address, this.PC, mode);
+      this.addBranchCycles(address, PC, mode);
     }
   }
   
@@ -1160,12 +2354,12 @@ public class CPU6502 {
     // disable interrupts
     this.sei(address, PC, mode);
     // change PC to IRQ vector at 0xfffe
-    this.PC = this.read16(0xffee);
+    this.PC = this.read16(0xfffe);
   }
   
   // BVC - Branch if Overflow Clear
   public void bvc(int address, int PC, Modes mode) {
-    if (this.V == 0) {
+    if (this.flagV() == 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1173,7 +2367,7 @@ public class CPU6502 {
   
   // BVS - Branch if Overflow Set
   public void bvs(int address, int PC, Modes mode) {
-    if (this.V != 0) {
+    if (this.flagV() != 0) {
       this.PC = address;
       this.addBranchCycles(address, PC, mode);
     }
@@ -1181,7 +2375,7 @@ public class CPU6502 {
   
   // CLC - Clear Carry Flag
   public void clc(int address, int PC, Modes mode) {
-    this.C = 0;
+    this.setC(0);
   }
   
   // CLD - CLear Decimal Mode - $D8
@@ -1196,7 +2390,7 @@ public class CPU6502 {
   
   // CLV - Clear Overflow Flag
   public void clv(int address, int PC, Modes mode) {
-    this.V = 0;
+    this.setV(0);
   }
   
   // CMP - Compare
@@ -1293,13 +2487,13 @@ public class CPU6502 {
   // LSR - Logical Shift Right
   public void lsr(int address, int PC, Modes mode) {
     if (mode == Modes.acc) {
-      this.C = (byte) (this.A & 0x1);
-      this.A >>= 1;
+      this.setC((byte) (this.A & 0x1));
+      this.A = (byte) ((this.A & 0xff) >>> 1);
       this.setZN(this.A);
     } else {
       byte value = this.read(address);
-      this.C = (byte) (value & 0x1);
-      value >>= 1;
+      this.setC((byte) (value & 0x1));
+      value = (byte) ((value & 0xff) >>> 1);
       this.write(address, value);
       this.setZN(value);
     }
@@ -1346,14 +2540,14 @@ public class CPU6502 {
   // move carry to bit 0
   public void rol(int address, int PC, Modes mode) {
     if (mode == Modes.acc) {
-      byte c = (byte) (this.C & 0x1);
-      this.C = (byte) ((this.A >> 7) & 0x1);
+      byte c = this.flagC();
+      this.setC((byte) ((this.A >> 7) & 0x1));
       this.A = (byte) ((this.A << 1) | c);
       this.setZN(this.A);
     } else {
-      byte c = this.C;
+      byte c = this.flagC();
       byte value = this.read(address);
-      this.C = (byte) ((value >> 7) & 1);
+      this.setC((byte) ((value >> 7) & 1));
       value = (byte) ((value << 1) | c);
       this.write(address, value);
       this.setZN(value);
@@ -1366,15 +2560,15 @@ public class CPU6502 {
   // move bit 0 to carry
   public void ror(int address, int PC, Modes mode) {
     if (mode == Modes.acc) {
-      byte c = this.C;
-      this.C = (byte) (this.A & 1);
-      this.A = (byte) ((this.A >> 1) | (c << 7));
+      byte c = this.flagC();
+      this.setC((byte) (this.A & 1));
+      this.A = (byte) (((this.A & 0xff) >>> 1) | (c << 7));
       this.setZN(this.A);
     } else {
-      byte c = this.C;
+      byte c = this.flagC();
       byte value = this.read(address);
-      this.C = (byte) (value & 1);
-      value = (byte) ((value >> 1) | (c << 7));
+      this.setC((byte) (value & 1));
+      value = (byte) (((value & 0xff) >>> 1) | (c << 7));
       this.write(address, value);
       this.setZN(value);
     }
@@ -1399,24 +2593,21 @@ public class CPU6502 {
   public void sbc(int address, int PC, Modes mode) {
     byte a = this.A;
     byte b = this.read(address);
-    byte c = this.C;
+    byte c = this.flagC();
+    if (this.aluTables) {
+      int entry = ALU.SBC[ALU.index(this.D & this.decimalMask, c, a, b)];
+      this.A = (byte) entry;
+      this.setALUFlags(entry >> 8, true);
+      return;
+    }
     this.A = (byte) (a - b - (1 - c));
     this.setZN(this.A);
-    if (((a) - (b) - (1 - c)) >= 0) {
-      this.C = 1;
-    } else {
-      this.C = 0;
-    }
-    if ((((a ^ b) & 0x80) != 0) && (((a ^ this.A) & 0x80) != 0)) {
-      this.V = 1;
-    } else {
-      this.V = 0;
-    }
+    this.setFlagOp(FLAG_SBC, a, b, c);
   }
   
   // SEC - Set Carry Flag
   public void sec(int address, int PC, Modes mode) {
-    this.C = 1;
+    this.setC(1);
   }
   
   // SED - Set Decimal Flag
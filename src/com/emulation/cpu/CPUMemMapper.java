@@ -4,4 +4,43 @@ package com.emulation.cpu;
 public interface CPUMemMapper {
 	public byte read(int address);
 	public void write(int address, int value);
+
+	// peek reads address without side effects, for code that reads ahead of
+	// the CPU such as the block cache and trace sinks. Mappers whose reads
+	// change device state must override it
+	public default byte peek(int address) {
+		return this.read(address & 0xffff);
+	}
+
+	// read16 reads a little endian word, the high byte comes from the next
+	// address, wrapping at 0xffff
+	public default int read16(int address) {
+		int lo = this.read(address & 0xffff) & 0xff;
+		int hi = this.read((address + 1) & 0xffff) & 0xff;
+		return (hi << 8) | lo;
+	}
+
+	// readBlock reads length bytes starting at address into dst, wrapping at
+	// 0xffff
+	public default void readBlock(int address, byte[] dst, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[offset + i] = this.read((address + i) & 0xffff);
+		}
+	}
+
+	// writeBlock writes length bytes from src starting at address, wrapping at
+	// 0xffff
+	public default void writeBlock(int address, byte[] src, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			this.write((address + i) & 0xffff, src[offset + i] & 0xff);
+		}
+	}
+
+	// dma copies length bytes from src to dst, wrapping at 0xffff. The two
+	// ranges must not overlap
+	public default void dma(int src, int dst, int length) {
+		for (int i = 0; i < length; i++) {
+			this.write((dst + i) & 0xffff, this.read((src + i) & 0xffff) & 0xff);
+		}
+	}
 }
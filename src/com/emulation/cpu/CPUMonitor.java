@@ -0,0 +1,208 @@
+package com.emulation.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a CPU6502 as a JMX MBean named
+ * com.emulation.cpu:type=CPU6502,name=<name>.
+ *
+ * At the end of every run call the CPU copies its counters into the monitor
+ * with opaque stores, which are plain moves on common hardware; the MBean
+ * reads them with opaque loads, without locks, so the attributes lag behind
+ * by at most one run call. Pause and reset are requests that the CPU thread
+ * applies at the start of its next run call: while paused, run calls return
+ * at once without running anything, so the thread is never blocked and the
+ * host reschedules the machine, see CPU6502.isPaused. Hosts that run long
+ * calls such as a single runCycles for the whole program will see the
+ * requests late; the runners in this package call in bursts.
+ *
+ * The speed ratio is averaged over a window of one to two seconds that does
+ * not depend on how often, or by how many clients, it is read.
+ */
+public final class CPUMonitor implements CPUMonitorMBean {
+
+  private static final VarHandle COUNTERS =
+      MethodHandles.arrayElementVarHandle(long[].class);
+
+  private static final int       CYCLES       = 0;
+  private static final int       INSTRUCTIONS = 1;
+  private static final int       STALL        = 2;
+  private static final int       DMA          = 3;
+  private static final int       NMIS         = 4;
+  private static final int       IRQS         = 5;
+
+  // requests bits
+  private static final int       PAUSE        = 1;
+  private static final int       RESET        = 2;
+
+  private final CPU6502          cpu;
+  private final ObjectName       name;
+  private final long[]           counters     = new long[6];
+
+  private static final long      WINDOW       = 1_000_000_000L;
+
+  // pending requests, changed while holding this monitor's lock
+  private volatile int           requests;
+
+  // cycles and nanoTime of the two samples getSpeedRatio averages from, at
+  // least WINDOW apart, guarded by sample
+  private final Object           sample       = new Object();
+  private long                   sampleCycles;
+  private long                   sampleNanos;
+  private long                   recentCycles;
+  private long                   recentNanos;
+
+  private CPUMonitor(CPU6502 cpu, ObjectName name) {
+    this.cpu = cpu;
+    this.name = name;
+    this.publish(cpu);
+    this.sampleCycles = cpu.cycles;
+    this.sampleNanos = System.nanoTime();
+    this.recentCycles = this.sampleCycles;
+    this.recentNanos = this.sampleNanos;
+  }
+
+  /**
+   * Register cpu with the platform MBean server under name. Call it before
+   * the machine starts running, or from the thread running it.
+   */
+  public static CPUMonitor register(CPU6502 cpu, String name) {
+    if (cpu.monitor != null) {
+      throw new IllegalStateException("CPU already registered as "
+          + cpu.monitor.name);
+    }
+    CPUMonitor monitor;
+    try {
+      monitor = new CPUMonitor(cpu, new ObjectName(
+          "com.emulation.cpu:type=CPU6502,name=" + ObjectName.quote(name)));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(monitor,
+          monitor.name);
+    } catch (JMException e) {
+      throw new IllegalArgumentException("cannot register " + name, e);
+    }
+    cpu.monitor = monitor;
+    return monitor;
+  }
+
+  // unregister removes the MBean and lets a paused CPU run again
+  public void unregister() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (server.isRegistered(this.name)) {
+        server.unregisterMBean(this.name);
+      }
+    } catch (JMException e) {
+      throw new IllegalStateException("cannot unregister " + this.name, e);
+    }
+    this.cpu.monitor = null;
+    this.resume();
+  }
+
+  public ObjectName getName() {
+    return this.name;
+  }
+
+  // enter applies pending requests, called by cpu at the start of a run call.
+  // Returns true if the CPU is paused and the run call must return at once.
+  boolean enter(CPU6502 cpu) {
+    return this.requests != 0 && this.apply(cpu);
+  }
+
+  // publish copies the counters of cpu, called at the end of a run call
+  void publish(CPU6502 cpu) {
+    long[] counters = this.counters;
+    COUNTERS.setOpaque(counters, CYCLES, cpu.cycles);
+    COUNTERS.setOpaque(counters, INSTRUCTIONS, cpu.instructions);
+    COUNTERS.setOpaque(counters, STALL, cpu.stallCycles);
+    COUNTERS.setOpaque(counters, DMA, cpu.dmaCycles);
+    COUNTERS.setOpaque(counters, NMIS, cpu.nmis);
+    COUNTERS.setOpaque(counters, IRQS, cpu.interrupts - cpu.nmis);
+  }
+
+  // apply resets cpu if requested and returns true if it is paused
+  private synchronized boolean apply(CPU6502 cpu) {
+    if ((this.requests & RESET) != 0) {
+      this.requests &= ~RESET;
+      cpu.reset();
+    }
+    return (this.requests & PAUSE) != 0;
+  }
+
+  private long get(int counter) {
+    return (long) COUNTERS.getOpaque(this.counters, counter);
+  }
+
+  @Override
+  public long getCycles() {
+    return this.get(CYCLES);
+  }
+
+  @Override
+  public long getInstructions() {
+    return this.get(INSTRUCTIONS);
+  }
+
+  @Override
+  public double getSpeedRatio() {
+    long cycles = this.get(CYCLES);
+    long now = System.nanoTime();
+    synchronized (this.sample) {
+      if (now - this.recentNanos >= WINDOW) {
+        this.sampleCycles = this.recentCycles;
+        this.sampleNanos = this.recentNanos;
+        this.recentCycles = cycles;
+        this.recentNanos = now;
+      }
+      long nanos = now - this.sampleNanos;
+      return nanos <= 0 ? 0
+          : (cycles - this.sampleCycles) * 1e9 / nanos / CPU6502.CPUFrequency;
+    }
+  }
+
+  @Override
+  public long getStallCycles() {
+    return this.get(STALL);
+  }
+
+  @Override
+  public long getDMACycles() {
+    return this.get(DMA);
+  }
+
+  @Override
+  public long getNMIs() {
+    return this.get(NMIS);
+  }
+
+  @Override
+  public long getIRQs() {
+    return this.get(IRQS);
+  }
+
+  @Override
+  public boolean isPaused() {
+    return (this.requests & PAUSE) != 0;
+  }
+
+  @Override
+  public synchronized void pause() {
+    this.requests |= PAUSE;
+  }
+
+  @Override
+  public synchronized void resume() {
+    this.requests &= ~PAUSE;
+  }
+
+  // reset resets the CPU at the start of its next run call, paused or not
+  @Override
+  public synchronized void reset() {
+    this.requests |= RESET;
+  }
+}
@@ -0,0 +1,31 @@
+package com.emulation.cpu;
+
+/**
+ * JMX view of a running CPU6502, see CPUMonitor.
+ */
+public interface CPUMonitorMBean {
+
+  long getCycles();
+
+  long getInstructions();
+
+  // getSpeedRatio returns the emulated clock against CPU6502.CPUFrequency
+  // over the last one to two seconds
+  double getSpeedRatio();
+
+  long getStallCycles();
+
+  long getDMACycles();
+
+  long getNMIs();
+
+  long getIRQs();
+
+  boolean isPaused();
+
+  void pause();
+
+  void resume();
+
+  void reset();
+}
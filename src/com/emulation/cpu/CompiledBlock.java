@@ -0,0 +1,12 @@
+package com.emulation.cpu;
+
+/**
+ * A BlockCache block translated to JVM bytecode by Recompiler.
+ */
+interface CompiledBlock {
+
+  // run executes the block on cpu and returns the number of instructions
+  // executed, which is less than block.length when a write invalidated the
+  // block, requested a stall or raised an interrupt
+  public int run(CPU6502 cpu, BlockCache.Block block);
+}
@@ -0,0 +1,21 @@
+package com.emulation.cpu;
+
+/**
+ * Something a device wants done at a given cycle count, see
+ * CPU6502.schedule.
+ */
+public interface CycleEvent {
+  
+  // NMI raises a non-maskable interrupt
+  public static final CycleEvent NMI = (cpu, cycle) -> cpu.triggerNMI();
+  
+  // IRQ raises an interrupt request, ignored while I is set
+  public static final CycleEvent IRQ = (cpu, cycle) -> cpu.triggerIRQ();
+  
+  /**
+   * Called before the first instruction that starts at or after cycle.
+   * cpu.cycles may already be past cycle, so periodic events should schedule
+   * their next occurrence relative to cycle to avoid drift.
+   */
+  public void fire(CPU6502 cpu, long cycle);
+}
@@ -0,0 +1,169 @@
+package com.emulation.cpu;
+
+import com.emulation.cpu.CPU6502.Modes;
+
+/**
+ * Packed 256-entry decode table used by the TABLE dispatch engine.
+ *
+ * Every opcode is described by a single int built from the instructionModes,
+ * instructionSizes, instructionCycles, instructionPageCycles and
+ * instructionNames tables of CPU6502:
+ *
+ * <pre>
+ * bits  0-3   addressing mode (Modes ordinal)
+ * bits  4-5   instruction size in bytes
+ * bits  6-9   base cycles
+ * bit  10     page crossing penalty
+ * bits 16-23  handler index
+ * </pre>
+ */
+final class DecodeTable {
+
+  // addressing modes, in Modes declaration order
+  static final int       ABS   = 0;
+  static final int       ABX   = 1;
+  static final int       ABY   = 2;
+  static final int       ACC   = 3;
+  static final int       IMM   = 4;
+  static final int       IMP   = 5;
+  static final int       IZX   = 6;
+  static final int       IND   = 7;
+  static final int       IZY   = 8;
+  static final int       REL   = 9;
+  static final int       ZPG   = 10;
+  static final int       ZPX   = 11;
+  static final int       ZPY   = 12;
+
+  static final Modes[]   MODES = Modes.values();
+
+  // handler indices, in HANDLERS order
+  static final int       ADC   = 0;
+  static final int       AND   = 1;
+  static final int       ASL   = 2;
+  static final int       BCC   = 3;
+  static final int       BCS   = 4;
+  static final int       BEQ   = 5;
+  static final int       BIT   = 6;
+  static final int       BMI   = 7;
+  static final int       BNE   = 8;
+  static final int       BPL   = 9;
+  static final int       BRK   = 10;
+  static final int       BVC   = 11;
+  static final int       BVS   = 12;
+  static final int       CLC   = 13;
+  static final int       CLD   = 14;
+  static final int       CLI   = 15;
+  static final int       CLV   = 16;
+  static final int       CMP   = 17;
+  static final int       CPX   = 18;
+  static final int       CPY   = 19;
+  static final int       DEC   = 20;
+  static final int       DEX   = 21;
+  static final int       DEY   = 22;
+  static final int       EOR   = 23;
+  static final int       INC   = 24;
+  static final int       INX   = 25;
+  static final int       INY   = 26;
+  static final int       JMP   = 27;
+  static final int       JSR   = 28;
+  static final int       LDA   = 29;
+  static final int       LDX   = 30;
+  static final int       LDY   = 31;
+  static final int       LSR   = 32;
+  static final int       NOP   = 33;
+  static final int       ORA   = 34;
+  static final int       PHA   = 35;
+  static final int       PHP   = 36;
+  static final int       PLA   = 37;
+  static final int       PLP   = 38;
+  static final int       ROL   = 39;
+  static final int       ROR   = 40;
+  static final int       RTI   = 41;
+  static final int       RTS   = 42;
+  static final int       SBC   = 43;
+  static final int       SEC   = 44;
+  static final int       SED   = 45;
+  static final int       SEI   = 46;
+  static final int       STA   = 47;
+  static final int       STX   = 48;
+  static final int       STY   = 49;
+  static final int       TAX   = 50;
+  static final int       TAY   = 51;
+  static final int       TSX   = 52;
+  static final int       TXA   = 53;
+  static final int       TXS   = 54;
+  static final int       TYA   = 55;
+  // illegal opcodes below
+  static final int       AHX   = 56;
+  static final int       ALR   = 57;
+  static final int       ANC   = 58;
+  static final int       ARR   = 59;
+  static final int       AXS   = 60;
+  static final int       DCP   = 61;
+  static final int       ISC   = 62;
+  static final int       KIL   = 63;
+  static final int       LAS   = 64;
+  static final int       LAX   = 65;
+  static final int       RLA   = 66;
+  static final int       RRA   = 67;
+  static final int       SAX   = 68;
+  static final int       SHX   = 69;
+  static final int       SHY   = 70;
+  static final int       SLO   = 71;
+  static final int       SRE   = 72;
+  static final int       TAS   = 73;
+  static final int       XAA   = 74;
+
+  static final String[]  HANDLERS = { "ADC", "AND", "ASL", "BCC", "BCS",
+      "BEQ", "BIT", "BMI", "BNE", "BPL", "BRK", "BVC", "BVS", "CLC", "CLD",
+      "CLI", "CLV", "CMP", "CPX", "CPY", "DEC", "DEX", "DEY", "EOR", "INC",
+      "INX", "INY", "JMP", "JSR", "LDA", "LDX", "LDY", "LSR", "NOP", "ORA",
+      "PHA", "PHP", "PLA", "PLP", "ROL", "ROR", "RTI", "RTS", "SBC", "SEC",
+      "SED", "SEI", "STA", "STX", "STY", "TAX", "TAY", "TSX", "TXA", "TXS",
+      "TYA", "AHX", "ALR", "ANC", "ARR", "AXS", "DCP", "ISC", "KIL", "LAS",
+      "LAX", "RLA", "RRA", "SAX", "SHX", "SHY", "SLO", "SRE", "TAS", "XAA" };
+
+  static final int[]     ENTRIES  = new int[256];
+
+  static {
+    for (int op = 0; op < 256; op++) {
+      int handler = handlerIndex(CPU6502.instructionNames[op]);
+      ENTRIES[op] = CPU6502.instructionModes[op].ordinal()
+          | (CPU6502.instructionSizes[op] << 4)
+          | (CPU6502.instructionCycles[op] << 6)
+          | (CPU6502.instructionPageCycles[op] << 10) | (handler << 16);
+    }
+  }
+
+  private DecodeTable() {
+  }
+
+  static int handlerIndex(String name) {
+    for (int i = 0; i < HANDLERS.length; i++) {
+      if (HANDLERS[i].equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("unknown instruction " + name);
+  }
+
+  static int mode(int entry) {
+    return entry & 0xf;
+  }
+
+  static int size(int entry) {
+    return (entry >> 4) & 0x3;
+  }
+
+  static int cycles(int entry) {
+    return (entry >> 6) & 0xf;
+  }
+
+  static int pageCycles(int entry) {
+    return (entry >> 10) & 0x1;
+  }
+
+  static int handler(int entry) {
+    return entry >>> 16;
+  }
+}
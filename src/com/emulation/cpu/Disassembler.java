@@ -0,0 +1,291 @@
+package com.emulation.cpu;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.stream.IntStream;
+
+import com.emulation.cpu.CPU6502.Modes;
+
+/**
+ * Disassembles memory or a ROM image into listing lines such as
+ *
+ * <pre>
+ * 8003  69 07     ADC #$07
+ * 800C  D0 F5     BNE $8003
+ * </pre>
+ *
+ * with operands in the syntax read by Assembler. Opcodes the CPU does not
+ * implement are listed as .byte. Each line is built in a char buffer owned
+ * by the Disassembler and copied into the output, so ByteBuffers, Writers
+ * and StringBuilders are written without allocating. A Disassembler is not
+ * thread-safe; parallel() splits a ROM between several of them.
+ */
+public class Disassembler {
+
+  // longest line, newline included
+  public static final int       MAX_LINE = 32;
+
+  private static final char[]   HEX      = "0123456789ABCDEF"
+      .toCharArray();
+  private static final char[][] NAMES    = new char[0x100][];
+
+  static {
+    for (int op = 0; op < 0x100; op++) {
+      NAMES[op] = CPU6502.instructionNames[op].toCharArray();
+    }
+  }
+
+  private final CPUMemMapper    m;
+  private final ByteBuffer      rom;
+  private final int             base;
+
+  private final char[]          line     = new char[MAX_LINE];
+  private final CharBuffer      chars    = CharBuffer.wrap(this.line);
+
+  // Disassembler reads m through peek, so devices see no reads
+  public Disassembler(CPUMemMapper m) {
+    this.m = m;
+    this.rom = null;
+    this.base = 0;
+  }
+
+  // Disassembler reads rom as if mapped at base; other addresses read 0
+  public Disassembler(RomImage rom, int base) {
+    this.m = null;
+    this.rom = rom.buffer();
+    this.base = base;
+  }
+
+  // length returns the number of bytes taken by the instruction opcode,
+  // 1 for the opcodes listed as .byte
+  public static int length(int opcode) {
+    return Math.max(1, CPU6502.instructionSizes[opcode & 0xff]);
+  }
+
+  /**
+   * Write the line of the instruction at address into out.
+   *
+   * @return address of the next instruction
+   */
+  public int line(int address, Appendable out) throws IOException {
+    int n = this.format(address & 0xffff);
+    if (out instanceof Writer) {
+      ((Writer) out).write(this.line, 0, n);
+    } else if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(this.line, 0, n);
+    } else {
+      out.append(this.chars, 0, n);
+    }
+    return address + length(this.read(address));
+  }
+
+  // line writes the instruction at address into out as ASCII, which needs
+  // at most MAX_LINE bytes, and returns the address of the next instruction
+  public int line(int address, ByteBuffer out) {
+    int n = this.format(address & 0xffff);
+    for (int i = 0; i < n; i++) {
+      out.put((byte) this.line[i]);
+    }
+    return address + length(this.read(address));
+  }
+
+  /**
+   * Write every instruction starting from start up to end, exclusive, into
+   * out. The last one may extend past end.
+   *
+   * @return address after the last instruction written
+   */
+  public int range(int start, int end, Appendable out) throws IOException {
+    int address = start;
+    while (address < end) {
+      address = this.line(address, out);
+    }
+    return address;
+  }
+
+  /**
+   * Write the instructions from start up to end into out, or as many as fit
+   * with MAX_LINE bytes to spare. Call again from the returned address after
+   * draining out to continue.
+   *
+   * @return address after the last instruction written
+   */
+  public int range(int start, int end, ByteBuffer out) {
+    int address = start;
+    while (address < end && out.remaining() >= MAX_LINE) {
+      address = this.line(address, out);
+    }
+    return address;
+  }
+
+  /**
+   * Disassemble the whole of rom, mapped at base, on the common ForkJoinPool
+   * in parts pieces, and return the listing as ASCII. The result is the same
+   * as a single range(): a pass over the opcodes alone finds the instruction
+   * each piece starts with before the pieces are formatted.
+   */
+  public static byte[] parallel(RomImage rom, int base, int parts) {
+    if (parts < 1) {
+      throw new IllegalArgumentException("parts " + parts);
+    }
+    ByteBuffer data = rom.buffer();
+    int size = rom.size();
+    int[] starts = new int[parts + 1];
+    int offset = 0;
+    for (int part = 1; part <= parts; part++) {
+      int split = (int) ((long) size * part / parts);
+      while (offset < split) {
+        offset += length(data.get(offset));
+      }
+      starts[part] = Math.min(offset, size);
+    }
+    starts[parts] = size;
+
+    ByteBuffer[] listings = new ByteBuffer[parts];
+    IntStream.range(0, parts).parallel().forEach(part -> {
+      int length = starts[part + 1] - starts[part];
+      ByteBuffer out = ByteBuffer.allocate(length * MAX_LINE);
+      new Disassembler(rom, base).range(base + starts[part],
+          base + starts[part + 1], out);
+      listings[part] = out.flip();
+    });
+    int total = 0;
+    for (ByteBuffer listing : listings) {
+      total += listing.remaining();
+    }
+    ByteBuffer all = ByteBuffer.allocate(total);
+    for (ByteBuffer listing : listings) {
+      all.put(listing);
+    }
+    return all.array();
+  }
+
+  private int read(int address) {
+    address &= 0xffff;
+    if (this.rom == null) {
+      return this.m.peek(address) & 0xff;
+    }
+    int offset = address - this.base;
+    if (offset < 0 || offset >= this.rom.capacity()) {
+      return 0;
+    }
+    return this.rom.get(offset) & 0xff;
+  }
+
+  // format builds the line of the instruction at address, returns its length
+  private int format(int address) {
+    char[] b = this.line;
+    int opcode = this.read(address);
+    int size = CPU6502.instructionSizes[opcode];
+    int lo = size > 1 ? this.read(address + 1) : 0;
+    int hi = size > 2 ? this.read(address + 2) : 0;
+
+    int pos = hex4(b, 0, address);
+    b[pos++] = ' ';
+    b[pos++] = ' ';
+    for (int i = 0; i < 3; i++) {
+      if (i < Math.max(size, 1)) {
+        pos = hex2(b, pos, i == 0 ? opcode : i == 1 ? lo : hi);
+      } else {
+        b[pos++] = ' ';
+        b[pos++] = ' ';
+      }
+      b[pos++] = ' ';
+    }
+    b[pos++] = ' ';
+
+    if (size == 0) {
+      pos = text(b, pos, ".byte $");
+      pos = hex2(b, pos, opcode);
+      b[pos++] = '\n';
+      return pos;
+    }
+    char[] name = NAMES[opcode];
+    System.arraycopy(name, 0, b, pos, name.length);
+    pos += name.length;
+    Modes mode = CPU6502.instructionModes[opcode];
+    if (mode != Modes.imp) {
+      b[pos++] = ' ';
+    }
+    switch (mode) {
+      case imp:
+        break;
+      case acc:
+        b[pos++] = 'A';
+        break;
+      case imm:
+        b[pos++] = '#';
+        b[pos++] = '$';
+        pos = hex2(b, pos, lo);
+        break;
+      case zpg:
+      case zpx:
+      case zpy:
+        b[pos++] = '$';
+        pos = hex2(b, pos, lo);
+        pos = index(b, pos, mode == Modes.zpx ? 'X' : mode == Modes.zpy ? 'Y'
+            : 0);
+        break;
+      case abs:
+      case abx:
+      case aby:
+        b[pos++] = '$';
+        pos = hex4(b, pos, hi << 8 | lo);
+        pos = index(b, pos, mode == Modes.abx ? 'X' : mode == Modes.aby ? 'Y'
+            : 0);
+        break;
+      case ind:
+        b[pos++] = '(';
+        b[pos++] = '$';
+        pos = hex4(b, pos, hi << 8 | lo);
+        b[pos++] = ')';
+        break;
+      case izx:
+        b[pos++] = '(';
+        b[pos++] = '$';
+        pos = hex2(b, pos, lo);
+        pos = text(b, pos, ",X)");
+        break;
+      case izy:
+        b[pos++] = '(';
+        b[pos++] = '$';
+        pos = hex2(b, pos, lo);
+        pos = text(b, pos, "),Y");
+        break;
+      case rel:
+        b[pos++] = '$';
+        pos = hex4(b, pos, (address + 2 + (byte) lo) & 0xffff);
+        break;
+      default:
+        break;
+    }
+    b[pos++] = '\n';
+    return pos;
+  }
+
+  private static int index(char[] b, int pos, char register) {
+    if (register != 0) {
+      b[pos++] = ',';
+      b[pos++] = register;
+    }
+    return pos;
+  }
+
+  private static int text(char[] b, int pos, String s) {
+    s.getChars(0, s.length(), b, pos);
+    return pos + s.length();
+  }
+
+  private static int hex2(char[] b, int pos, int value) {
+    b[pos] = HEX[(value >> 4) & 0xf];
+    b[pos + 1] = HEX[value & 0xf];
+    return pos + 2;
+  }
+
+  private static int hex4(char[] b, int pos, int value) {
+    hex2(b, pos, value >> 8);
+    return hex2(b, pos + 2, value);
+  }
+}
@@ -0,0 +1,156 @@
+package com.emulation.cpu;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of CycleEvents keyed on their cycle count. Events due at
+ * the same cycle come out in the order they were added.
+ */
+final class EventQueue {
+
+  private long[]       cycles = new long[16];
+  // insertion order, breaks ties between equal cycles
+  private long[]       order  = new long[16];
+  private CycleEvent[] events = new CycleEvent[16];
+  private int          size;
+  private long         added;
+
+  int size() {
+    return this.size;
+  }
+
+  // next returns the cycle of the earliest event, or Long.MAX_VALUE
+  long next() {
+    return this.size == 0 ? Long.MAX_VALUE : this.cycles[0];
+  }
+
+  void add(long cycle, CycleEvent event) {
+    if (this.size == this.cycles.length) {
+      int n = this.size * 2;
+      this.cycles = Arrays.copyOf(this.cycles, n);
+      this.order = Arrays.copyOf(this.order, n);
+      this.events = Arrays.copyOf(this.events, n);
+    }
+    int i = this.size++;
+    long order = this.added++;
+    // sift up
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      if (!this.before(cycle, order, parent)) {
+        break;
+      }
+      this.move(parent, i);
+      i = parent;
+    }
+    this.set(i, cycle, order, event);
+  }
+
+  // poll removes and returns the earliest event
+  CycleEvent poll() {
+    CycleEvent event = this.events[0];
+    this.removeAt(0);
+    return event;
+  }
+
+  // remove removes every pending occurrence of event, returns true if there
+  // was one
+  boolean remove(CycleEvent event) {
+    int n = 0;
+    for (int i = 0; i < this.size; i++) {
+      if (this.events[i] != event) {
+        this.move(i, n++);
+      }
+    }
+    if (n == this.size) {
+      return false;
+    }
+    Arrays.fill(this.events, n, this.size, null);
+    this.size = n;
+    // rebuild the heap bottom up
+    for (int i = (n >> 1) - 1; i >= 0; i--) {
+      this.siftDown(i, this.cycles[i], this.order[i], this.events[i]);
+    }
+    return true;
+  }
+
+  // copy returns a queue holding the same events in the same order
+  EventQueue copy() {
+    EventQueue copy = new EventQueue();
+    copy.copyFrom(this);
+    return copy;
+  }
+
+  // copyFrom replaces the events of this queue with those of queue
+  void copyFrom(EventQueue queue) {
+    int n = Math.max(16, queue.size);
+    this.cycles = Arrays.copyOf(queue.cycles, n);
+    this.order = Arrays.copyOf(queue.order, n);
+    this.events = Arrays.copyOf(queue.events, n);
+    this.size = queue.size;
+    this.added = queue.added;
+  }
+
+  void clear() {
+    Arrays.fill(this.events, 0, this.size, null);
+    this.size = 0;
+  }
+
+  private void removeAt(int i) {
+    int last = --this.size;
+    long cycle = this.cycles[last];
+    long order = this.order[last];
+    CycleEvent event = this.events[last];
+    this.events[last] = null;
+    if (i == last) {
+      return;
+    }
+    // the last entry may have to go up or down from i
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      if (!this.before(cycle, order, parent)) {
+        break;
+      }
+      this.move(parent, i);
+      i = parent;
+    }
+    this.siftDown(i, cycle, order, event);
+  }
+
+  // siftDown puts the entry at or below i, moving smaller children up
+  private void siftDown(int i, long cycle, long order, CycleEvent event) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= this.size) {
+        break;
+      }
+      if (child + 1 < this.size && this.before(this.cycles[child + 1],
+          this.order[child + 1], child)) {
+        child++;
+      }
+      if (!this.before(this.cycles[child], this.order[child], cycle, order)) {
+        break;
+      }
+      this.move(child, i);
+      i = child;
+    }
+    this.set(i, cycle, order, event);
+  }
+
+  private boolean before(long cycle, long order, int i) {
+    return this.before(cycle, order, this.cycles[i], this.order[i]);
+  }
+
+  private boolean before(long cycle, long order, long cycle2, long order2) {
+    return cycle < cycle2 || cycle == cycle2 && order < order2;
+  }
+
+  private void move(int from, int to) {
+    this.set(to, this.cycles[from], this.order[from], this.events[from]);
+  }
+
+  private void set(int i, long cycle, long order, CycleEvent event) {
+    this.cycles[i] = cycle;
+    this.order[i] = order;
+    this.events[i] = event;
+  }
+}
@@ -0,0 +1,310 @@
+package com.emulation.cpu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs many independent machines across all cores.
+ *
+ * Every machine is advanced in slices of a fixed number of cycles. A slice
+ * is a task on a ForkJoinPool in async mode; when it ends, it queues the next
+ * slice of the same machine on the pool, so idle workers steal machines from
+ * busy ones and every machine gets its turn. A machine is only ever touched
+ * by the task running its current slice, and its results are plain fields
+ * published when the run ends, so the only shared state is one latch counted
+ * down once per machine.
+ *
+ * The pool is started with the fleet and reused by every run; close the
+ * fleet to stop its threads. A machine paused through its CPUMonitor ends
+ * its part of the run without holding a worker, and is run again by the
+ * next run once resumed.
+ */
+public class Fleet implements AutoCloseable {
+
+  /**
+   * One CPU with its own mapper, and the results of the last run.
+   */
+  public static final class Machine {
+    private final CPU6502       cpu;
+    private final StopCondition stop;
+
+    private long                cycles;
+    private long                nanos;
+    private boolean             stopped;
+    private boolean             paused;
+    private Throwable           failure;
+
+    Machine(CPU6502 cpu, StopCondition stop) {
+      this.cpu = cpu;
+      this.stop = stop;
+    }
+
+    public CPU6502 getCPU() {
+      return this.cpu;
+    }
+
+    // getCycles returns the cycles run in the last run, stall included
+    public long getCycles() {
+      return this.cycles;
+    }
+
+    // getNanos returns the time spent running this machine in the last run
+    public long getNanos() {
+      return this.nanos;
+    }
+
+    // isStopped returns true if the stop condition ended the last run
+    public boolean isStopped() {
+      return this.stopped;
+    }
+
+    // isPaused returns true if a pause of the CPU ended the last run
+    public boolean isPaused() {
+      return this.paused;
+    }
+
+    // getFailure returns the exception or error that ended the last run, or
+    // null
+    public Throwable getFailure() {
+      return this.failure;
+    }
+  }
+
+  /**
+   * Totals of one run.
+   */
+  public static final class Report {
+    private final long cycles;
+    private final long nanos;
+    private final int  stopped;
+    private final int  paused;
+    private final int  failed;
+
+    Report(long cycles, long nanos, int stopped, int paused, int failed) {
+      this.cycles = cycles;
+      this.nanos = nanos;
+      this.stopped = stopped;
+      this.paused = paused;
+      this.failed = failed;
+    }
+
+    // getCycles returns the cycles run by all machines together
+    public long getCycles() {
+      return this.cycles;
+    }
+
+    // getNanos returns the wall clock time of the run
+    public long getNanos() {
+      return this.nanos;
+    }
+
+    public int getStopped() {
+      return this.stopped;
+    }
+
+    public int getPaused() {
+      return this.paused;
+    }
+
+    public int getFailed() {
+      return this.failed;
+    }
+
+    // getMHz returns the emulated cycles per microsecond of wall clock time
+    public double getMHz() {
+      return this.nanos == 0 ? 0 : this.cycles * 1000.0 / this.nanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d cycles in %.3f ms, %.1f MHz, %d stopped, %d paused, %d failed",
+          this.cycles, this.nanos / 1e6, this.getMHz(), this.stopped,
+          this.paused, this.failed);
+    }
+  }
+
+  private final List<Machine> machines = new ArrayList<>();
+  private final ForkJoinPool  pool;
+
+  // Fleet runs on all available processors
+  public Fleet() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public Fleet(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism " + parallelism);
+    }
+    this.pool = new ForkJoinPool(parallelism,
+        ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+  }
+
+  /**
+   * Add a machine. cpu and its mapper must not be shared with any other
+   * machine, apart from read-only data such as a RomImage.
+   */
+  public Machine add(CPU6502 cpu) {
+    return this.add(cpu, null);
+  }
+
+  /**
+   * Add a machine that stops early once stop is reached. stop is checked
+   * before every instruction, see CPU6502.runUntil.
+   */
+  public Machine add(CPU6502 cpu, StopCondition stop) {
+    Machine machine = new Machine(cpu, stop);
+    this.machines.add(machine);
+    return machine;
+  }
+
+  public List<Machine> getMachines() {
+    return Collections.unmodifiableList(this.machines);
+  }
+
+  /**
+   * Run every machine for budget cycles, or until its stop condition is
+   * reached, in slices of quantum cycles. Like runCycles, a slice may
+   * overrun by part of an instruction or a compiled block. If the calling
+   * thread is interrupted, every machine stops after its current slice and
+   * run throws InterruptedException once they all have.
+   */
+  public Report run(long budget, long quantum) throws InterruptedException {
+    if (quantum < 1) {
+      throw new IllegalArgumentException("quantum " + quantum);
+    }
+    if (this.pool.isShutdown()) {
+      throw new IllegalStateException("fleet is closed");
+    }
+    Slice.Run run = new Slice.Run(this.pool, this.machines.size());
+    long start = System.nanoTime();
+    for (Machine machine : this.machines) {
+      machine.cycles = 0;
+      machine.nanos = 0;
+      machine.stopped = false;
+      machine.paused = false;
+      machine.failure = null;
+      new Slice(machine, budget, quantum, run).queue();
+    }
+    try {
+      run.done.await();
+    } catch (InterruptedException e) {
+      // the machines must not be touched by slices of this run any more
+      run.cancelled = true;
+      boolean done = false;
+      while (!done) {
+        try {
+          run.done.await();
+          done = true;
+        } catch (InterruptedException again) {
+          // keep waiting, the slices end within a quantum
+        }
+      }
+      throw e;
+    }
+    long nanos = System.nanoTime() - start;
+
+    // the latch makes the machine fields written by the slices visible here
+    long cycles = 0;
+    int stopped = 0;
+    int paused = 0;
+    int failed = 0;
+    for (Machine machine : this.machines) {
+      cycles += machine.cycles;
+      if (machine.stopped) {
+        stopped++;
+      }
+      if (machine.paused) {
+        paused++;
+      }
+      if (machine.failure != null) {
+        failed++;
+      }
+    }
+    return new Report(cycles, nanos, stopped, paused, failed);
+  }
+
+  /**
+   * Stop the worker threads. Slices of a run still in progress are
+   * abandoned, so close the fleet only between runs.
+   */
+  @Override
+  public void close() {
+    this.pool.shutdownNow();
+  }
+
+  // Slice runs one quantum of a machine and queues the next one
+  private static final class Slice implements Runnable {
+
+    // Run is the state shared by the slices of one run
+    static final class Run {
+      final ForkJoinPool   pool;
+      final CountDownLatch done;
+      volatile boolean     cancelled;
+
+      Run(ForkJoinPool pool, int machines) {
+        this.pool = pool;
+        this.done = new CountDownLatch(machines);
+      }
+    }
+
+    private final Machine machine;
+    private final long    budget;
+    private final long    quantum;
+    private final Run     run;
+
+    Slice(Machine machine, long budget, long quantum, Run run) {
+      this.machine = machine;
+      this.budget = budget;
+      this.quantum = quantum;
+      this.run = run;
+    }
+
+    // queue runs the slice on the pool, or fails the machine if the fleet
+    // was closed
+    void queue() {
+      try {
+        this.run.pool.execute(this);
+      } catch (RejectedExecutionException e) {
+        this.machine.failure = e;
+        this.run.done.countDown();
+      }
+    }
+
+    @Override
+    public void run() {
+      Machine machine = this.machine;
+      long start = System.nanoTime();
+      // anything thrown ends the machine, even an Error from the JIT
+      boolean finished = true;
+      try {
+        if (!this.run.cancelled) {
+          long n = Math.min(this.quantum, this.budget - machine.cycles);
+          long cycles = machine.stop == null
+              ? n + machine.cpu.runCycles(n)
+              : machine.cpu.runUntil(machine.stop, n);
+          machine.cycles += cycles;
+          // run calls return at once while paused, and runUntil returns
+          // early when the condition is reached
+          machine.paused = cycles == 0 && machine.cpu.isPaused();
+          machine.stopped = !machine.paused && cycles < n;
+          finished = machine.stopped || machine.paused
+              || machine.cycles >= this.budget;
+        }
+      } catch (Throwable e) {
+        machine.failure = e;
+      } finally {
+        machine.nanos += System.nanoTime() - start;
+        if (finished) {
+          this.run.done.countDown();
+        } else {
+          this.queue();
+        }
+      }
+    }
+  }
+}
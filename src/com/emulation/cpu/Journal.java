@@ -0,0 +1,284 @@
+package com.emulation.cpu;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Records interrupts and input written by the host with the cycle count at
+ * which they happened, and replays them at exactly the same cycle counts.
+ *
+ * A host records by calling triggerNMI, triggerIRQ and write on a Recorder
+ * instead of the CPU. A Player runs the CPU from the same starting state and
+ * stops before the first instruction starting at or after each recorded
+ * cycle count to inject the event, so the replay does not depend on how the
+ * recording host split its runs. Checkpoints store a hash of the registers
+ * and are verified on replay.
+ *
+ * The stream starts with the magic "J652" and the starting cycle count as 8
+ * bytes little endian, followed by records:
+ *
+ * <pre>
+ * size  field
+ *    1  kind (0 end, 1 NMI, 2 IRQ, 3 write, 4 checkpoint)
+ *  1-9  cycles since the previous record, unsigned LEB128
+ *    3  write only: address (2 bytes little endian), value
+ *    4  checkpoint only: hash, little endian
+ * </pre>
+ */
+public final class Journal {
+
+  public static final int  MAGIC      = 0x3235364a;
+
+  static final byte        END        = 0;
+  static final byte        NMI        = 1;
+  static final byte        IRQ        = 2;
+  static final byte        WRITE      = 3;
+  static final byte        CHECKPOINT = 4;
+
+  private static final int BUFFER     = 4096;
+
+  private Journal() {
+  }
+
+  // hash returns a hash of the registers, flags and cycle count of cpu
+  public static int hash(CPU6502 cpu) {
+    long h = cpu.getPC();
+    h = h * 31 + (cpu.getSP() & 0xff);
+    h = h * 31 + (cpu.getA() & 0xff);
+    h = h * 31 + (cpu.getX() & 0xff);
+    h = h * 31 + (cpu.getY() & 0xff);
+    h = h * 31 + (cpu.getStatus() & 0xff);
+    h = h * 31 + cpu.cycles;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Writes a journal while passing the events on to the CPU.
+   */
+  public static final class Recorder implements Flushable, Closeable {
+    private final CPU6502             cpu;
+    private final WritableByteChannel out;
+    private final ByteBuffer          buf;
+    // cycle count of the previous record
+    private long                      last;
+
+    public Recorder(CPU6502 cpu, WritableByteChannel out) {
+      this.cpu = cpu;
+      this.out = out;
+      this.buf = ByteBuffer.allocate(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+      this.last = cpu.cycles;
+      this.buf.putInt(MAGIC);
+      this.buf.putLong(this.last);
+    }
+
+    public void triggerNMI() {
+      this.record(NMI);
+      this.cpu.triggerNMI();
+    }
+
+    // triggerIRQ is recorded even when I is set, the replay ignores it the
+    // same way
+    public void triggerIRQ() {
+      this.record(IRQ);
+      this.cpu.triggerIRQ();
+    }
+
+    // write writes value to address through the CPU, for input devices
+    public void write(int address, int value) {
+      this.record(WRITE);
+      this.buf.putShort((short) address);
+      this.buf.put((byte) value);
+      this.cpu.write(address, value);
+    }
+
+    // checkpoint records the hash of the CPU state for the replay to verify
+    public void checkpoint() {
+      this.record(CHECKPOINT);
+      this.buf.putInt(hash(this.cpu));
+    }
+
+    // record starts a record, leaving room for the largest payload
+    private void record(byte kind) {
+      if (this.buf.remaining() < 1 + 10 + 4) {
+        this.drain();
+      }
+      long delta = this.cpu.cycles - this.last;
+      this.last = this.cpu.cycles;
+      this.buf.put(kind);
+      while ((delta & ~0x7fL) != 0) {
+        this.buf.put((byte) (delta | 0x80));
+        delta >>>= 7;
+      }
+      this.buf.put((byte) delta);
+    }
+
+    private void drain() {
+      this.buf.flip();
+      try {
+        while (this.buf.hasRemaining()) {
+          this.out.write(this.buf);
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("journal write failed", e);
+      }
+      this.buf.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      this.drain();
+    }
+
+    // close ends the journal and closes the channel
+    @Override
+    public void close() throws IOException {
+      this.record(END);
+      this.flush();
+      this.out.close();
+    }
+  }
+
+  /**
+   * Runs a CPU while injecting the events of a journal at their cycle counts.
+   */
+  public static final class Player {
+    private final CPU6502             cpu;
+    private final ReadableByteChannel in;
+    private final ByteBuffer          buf;
+    private final StopCondition       due;
+
+    // next record, kind END once the journal is exhausted
+    private byte                      kind;
+    private long                      cycles;
+    private long                      events;
+
+    /**
+     * Replay the journal read from in. cpu must be in the state the recording
+     * started from, such as a restored snapshot.
+     */
+    public Player(CPU6502 cpu, ReadableByteChannel in) {
+      this.cpu = cpu;
+      this.in = in;
+      this.buf = ByteBuffer.allocate(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+      this.buf.flip();
+      this.due = c -> c.cycles >= this.cycles;
+      this.fill(12);
+      if (this.buf.getInt() != MAGIC) {
+        throw new IllegalArgumentException("not a journal");
+      }
+      this.cycles = this.buf.getLong();
+      if (this.cycles != cpu.cycles) {
+        throw new IllegalStateException("journal starts at cycle "
+            + this.cycles + ", the CPU is at " + cpu.cycles);
+      }
+      this.next();
+    }
+
+    /**
+     * Run until at least budget cycles have elapsed, like CPU6502.runCycles,
+     * injecting every event whose cycle count is reached. While events are
+     * pending the CPU runs through runUntil, one instruction at a time.
+     * Returns early while the CPU is paused.
+     *
+     * @return number of cycles executed beyond budget
+     */
+    public long runCycles(long budget) {
+      long done = 0;
+      while (done < budget) {
+        if (this.kind == END) {
+          return this.cpu.runCycles(budget - done);
+        }
+        // an event recorded while stall cycles were pending only took effect
+        // at the next instruction, so drain them first like runUntil does
+        if (this.cpu.cycles >= this.cycles && this.cpu.stall == 0) {
+          this.inject();
+          this.next();
+        } else {
+          long cycles = this.cpu.runUntil(this.due, budget - done);
+          if (cycles == 0) {
+            // paused, the condition was not reached yet
+            break;
+          }
+          done += cycles;
+        }
+      }
+      return done - budget;
+    }
+
+    // isDone returns true once every event has been injected
+    public boolean isDone() {
+      return this.kind == END;
+    }
+
+    // getEvents returns the number of events injected so far
+    public long getEvents() {
+      return this.events;
+    }
+
+    private void inject() {
+      switch (this.kind) {
+        case NMI:
+          this.cpu.triggerNMI();
+          break;
+        case IRQ:
+          this.cpu.triggerIRQ();
+          break;
+        case WRITE:
+          int address = this.buf.getShort() & 0xffff;
+          this.cpu.write(address, this.buf.get() & 0xff);
+          break;
+        case CHECKPOINT:
+          if (this.buf.getInt() != hash(this.cpu)) {
+            throw new IllegalStateException(
+                "replay does not match the checkpoint at cycle " + this.cycles);
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("bad journal record "
+              + this.kind);
+      }
+      this.events++;
+    }
+
+    // next reads the kind and cycle count of the next record, and makes its
+    // payload available in buf
+    private void next() {
+      this.fill(1 + 10 + 4);
+      if (!this.buf.hasRemaining()) {
+        throw new IllegalArgumentException(
+            "journal ends without an end record");
+      }
+      this.kind = this.buf.get();
+      long delta = 0;
+      for (int shift = 0;; shift += 7) {
+        byte b = this.buf.get();
+        delta |= (long) (b & 0x7f) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      this.cycles += delta;
+    }
+
+    // fill reads until buf holds at least n bytes or the stream ends
+    private void fill(int n) {
+      if (this.buf.remaining() >= n) {
+        return;
+      }
+      this.buf.compact();
+      try {
+        while (this.buf.position() < n && this.in.read(this.buf) >= 0) {
+          continue;
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("journal read failed", e);
+      }
+      this.buf.flip();
+    }
+  }
+}
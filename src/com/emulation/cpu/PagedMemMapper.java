@@ -0,0 +1,424 @@
+package com.emulation.cpu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory mapper that splits the 64K address space into 256 pages of 256
+ * bytes.
+ *
+ * Every page is either RAM, ROM, I/O or unmapped. RAM and ROM pages are
+ * windows into caller-supplied byte arrays, so an access costs two array
+ * loads and no comparisons. ROM pages can also be windows into a shared
+ * RomImage, which costs one more check. I/O pages pass the access on to a
+ * device, which is itself a CPUMemMapper and receives the full 16 bit
+ * address; peek() goes to the device's peek(). Unmapped pages read as 0 and
+ * ignore writes, and so do writes to ROM.
+ *
+ * Pages can be remapped at any time, for example to switch ROM banks from an
+ * I/O write. CPU6502 reads and writes through this class without an interface
+ * call when it is given one.
+ *
+ * snapshot() and fork() share RAM pages copy-on-write: they copy the page
+ * tables only, and a shared page is copied the first time it is written, by
+ * whichever mapper writes it. From then on the arrays passed to mapRAM no
+ * longer see writes to those pages. I/O devices are shared, not copied.
+ */
+public final class PagedMemMapper implements CPUMemMapper {
+
+  public static final int      PAGE_SIZE = 0x100;
+  public static final int      PAGES     = 0x100;
+
+  // backing store of unmapped pages
+  private static final byte[]  OPEN      = new byte[PAGE_SIZE];
+
+  // per page: array and offset of its first byte, null for I/O and RomImage
+  // pages
+  private final byte[][]       readData  = new byte[PAGES][];
+  private final int[]          readBase  = new int[PAGES];
+  // per page: array and offset of its first byte, null unless RAM
+  private final byte[][]       writeData = new byte[PAGES][];
+  private final int[]          writeBase = new int[PAGES];
+  // per page: RomImage buffer and offset of its first byte, null otherwise
+  private final ByteBuffer[]   romData   = new ByteBuffer[PAGES];
+  private final int[]          romBase   = new int[PAGES];
+  // per page: device of I/O pages, null otherwise
+  private final CPUMemMapper[] devices   = new CPUMemMapper[PAGES];
+  // per page: true for RAM pages shared with a snapshot or another mapper,
+  // which have no writeData until they are copied
+  private final boolean[]      shared    = new boolean[PAGES];
+
+  // RAM pages copied since the last snapshot or restore
+  private int                  dirty;
+
+  // block cache to invalidate when pages are remapped
+  private BlockCache           cache;
+
+  /**
+   * Page tables of a PagedMemMapper at one point in time. The RAM pages it
+   * refers to are never written again, so a Snapshot can be restored any
+   * number of times, into any mapper, from any thread.
+   */
+  public static final class Snapshot {
+    private final byte[][]       data;
+    private final int[]          base;
+    private final boolean[]      ram;
+    private final ByteBuffer[]   romData;
+    private final int[]          romBase;
+    private final CPUMemMapper[] devices;
+    private final int            dirty;
+
+    Snapshot(PagedMemMapper m) {
+      this.data = m.readData.clone();
+      this.base = m.readBase.clone();
+      this.ram = new boolean[PAGES];
+      for (int i = 0; i < PAGES; i++) {
+        this.ram[i] = m.writeData[i] != null || m.shared[i];
+      }
+      this.romData = m.romData.clone();
+      this.romBase = m.romBase.clone();
+      this.devices = m.devices.clone();
+      this.dirty = m.dirty;
+    }
+
+    // getDirtyPages returns the number of RAM pages written between the
+    // previous snapshot or restore of the same mapper and this snapshot,
+    // which are the pages this snapshot does not share with the previous one
+    public int getDirtyPages() {
+      return this.dirty;
+    }
+
+    // changedPages returns the number of RAM pages of this snapshot that it
+    // does not share with previous, a snapshot of the same mapper, however
+    // many snapshots were taken in between
+    int changedPages(Snapshot previous) {
+      int n = 0;
+      for (int i = 0; i < PAGES; i++) {
+        if (this.ram[i] && (this.data[i] != previous.data[i]
+            || this.base[i] != previous.base[i])) {
+          n++;
+        }
+      }
+      return n;
+    }
+  }
+
+  public PagedMemMapper() {
+    this.unmap(0, PAGES);
+  }
+
+  private PagedMemMapper(Snapshot snapshot) {
+    this.restore(snapshot);
+  }
+
+  /**
+   * Map pages starting at page to data, starting at offset. Reads and writes
+   * go straight to data. Mapping the same array more than once mirrors it.
+   */
+  public void mapRAM(int page, int pages, byte[] data, int offset) {
+    this.check(page, pages);
+    this.checkData(pages, data, offset);
+    for (int i = 0; i < pages; i++) {
+      int base = offset + i * PAGE_SIZE;
+      this.readData[page + i] = data;
+      this.readBase[page + i] = base;
+      this.writeData[page + i] = data;
+      this.writeBase[page + i] = base;
+      this.romData[page + i] = null;
+      this.devices[page + i] = null;
+      this.shared[page + i] = false;
+    }
+    this.remapped(page, pages);
+  }
+
+  /**
+   * Map pages starting at page to data, starting at offset. Writes are
+   * ignored.
+   */
+  public void mapROM(int page, int pages, byte[] data, int offset) {
+    this.check(page, pages);
+    this.checkData(pages, data, offset);
+    for (int i = 0; i < pages; i++) {
+      this.readData[page + i] = data;
+      this.readBase[page + i] = offset + i * PAGE_SIZE;
+      this.writeData[page + i] = null;
+      this.romData[page + i] = null;
+      this.devices[page + i] = null;
+      this.shared[page + i] = false;
+    }
+    this.remapped(page, pages);
+  }
+
+  /**
+   * Map pages starting at page to rom, starting at offset. Writes are
+   * ignored. The image is shared, not copied.
+   */
+  public void mapROM(int page, int pages, RomImage rom, int offset) {
+    this.check(page, pages);
+    if (offset < 0 || offset + pages * PAGE_SIZE > rom.size()) {
+      throw new IllegalArgumentException(pages + " pages at offset " + offset
+          + " do not fit in " + rom.size() + " bytes");
+    }
+    for (int i = 0; i < pages; i++) {
+      this.readData[page + i] = null;
+      this.writeData[page + i] = null;
+      this.romData[page + i] = rom.buffer();
+      this.romBase[page + i] = offset + i * PAGE_SIZE;
+      this.devices[page + i] = null;
+      this.shared[page + i] = false;
+    }
+    this.remapped(page, pages);
+  }
+
+  /**
+   * Send reads and writes of pages starting at page to device.
+   */
+  public void mapIO(int page, int pages, CPUMemMapper device) {
+    this.check(page, pages);
+    if (device == null) {
+      throw new IllegalArgumentException("no device");
+    }
+    for (int i = 0; i < pages; i++) {
+      this.readData[page + i] = null;
+      this.writeData[page + i] = null;
+      this.romData[page + i] = null;
+      this.devices[page + i] = device;
+      this.shared[page + i] = false;
+    }
+    this.remapped(page, pages);
+  }
+
+  // unmap makes pages read as 0 and ignore writes
+  public void unmap(int page, int pages) {
+    this.check(page, pages);
+    for (int i = 0; i < pages; i++) {
+      this.readData[page + i] = OPEN;
+      this.readBase[page + i] = 0;
+      this.writeData[page + i] = null;
+      this.romData[page + i] = null;
+      this.devices[page + i] = null;
+      this.shared[page + i] = false;
+    }
+    this.remapped(page, pages);
+  }
+
+  /**
+   * Take a snapshot of the current mapping and contents. Costs a copy of the
+   * page tables; RAM pages become shared and are copied on their next write.
+   */
+  public Snapshot snapshot() {
+    Snapshot snapshot = new Snapshot(this);
+    for (int i = 0; i < PAGES; i++) {
+      if (snapshot.ram[i]) {
+        this.writeData[i] = null;
+        this.shared[i] = true;
+      }
+    }
+    this.dirty = 0;
+    return snapshot;
+  }
+
+  // restore maps every page as it was when snapshot was taken
+  public void restore(Snapshot snapshot) {
+    for (int i = 0; i < PAGES; i++) {
+      this.readData[i] = snapshot.data[i];
+      this.readBase[i] = snapshot.base[i];
+      this.writeData[i] = null;
+      this.romData[i] = snapshot.romData[i];
+      this.romBase[i] = snapshot.romBase[i];
+      this.devices[i] = snapshot.devices[i];
+      this.shared[i] = snapshot.ram[i];
+    }
+    this.dirty = 0;
+    if (this.cache != null) {
+      this.cache.clear();
+    }
+  }
+
+  // fork returns a new mapper with the same mapping and contents, sharing
+  // RAM pages with this one until either writes them
+  public PagedMemMapper fork() {
+    return new PagedMemMapper(this.snapshot());
+  }
+
+  @Override
+  public byte read(int address) {
+    int page = (address >> 8) & 0xff;
+    byte[] data = this.readData[page];
+    if (data != null) {
+      return data[this.readBase[page] + (address & 0xff)];
+    }
+    ByteBuffer rom = this.romData[page];
+    if (rom != null) {
+      return rom.get(this.romBase[page] + (address & 0xff));
+    }
+    return this.devices[page].read(address & 0xffff);
+  }
+
+  // peek reads RAM and ROM like read, and I/O pages through the peek of
+  // their device
+  @Override
+  public byte peek(int address) {
+    CPUMemMapper device = this.devices[(address >> 8) & 0xff];
+    if (device != null) {
+      return device.peek(address & 0xffff);
+    }
+    return this.read(address);
+  }
+
+  @Override
+  public void write(int address, int value) {
+    this.store(address, value);
+  }
+
+  @Override
+  public int read16(int address) {
+    int page = (address >> 8) & 0xff;
+    byte[] data = this.readData[page];
+    if (data != null && (address & 0xff) != 0xff) {
+      int i = this.readBase[page] + (address & 0xff);
+      return (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8);
+    }
+    return CPUMemMapper.super.read16(address);
+  }
+
+  // The block methods below work one page at a time. Runs within RAM and ROM
+  // pages are copied with System.arraycopy or a bulk ByteBuffer get, I/O
+  // pages byte by byte.
+
+  @Override
+  public void readBlock(int address, byte[] dst, int offset, int length) {
+    while (length > 0) {
+      address &= 0xffff;
+      int page = address >> 8;
+      int n = Math.min(length, PAGE_SIZE - (address & 0xff));
+      byte[] data = this.readData[page];
+      ByteBuffer rom = this.romData[page];
+      if (data != null) {
+        System.arraycopy(data, this.readBase[page] + (address & 0xff), dst,
+            offset, n);
+      } else if (rom != null) {
+        rom.get(this.romBase[page] + (address & 0xff), dst, offset, n);
+      } else {
+        CPUMemMapper.super.readBlock(address, dst, offset, n);
+      }
+      address += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  @Override
+  public void writeBlock(int address, byte[] src, int offset, int length) {
+    while (length > 0) {
+      address &= 0xffff;
+      int page = address >> 8;
+      int n = Math.min(length, PAGE_SIZE - (address & 0xff));
+      byte[] data = this.writeData[page];
+      if (data == null && this.shared[page]) {
+        data = this.unshare(page);
+      }
+      if (data != null) {
+        System.arraycopy(src, offset, data,
+            this.writeBase[page] + (address & 0xff), n);
+      } else if (this.devices[page] != null) {
+        CPUMemMapper.super.writeBlock(address, src, offset, n);
+      }
+      address += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  @Override
+  public void dma(int src, int dst, int length) {
+    while (length > 0) {
+      src &= 0xffff;
+      dst &= 0xffff;
+      int n = Math.min(length, Math.min(PAGE_SIZE - (src & 0xff),
+          PAGE_SIZE - (dst & 0xff)));
+      byte[] to = this.writeData[dst >> 8];
+      if (to == null && this.shared[dst >> 8]) {
+        // before reading from, which may be a mirror of the same page
+        to = this.unshare(dst >> 8);
+      }
+      byte[] from = this.readData[src >> 8];
+      ByteBuffer rom = this.romData[src >> 8];
+      if (from != null && to != null) {
+        System.arraycopy(from, this.readBase[src >> 8] + (src & 0xff), to,
+            this.writeBase[dst >> 8] + (dst & 0xff), n);
+      } else if (rom != null && to != null) {
+        rom.get(this.romBase[src >> 8] + (src & 0xff), to,
+            this.writeBase[dst >> 8] + (dst & 0xff), n);
+      } else {
+        CPUMemMapper.super.dma(src, dst, n);
+      }
+      src += n;
+      dst += n;
+      length -= n;
+    }
+  }
+
+  // store writes value and returns true if it went to RAM
+  boolean store(int address, int value) {
+    int page = (address >> 8) & 0xff;
+    byte[] data = this.writeData[page];
+    if (data != null) {
+      data[this.writeBase[page] + (address & 0xff)] = (byte) value;
+      return true;
+    }
+    if (this.shared[page]) {
+      this.unshare(page)[address & 0xff] = (byte) value;
+      return true;
+    }
+    CPUMemMapper device = this.devices[page];
+    if (device != null) {
+      device.write(address & 0xffff, value);
+    }
+    return false;
+  }
+
+  // unshare gives the shared RAM page a private copy and returns it. Pages
+  // mirroring the same memory get the same copy.
+  private byte[] unshare(int page) {
+    byte[] data = this.readData[page];
+    int base = this.readBase[page];
+    byte[] copy = Arrays.copyOfRange(data, base, base + PAGE_SIZE);
+    for (int i = 0; i < PAGES; i++) {
+      if (this.shared[i] && this.readData[i] == data
+          && this.readBase[i] == base) {
+        this.readData[i] = copy;
+        this.readBase[i] = 0;
+        this.writeData[i] = copy;
+        this.writeBase[i] = 0;
+        this.shared[i] = false;
+      }
+    }
+    this.dirty++;
+    return copy;
+  }
+
+  void setBlockCache(BlockCache cache) {
+    this.cache = cache;
+  }
+
+  private void remapped(int page, int pages) {
+    if (this.cache != null) {
+      this.cache.invalidate(page * PAGE_SIZE, pages * PAGE_SIZE);
+    }
+  }
+
+  private void check(int page, int pages) {
+    if (page < 0 || pages < 0 || page + pages > PAGES) {
+      throw new IllegalArgumentException("pages " + page + "+" + pages
+          + " outside the address space");
+    }
+  }
+
+  private void checkData(int pages, byte[] data, int offset) {
+    if (offset < 0 || offset + pages * PAGE_SIZE > data.length) {
+      throw new IllegalArgumentException(pages + " pages at offset " + offset
+          + " do not fit in " + data.length + " bytes");
+    }
+  }
+}
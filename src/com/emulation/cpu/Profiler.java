@@ -0,0 +1,131 @@
+package com.emulation.cpu;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.stream.IntStream;
+
+/**
+ * Counts executions and cycles per opcode and per PC, see
+ * CPU6502.setProfiler.
+ *
+ * The counters are plain long arrays updated by the thread running the CPU,
+ * without locks. Reports can be taken from another thread while the machine
+ * runs; they work on a copy of the counters, which may then lag behind by a
+ * few instructions. Cycles are those of the instruction itself, interrupt
+ * entry and stall cycles are not counted.
+ */
+public class Profiler {
+
+  private final long[] opcodeCount  = new long[0x100];
+  private final long[] opcodeCycles = new long[0x100];
+  private final long[] pcCount      = new long[0x10000];
+  private final long[] pcCycles     = new long[0x10000];
+  // last opcode executed at each PC, for the labels of the PC report
+  private final byte[] pcOpcode     = new byte[0x10000];
+
+  void record(int PC, int opcode, long cycles) {
+    this.opcodeCount[opcode]++;
+    this.opcodeCycles[opcode] += cycles;
+    this.pcCount[PC]++;
+    this.pcCycles[PC] += cycles;
+    this.pcOpcode[PC] = (byte) opcode;
+  }
+
+  public long getOpcodeCount(int opcode) {
+    return this.opcodeCount[opcode & 0xff];
+  }
+
+  public long getOpcodeCycles(int opcode) {
+    return this.opcodeCycles[opcode & 0xff];
+  }
+
+  public long getCount(int PC) {
+    return this.pcCount[PC & 0xffff];
+  }
+
+  public long getCycles(int PC) {
+    return this.pcCycles[PC & 0xffff];
+  }
+
+  // reset clears every counter
+  public void reset() {
+    Arrays.fill(this.opcodeCount, 0);
+    Arrays.fill(this.opcodeCycles, 0);
+    Arrays.fill(this.pcCount, 0);
+    Arrays.fill(this.pcCycles, 0);
+    Arrays.fill(this.pcOpcode, (byte) 0);
+  }
+
+  /**
+   * Return the top opcodes and the top PCs by cycles, with their share of
+   * all cycles counted.
+   */
+  public String report(int top) {
+    long[] opcodeCount = this.opcodeCount.clone();
+    long[] opcodeCycles = this.opcodeCycles.clone();
+    long[] pcCount = this.pcCount.clone();
+    long[] pcCycles = this.pcCycles.clone();
+    byte[] pcOpcode = this.pcOpcode.clone();
+    long total = 0;
+    for (long cycles : opcodeCycles) {
+      total += cycles;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    Formatter format = new Formatter(sb);
+    format.format("%-10s %14s %14s %7s\n", "opcode", "count", "cycles",
+        "share");
+    for (int op : top(opcodeCycles, top)) {
+      format.format("0x%02X %-5s %14d %14d %6.2f%%\n", op,
+          CPU6502.instructionNames[op], opcodeCount[op], opcodeCycles[op],
+          share(opcodeCycles[op], total));
+    }
+    format.format("\n%-10s %14s %14s %7s\n", "PC", "count", "cycles", "share");
+    for (int PC : top(pcCycles, top)) {
+      format.format("0x%04X %-3s %14d %14d %6.2f%%\n", PC,
+          CPU6502.instructionNames[pcOpcode[PC] & 0xff], pcCount[PC],
+          pcCycles[PC], share(pcCycles[PC], total));
+    }
+    format.close();
+    return sb.toString();
+  }
+
+  /**
+   * Write every counter that is not zero as CSV with the columns kind
+   * ("opcode" or "pc"), key in hex, mnemonic, count and cycles.
+   */
+  public void writeCSV(Appendable out) throws IOException {
+    long[] opcodeCount = this.opcodeCount.clone();
+    long[] opcodeCycles = this.opcodeCycles.clone();
+    long[] pcCount = this.pcCount.clone();
+    long[] pcCycles = this.pcCycles.clone();
+    byte[] pcOpcode = this.pcOpcode.clone();
+    out.append("kind,key,name,count,cycles\n");
+    for (int op = 0; op < opcodeCount.length; op++) {
+      if (opcodeCount[op] != 0) {
+        out.append(String.format("opcode,%02X,%s,%d,%d\n", op,
+            CPU6502.instructionNames[op], opcodeCount[op], opcodeCycles[op]));
+      }
+    }
+    for (int PC = 0; PC < pcCount.length; PC++) {
+      if (pcCount[PC] != 0) {
+        out.append(String.format("pc,%04X,%s,%d,%d\n", PC,
+            CPU6502.instructionNames[pcOpcode[PC] & 0xff], pcCount[PC],
+            pcCycles[PC]));
+      }
+    }
+  }
+
+  // top returns the indexes of the n largest non-zero values, largest first
+  private static int[] top(long[] values, int n) {
+    return IntStream.range(0, values.length)
+        .filter(i -> values[i] != 0).boxed()
+        .sorted((a, b) -> Long.compare(values[b], values[a])).limit(n)
+        .mapToInt(Integer::intValue).toArray();
+  }
+
+  private static double share(long cycles, long total) {
+    return total == 0 ? 0 : 100.0 * cycles / total;
+  }
+}
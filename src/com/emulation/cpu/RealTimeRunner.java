@@ -0,0 +1,247 @@
+package com.emulation.cpu;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs machines at CPU6502.CPUFrequency in real time.
+ *
+ * A session runs its machine in bursts of a fixed number of cycles. Each
+ * burst is scheduled for the absolute time its first cycle is due, counted
+ * from when the session started, so waking up late delays one burst but does
+ * not push back the ones after it, and the drift stays bounded. Between bursts
+ * a session holds no thread, so a few worker threads can pace hundreds of
+ * sessions.
+ *
+ * A session that falls more than MAX_LAG behind (the host was suspended, or
+ * it is overloaded) gives up on the missed time and restarts its clock, rather
+ * than running flat out to catch up. Lateness and dropped time are reported
+ * per session.
+ *
+ * While its CPU is paused through a CPUMonitor, a session checks again once
+ * per burst and moves its clock forward, so the pause counts neither as
+ * lateness nor as dropped time.
+ */
+public class RealTimeRunner implements AutoCloseable {
+
+  // a session further behind than this gives up the missed time
+  public static final long MAX_LAG = TimeUnit.MILLISECONDS.toNanos(100);
+
+  // bursts starting later than this count as late
+  public static final long LATE = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // default burst: one 60 Hz frame
+  public static final long BURST = CPU6502.CPUFrequency / 60;
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * One machine being run in real time. The statistics can be read from any
+   * thread while it runs.
+   */
+  public final class Session implements Runnable {
+    private final CPU6502               cpu;
+    private final long                  burst;
+
+    // nanoTime at which cycle 0 was due, moved forward one second at a time
+    private long                        origin;
+    // cycles run since origin, overrun included
+    private long                        due;
+
+    private volatile long               cycles;
+    private volatile long               bursts;
+    private volatile long               late;
+    private volatile long               lateness;
+    private volatile long               maxLateness;
+    private volatile long               dropped;
+    private volatile Throwable          failure;
+    private volatile boolean            stopped;
+    private volatile ScheduledFuture<?> next;
+
+    Session(CPU6502 cpu, long burst) {
+      this.cpu = cpu;
+      this.burst = burst;
+    }
+
+    public CPU6502 getCPU() {
+      return this.cpu;
+    }
+
+    // getCycles returns the cycles run so far, stall included
+    public long getCycles() {
+      return this.cycles;
+    }
+
+    public long getBursts() {
+      return this.bursts;
+    }
+
+    // getLateBursts returns the number of bursts that started more than LATE
+    // after their deadline
+    public long getLateBursts() {
+      return this.late;
+    }
+
+    // getLateness returns the total time bursts started after their deadline
+    public long getLateness() {
+      return this.lateness;
+    }
+
+    public long getMaxLateness() {
+      return this.maxLateness;
+    }
+
+    // getDropped returns the emulated time given up after falling behind by
+    // more than MAX_LAG
+    public long getDropped() {
+      return this.dropped;
+    }
+
+    // getFailure returns the exception or error that stopped the session,
+    // or null
+    public Throwable getFailure() {
+      return this.failure;
+    }
+
+    public boolean isStopped() {
+      return this.stopped;
+    }
+
+    // stop stops the session after the burst currently running, if any
+    public void stop() {
+      this.stopped = true;
+      ScheduledFuture<?> next = this.next;
+      if (next != null) {
+        next.cancel(false);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d cycles, %d/%d bursts late, max %.3f ms, %.3f ms dropped",
+          this.cycles, this.late, this.bursts, this.maxLateness / 1e6,
+          this.dropped / 1e6);
+    }
+
+    @Override
+    public void run() {
+      if (this.stopped) {
+        return;
+      }
+      long now = System.nanoTime();
+      if (this.cpu.isPaused()) {
+        this.idle(now);
+        return;
+      }
+      long lateness = now - (this.origin + this.nanos(this.due));
+      if (lateness > 0) {
+        if (lateness > LATE) {
+          this.late++;
+        }
+        this.lateness += lateness;
+        if (lateness > this.maxLateness) {
+          this.maxLateness = lateness;
+        }
+        if (lateness > MAX_LAG) {
+          this.dropped += lateness;
+          this.origin = now - this.nanos(this.due);
+        }
+      }
+      long cycles;
+      try {
+        cycles = this.burst + this.cpu.runCycles(this.burst);
+      } catch (Throwable e) {
+        // an Error from the JIT or a device ends only this session
+        this.failure = e;
+        this.stopped = true;
+        return;
+      }
+      if (cycles == 0) {
+        // paused since the check above
+        this.idle(now);
+        return;
+      }
+      this.due += cycles;
+      this.cycles += cycles;
+      this.bursts++;
+      // keep due below one second so nanos() cannot overflow
+      if (this.due >= CPU6502.CPUFrequency) {
+        this.due -= CPU6502.CPUFrequency;
+        this.origin += SECOND;
+      }
+      this.schedule(this.origin + this.nanos(this.due));
+    }
+
+    // idle checks a paused session again one burst later, with the clock
+    // moved forward to that time
+    private void idle(long now) {
+      long next = now + this.nanos(this.burst);
+      this.origin = next - this.nanos(this.due);
+      this.schedule(next);
+    }
+
+    void schedule(long deadline) {
+      if (!this.stopped) {
+        this.next = RealTimeRunner.this.executor.schedule(this,
+            deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+    }
+
+    void start() {
+      this.origin = System.nanoTime();
+      this.schedule(this.origin);
+    }
+
+    private long nanos(long cycles) {
+      return cycles * SECOND / CPU6502.CPUFrequency;
+    }
+  }
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  // RealTimeRunner runs bursts on one thread per available processor
+  public RealTimeRunner() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public RealTimeRunner(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads " + threads);
+    }
+    this.executor = new ScheduledThreadPoolExecutor(threads);
+    this.executor.setRemoveOnCancelPolicy(true);
+  }
+
+  // start starts running cpu in real time in bursts of BURST cycles
+  public Session start(CPU6502 cpu) {
+    return this.start(cpu, BURST);
+  }
+
+  /**
+   * Start running cpu in real time in bursts of burst cycles. cpu must not be
+   * touched by anything else until the session is stopped. Shorter bursts
+   * give finer pacing at the cost of more scheduling.
+   */
+  public Session start(CPU6502 cpu, long burst) {
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst " + burst);
+    }
+    Session session = new Session(cpu, burst);
+    session.start();
+    return session;
+  }
+
+  // close stops all sessions and waits for running bursts to finish. If the
+  // calling thread is interrupted it stops waiting and keeps the interrupt.
+  @Override
+  public void close() {
+    this.executor.shutdownNow();
+    try {
+      this.executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,527 @@
+package com.emulation.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Translates hot BlockCache blocks into JVM bytecode for the JIT dispatch
+ * engine.
+ *
+ * Each block becomes a hidden class implementing CompiledBlock, defined as a
+ * nestmate of CPU6502 so that it can set PC and call the address helpers
+ * directly. For every instruction the generated run() method stores the next
+ * PC, adds the base cycles, computes the operand address with constants
+ * folded in and calls the handler by name, exactly like executeBlock does.
+ * There is no decode and no dispatch switch left, so HotSpot can inline the
+ * handlers into one straight-line method.
+ *
+ * After every instruction that may write memory, run() returns early when
+ * the write invalidated the block, requested a stall or raised an interrupt.
+ * After every other instruction that reads memory other than its own operand
+ * bytes or the stack, it returns early when the read raised an interrupt or
+ * scheduled an event. The CPU then carries on in the BLOCK interpreter from
+ * the current PC.
+ *
+ * The generated code only depends on the decoded block, its addresses,
+ * opcodes and operands, and keeps all state in the CPU and Block it is
+ * passed. Compiled blocks are therefore shared by every CPU in the JVM: a
+ * Fleet running many copies of the same ROM defines each class once. The
+ * shared table holds them weakly, so classes no cached block refers to any
+ * more can be unloaded.
+ */
+class Recompiler {
+
+  // block executions before a block is compiled
+  static final int                   THRESHOLD  = 64;
+
+  private static final String        CPU        = "com/emulation/cpu/CPU6502";
+  private static final String        BLOCK      = "com/emulation/cpu/BlockCache$Block";
+  private static final String        MODES      = "com/emulation/cpu/CPU6502$Modes";
+  private static final String        HANDLER    = "(IIL" + MODES + ";)V";
+
+  // handlers that may call CPU6502.write
+  private static final boolean[]     WRITES     = new boolean[DecodeTable.HANDLERS.length];
+  // handlers that do not read their operand address
+  private static final boolean[]     NO_READ    = new boolean[DecodeTable.HANDLERS.length];
+
+  static {
+    int[] writes = { DecodeTable.ASL, DecodeTable.BRK, DecodeTable.DEC,
+        DecodeTable.INC, DecodeTable.JSR, DecodeTable.LSR, DecodeTable.PHA,
+        DecodeTable.PHP, DecodeTable.ROL, DecodeTable.ROR, DecodeTable.STA,
+        DecodeTable.STX, DecodeTable.STY, DecodeTable.AHX, DecodeTable.DCP,
+        DecodeTable.ISC, DecodeTable.RLA, DecodeTable.RRA, DecodeTable.SAX,
+        DecodeTable.SHX, DecodeTable.SHY, DecodeTable.SLO, DecodeTable.SRE,
+        DecodeTable.TAS };
+    for (int handler : writes) {
+      WRITES[handler] = true;
+    }
+    NO_READ[DecodeTable.JMP] = true;
+    NO_READ[DecodeTable.JSR] = true;
+  }
+
+  // compiled blocks by block code, shared by every Recompiler
+  private static final Map<Code, Shared>          SHARED  = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<CompiledBlock> CLEARED = new ReferenceQueue<>();
+
+  // the code of a block as a map key
+  private static final class Code {
+    final int[] code;
+    final int   hash;
+
+    Code(int[] code) {
+      this.code = code;
+      this.hash = Arrays.hashCode(code);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Code && Arrays.equals(this.code, ((Code) o).code);
+    }
+  }
+
+  // a shared compiled block, cleared once no cached block uses it
+  private static final class Shared extends WeakReference<CompiledBlock> {
+    final Code key;
+
+    Shared(Code key, CompiledBlock compiled) {
+      super(compiled, CLEARED);
+      this.key = key;
+    }
+  }
+
+  private final MethodHandles.Lookup lookup;
+
+  // lookup must be a full privilege lookup on CPU6502
+  Recompiler(MethodHandles.Lookup lookup) {
+    this.lookup = lookup;
+  }
+
+  // compile returns the compiled code of block, translating it into a new
+  // hidden class unless a block with the same code was compiled before
+  CompiledBlock compile(BlockCache.Block block) {
+    for (Object cleared; (cleared = CLEARED.poll()) != null;) {
+      Shared shared = (Shared) cleared;
+      SHARED.remove(shared.key, shared);
+    }
+    Code key = new Code(block.code);
+    Shared shared = SHARED.get(key);
+    CompiledBlock compiled = shared == null ? null : shared.get();
+    if (compiled == null) {
+      // two CPUs may both compile a new block, the later one is shared
+      compiled = this.define(block);
+      SHARED.put(key, new Shared(key, compiled));
+    }
+    return compiled;
+  }
+
+  // shared returns the number of compiled blocks in the shared table
+  static int shared() {
+    return SHARED.size();
+  }
+
+  // define translates block into a new hidden class and returns an instance
+  private CompiledBlock define(BlockCache.Block block) {
+    byte[] bytes = new ClassBuilder().build(block);
+    try {
+      Class<?> c = this.lookup.defineHiddenClass(bytes, true,
+          MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+      return (CompiledBlock) c.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("cannot load block at "
+          + Integer.toHexString(block.start), e);
+    }
+  }
+
+  /**
+   * Writes the class file of one compiled block. Only the handful of
+   * constant pool entries and instructions the translation needs are
+   * supported.
+   */
+  private static final class ClassBuilder {
+
+    // constant pool tags
+    private static final int           UTF8          = 1;
+    private static final int           INTEGER       = 3;
+    private static final int           CLASS         = 7;
+    private static final int           FIELDREF      = 9;
+    private static final int           METHODREF     = 10;
+    private static final int           NAME_AND_TYPE = 12;
+
+    // opcodes
+    private static final int           ICONST_0      = 0x03;
+    private static final int           BIPUSH        = 0x10;
+    private static final int           LDC_W         = 0x13;
+    private static final int           ALOAD_0       = 0x2a;
+    private static final int           ALOAD_1       = 0x2b;
+    private static final int           ALOAD_2       = 0x2c;
+    private static final int           DUP           = 0x59;
+    private static final int           LADD          = 0x61;
+    private static final int           LCMP          = 0x94;
+    private static final int           I2L           = 0x85;
+    private static final int           IFEQ          = 0x99;
+    private static final int           IFNE          = 0x9a;
+    private static final int           IFLT          = 0x9b;
+    private static final int           IRETURN       = 0xac;
+    private static final int           RETURN        = 0xb1;
+    private static final int           GETSTATIC     = 0xb2;
+    private static final int           GETFIELD      = 0xb4;
+    private static final int           PUTFIELD      = 0xb5;
+    private static final int           INVOKEVIRTUAL = 0xb6;
+    private static final int           INVOKESPECIAL = 0xb7;
+
+    private final ByteArrayOutputStream poolBytes    = new ByteArrayOutputStream();
+    private final DataOutputStream      pool         = new DataOutputStream(this.poolBytes);
+    private final Map<String, Integer>  entries      = new HashMap<>();
+    private int                         poolSize     = 1;
+
+    private final ByteArrayOutputStream codeBytes    = new ByteArrayOutputStream();
+    private final DataOutputStream      code         = new DataOutputStream(this.codeBytes);
+    // StackMapTable frames, all of them same_frame
+    private final ByteArrayOutputStream framesBytes  = new ByteArrayOutputStream();
+    private final DataOutputStream      frames       = new DataOutputStream(this.framesBytes);
+    private int                         frameCount;
+    private int                         lastFrame    = -1;
+
+    byte[] build(BlockCache.Block block) {
+      try {
+        return this.write(block);
+      } catch (IOException e) {
+        // ByteArrayOutputStream does not throw
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private byte[] write(BlockCache.Block block) throws IOException {
+      int thisClass = this.classRef("com/emulation/cpu/Compiled");
+      int superClass = this.classRef("java/lang/Object");
+      int iface = this.classRef("com/emulation/cpu/CompiledBlock");
+      int codeName = this.utf8("Code");
+      int frameName = this.utf8("StackMapTable");
+      int initName = this.utf8("<init>");
+      int initType = this.utf8("()V");
+      int objectInit = this.methodRef("java/lang/Object", "<init>", "()V");
+      int runName = this.utf8("run");
+      int runType = this.utf8("(L" + CPU + ";L" + BLOCK + ";)I");
+
+      this.translate(block);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DataOutputStream c = new DataOutputStream(out);
+      c.writeInt(0xcafebabe);
+      c.writeShort(0);
+      c.writeShort(61);
+      c.writeShort(this.poolSize);
+      this.pool.flush();
+      this.poolBytes.writeTo(c);
+      // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+      c.writeShort(0x0031);
+      c.writeShort(thisClass);
+      c.writeShort(superClass);
+      c.writeShort(1);
+      c.writeShort(iface);
+      // no fields
+      c.writeShort(0);
+      c.writeShort(2);
+
+      // public <init>()V
+      c.writeShort(0x0001);
+      c.writeShort(initName);
+      c.writeShort(initType);
+      c.writeShort(1);
+      c.writeShort(codeName);
+      c.writeInt(12 + 5);
+      c.writeShort(1);
+      c.writeShort(1);
+      c.writeInt(5);
+      c.writeByte(ALOAD_0);
+      c.writeByte(INVOKESPECIAL);
+      c.writeShort(objectInit);
+      c.writeByte(RETURN);
+      c.writeShort(0);
+      c.writeShort(0);
+
+      // public run(CPU6502, Block)I
+      this.code.flush();
+      this.frames.flush();
+      int codeLength = this.codeBytes.size();
+      int frameLength = this.frameCount == 0 ? 0
+          : 8 + this.framesBytes.size();
+      c.writeShort(0x0001);
+      c.writeShort(runName);
+      c.writeShort(runType);
+      c.writeShort(1);
+      c.writeShort(codeName);
+      c.writeInt(12 + codeLength + frameLength);
+      c.writeShort(6);
+      c.writeShort(3);
+      c.writeInt(codeLength);
+      this.codeBytes.writeTo(c);
+      c.writeShort(0);
+      if (this.frameCount == 0) {
+        c.writeShort(0);
+      } else {
+        c.writeShort(1);
+        c.writeShort(frameName);
+        c.writeInt(2 + this.framesBytes.size());
+        c.writeShort(this.frameCount);
+        this.framesBytes.writeTo(c);
+      }
+
+      // no class attributes
+      c.writeShort(0);
+      c.flush();
+      return out.toByteArray();
+    }
+
+    // translate writes the body of run()
+    private void translate(BlockCache.Block block) throws IOException {
+      int pcField = this.fieldRef(CPU, "PC", "I");
+      int cyclesField = this.fieldRef(CPU, "cycles", "J");
+      int stallField = this.fieldRef(CPU, "stall", "I");
+      int deadlineField = this.fieldRef(CPU, "deadline", "J");
+      int validField = this.fieldRef(BLOCK, "valid", "Z");
+
+      for (int i = 0; i < block.length; i++) {
+        int entry = block.code[i * 2];
+        int PC = block.code[i * 2 + 1] >>> 16;
+        int operand = block.code[i * 2 + 1] & 0xffff;
+        int mode = DecodeTable.mode(entry);
+        int handler = DecodeTable.handler(entry);
+        int next = (PC + DecodeTable.size(entry)) & 0xffff;
+        int penalty = DecodeTable.pageCycles(entry);
+
+        // cpu.PC = next
+        this.code.writeByte(ALOAD_1);
+        this.ldc(next);
+        this.op(PUTFIELD, pcField);
+        // cpu.cycles += cycles
+        this.code.writeByte(ALOAD_1);
+        this.code.writeByte(DUP);
+        this.op(GETFIELD, cyclesField);
+        this.code.writeByte(BIPUSH);
+        this.code.writeByte(DecodeTable.cycles(entry));
+        this.code.writeByte(I2L);
+        this.code.writeByte(LADD);
+        this.op(PUTFIELD, cyclesField);
+
+        // cpu.handler(address, next, mode)
+        this.code.writeByte(ALOAD_1);
+        switch (mode) {
+          case DecodeTable.ABX:
+            this.address("addressAbx", operand, penalty);
+            break;
+          case DecodeTable.ABY:
+            this.address("addressAby", operand, penalty);
+            break;
+          case DecodeTable.IZY:
+            this.address("addressIzy", operand, penalty);
+            break;
+          case DecodeTable.IZX:
+            this.address("addressIzx", operand, -1);
+            break;
+          case DecodeTable.IND:
+            this.address("addressInd", operand, -1);
+            break;
+          case DecodeTable.ZPX:
+            this.address("addressZpx", operand, -1);
+            break;
+          case DecodeTable.ZPY:
+            this.address("addressZpy", operand, -1);
+            break;
+          default:
+            // abs, imm, rel and zpg operands are already resolved addresses
+            this.ldc(operand);
+            break;
+        }
+        this.ldc(next);
+        this.op(GETSTATIC, this.fieldRef(MODES, DecodeTable.MODES[mode].name(),
+            "L" + MODES + ";"));
+        this.op(INVOKEVIRTUAL, this.methodRef(CPU,
+            DecodeTable.HANDLERS[handler].toLowerCase(), HANDLER));
+
+        if (WRITES[handler] && i + 1 < block.length) {
+          // if (!block.valid) return i + 1;
+          this.code.writeByte(ALOAD_2);
+          this.op(GETFIELD, validField);
+          this.exit(IFNE, i + 1);
+          // if (cpu.stall != 0) return i + 1;
+          this.code.writeByte(ALOAD_1);
+          this.op(GETFIELD, stallField);
+          this.exit(IFEQ, i + 1);
+          // if (cpu.cycles >= cpu.deadline) return i + 1;
+          this.code.writeByte(ALOAD_1);
+          this.op(GETFIELD, cyclesField);
+          this.code.writeByte(ALOAD_1);
+          this.op(GETFIELD, deadlineField);
+          this.code.writeByte(LCMP);
+          this.exit(IFLT, i + 1);
+        } else if (reads(mode, handler) && i + 1 < block.length) {
+          // a device read may raise an interrupt or schedule an event
+          // if (cpu.cycles >= cpu.deadline) return i + 1;
+          this.code.writeByte(ALOAD_1);
+          this.op(GETFIELD, cyclesField);
+          this.code.writeByte(ALOAD_1);
+          this.op(GETFIELD, deadlineField);
+          this.code.writeByte(LCMP);
+          this.exit(IFLT, i + 1);
+        }
+      }
+      this.code.writeByte(BIPUSH);
+      this.code.writeByte(block.length);
+      this.code.writeByte(IRETURN);
+    }
+
+    // reads returns true if the instruction reads memory that may belong to
+    // a device: immediate operands, branches and stack operations do not
+    private static boolean reads(int mode, int handler) {
+      switch (mode) {
+        case DecodeTable.IMM:
+        case DecodeTable.IMP:
+        case DecodeTable.ACC:
+        case DecodeTable.REL:
+        case DecodeTable.IND:
+          return false;
+        default:
+          return !NO_READ[handler];
+      }
+    }
+
+    // address calls the CPU6502 helper computing an indexed or indirect
+    // address, penalty is passed on unless it is negative
+    private void address(String helper, int operand, int penalty)
+        throws IOException {
+      this.code.writeByte(ALOAD_1);
+      this.ldc(operand);
+      String type = "(I)I";
+      if (penalty >= 0) {
+        this.code.writeByte(ICONST_0 + penalty);
+        type = "(II)I";
+      }
+      this.op(INVOKEVIRTUAL, this.methodRef(CPU, helper, type));
+    }
+
+    // exit writes a conditional jump over "return count", the jump is taken
+    // when execution continues
+    private void exit(int opcode, int count) throws IOException {
+      this.code.writeByte(opcode);
+      this.code.writeShort(6);
+      this.code.writeByte(BIPUSH);
+      this.code.writeByte(count);
+      this.code.writeByte(IRETURN);
+      this.frame(this.code.size());
+    }
+
+    // frame records a same_frame at offset, locals and stack do not change
+    // anywhere in run()
+    private void frame(int offset) throws IOException {
+      int delta = this.lastFrame < 0 ? offset : offset - this.lastFrame - 1;
+      if (delta < 64) {
+        this.frames.writeByte(delta);
+      } else {
+        // same_frame_extended
+        this.frames.writeByte(251);
+        this.frames.writeShort(delta);
+      }
+      this.lastFrame = offset;
+      this.frameCount++;
+    }
+
+    private void ldc(int value) throws IOException {
+      this.op(LDC_W, this.integer(value));
+    }
+
+    private void op(int opcode, int index) throws IOException {
+      this.code.writeByte(opcode);
+      this.code.writeShort(index);
+    }
+
+    private int utf8(String s) throws IOException {
+      Integer index = this.entries.get("U" + s);
+      if (index == null) {
+        this.pool.writeByte(UTF8);
+        this.pool.writeUTF(s);
+        index = this.add("U" + s);
+      }
+      return index;
+    }
+
+    private int integer(int value) throws IOException {
+      Integer index = this.entries.get("I" + value);
+      if (index == null) {
+        this.pool.writeByte(INTEGER);
+        this.pool.writeInt(value);
+        index = this.add("I" + value);
+      }
+      return index;
+    }
+
+    private int classRef(String name) throws IOException {
+      Integer index = this.entries.get("C" + name);
+      if (index == null) {
+        int n = this.utf8(name);
+        this.pool.writeByte(CLASS);
+        this.pool.writeShort(n);
+        index = this.add("C" + name);
+      }
+      return index;
+    }
+
+    private int nameAndType(String name, String type) throws IOException {
+      String key = "N" + name + " " + type;
+      Integer index = this.entries.get(key);
+      if (index == null) {
+        int n = this.utf8(name);
+        int t = this.utf8(type);
+        this.pool.writeByte(NAME_AND_TYPE);
+        this.pool.writeShort(n);
+        this.pool.writeShort(t);
+        index = this.add(key);
+      }
+      return index;
+    }
+
+    private int fieldRef(String owner, String name, String type)
+        throws IOException {
+      return this.memberRef(FIELDREF, owner, name, type);
+    }
+
+    private int methodRef(String owner, String name, String type)
+        throws IOException {
+      return this.memberRef(METHODREF, owner, name, type);
+    }
+
+    private int memberRef(int tag, String owner, String name, String type)
+        throws IOException {
+      String key = tag + owner + "." + name + " " + type;
+      Integer index = this.entries.get(key);
+      if (index == null) {
+        int c = this.classRef(owner);
+        int nt = this.nameAndType(name, type);
+        this.pool.writeByte(tag);
+        this.pool.writeShort(c);
+        this.pool.writeShort(nt);
+        index = this.add(key);
+      }
+      return index;
+    }
+
+    private int add(String key) {
+      int index = this.poolSize++;
+      this.entries.put(key, index);
+      return index;
+    }
+  }
+}
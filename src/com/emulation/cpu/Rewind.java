@@ -0,0 +1,144 @@
+package com.emulation.cpu;
+
+import java.util.ArrayDeque;
+
+/**
+ * Ring buffer of snapshots for rewinding a CPU6502 running on a
+ * PagedMemMapper.
+ *
+ * A snapshot is taken every interval cycles. Memory snapshots share all pages
+ * that were not written in between, so each one costs its page tables plus
+ * 256 bytes per dirty page. When the total goes over the budget the oldest
+ * snapshots are dropped. Rewinding restores a snapshot, which takes the same
+ * time however far back it is.
+ *
+ * Dirty pages are counted against the previous snapshot kept, not taken from
+ * the mapper, so snapshots and forks of the same CPU taken elsewhere do not
+ * hide pages from the budget.
+ */
+public class Rewind {
+
+  // approximate size of the page tables of one snapshot
+  static final int                TABLE_BYTES = 6 * 1024;
+
+  private final CPU6502           cpu;
+  private final long              interval;
+  private final long              budget;
+
+  private final ArrayDeque<Entry> entries     = new ArrayDeque<>();
+  private long                    bytes;
+  // cycle count at which the next snapshot is due
+  private long                    next;
+
+  private static final class Entry {
+    final CPU6502.Snapshot snapshot;
+    final long             bytes;
+
+    Entry(CPU6502.Snapshot snapshot, long bytes) {
+      this.snapshot = snapshot;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Keep snapshots of cpu taken every interval cycles, using about budget
+   * bytes. On top of the budget, the oldest snapshot can keep up to 64K of
+   * pages alive that it shares with snapshots already dropped. Takes the
+   * first snapshot right away.
+   */
+  public Rewind(CPU6502 cpu, long interval, long budget) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("interval " + interval);
+    }
+    this.cpu = cpu;
+    this.interval = interval;
+    this.budget = budget;
+    this.take();
+    if (!this.entries.getLast().snapshot.hasMemory()) {
+      throw new IllegalArgumentException("rewind needs a PagedMemMapper");
+    }
+  }
+
+  // update takes a snapshot if interval cycles have passed since the last
+  // one. Call it between runs, or use runCycles.
+  public void update() {
+    if (this.cpu.cycles >= this.next) {
+      this.take();
+    }
+  }
+
+  /**
+   * Run budget cycles like CPU6502.runCycles, stopping at every interval
+   * boundary to take a snapshot. Returns early while the CPU is paused.
+   *
+   * @return number of cycles run beyond budget
+   */
+  public long runCycles(long budget) {
+    long done = 0;
+    while (done < budget) {
+      long n = Math.min(budget - done,
+          Math.max(1, this.next - this.cpu.cycles));
+      long cycles = n + this.cpu.runCycles(n);
+      if (cycles == 0) {
+        // paused
+        break;
+      }
+      done += cycles;
+      this.update();
+    }
+    return done - budget;
+  }
+
+  /**
+   * Go back at least cycles cycles, or as far as the oldest snapshot. The
+   * snapshots after the one restored are dropped.
+   *
+   * @return cycle count of the CPU after rewinding
+   */
+  public long rewind(long cycles) {
+    return this.rewindTo(this.cpu.cycles - cycles);
+  }
+
+  // rewindTo restores the last snapshot taken at or before cycle count
+  // cycles, or the oldest one, and returns the cycle count of the CPU
+  public long rewindTo(long cycles) {
+    while (this.entries.size() > 1
+        && this.entries.getLast().snapshot.getCycles() > cycles) {
+      this.bytes -= this.entries.removeLast().bytes;
+    }
+    CPU6502.Snapshot snapshot = this.entries.getLast().snapshot;
+    this.cpu.restore(snapshot);
+    this.next = snapshot.getCycles() + this.interval;
+    return this.cpu.cycles;
+  }
+
+  // size returns the number of snapshots kept
+  public int size() {
+    return this.entries.size();
+  }
+
+  // getBytes returns the approximate memory used by the snapshots kept
+  public long getBytes() {
+    return this.bytes;
+  }
+
+  // getOldest returns the cycle count of the oldest snapshot kept
+  public long getOldest() {
+    return this.entries.getFirst().snapshot.getCycles();
+  }
+
+  private void take() {
+    CPU6502.Snapshot snapshot = this.cpu.snapshot();
+    long bytes = TABLE_BYTES;
+    if (!this.entries.isEmpty() && snapshot.hasMemory()) {
+      bytes += (long) snapshot.changedPages(this.entries.getLast().snapshot)
+          * PagedMemMapper.PAGE_SIZE;
+    }
+    this.entries.addLast(new Entry(snapshot, bytes));
+    this.bytes += bytes;
+    this.next = this.cpu.cycles + this.interval;
+    while (this.bytes > this.budget && this.entries.size() > 1) {
+      this.bytes -= this.entries.removeFirst().bytes;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.emulation.cpu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only ROM contents that any number of PagedMemMappers can map at once.
+ *
+ * map() maps a file with FileChannel.map instead of reading it, so opening
+ * a ROM costs no copy and every machine mapping the same RomImage shares the
+ * operating system's page cache for it. Reads use absolute ByteBuffer
+ * accesses only, so one RomImage can be used from many threads.
+ */
+public final class RomImage {
+
+  private final ByteBuffer data;
+
+  private RomImage(ByteBuffer data) {
+    this.data = data;
+  }
+
+  // map maps the whole file read-only
+  public static RomImage map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed
+      return new RomImage(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size()));
+    }
+  }
+
+  // wrap uses data without copying it; it must not be modified afterwards
+  public static RomImage wrap(byte[] data) {
+    return new RomImage(ByteBuffer.wrap(data).asReadOnlyBuffer());
+  }
+
+  // size returns the image size in bytes
+  public int size() {
+    return this.data.capacity();
+  }
+
+  ByteBuffer buffer() {
+    return this.data;
+  }
+}
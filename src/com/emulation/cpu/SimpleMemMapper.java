@@ -2,8 +2,7 @@ package com.emulation.cpu;
 
 public class SimpleMemMapper implements CPUMemMapper {
   // max memory size is 2^16
-  // can address only 0xffff mem locations
-  byte[] mem = new byte[0xffff];
+  byte[] mem = new byte[0x10000];
 
   public SimpleMemMapper() {
     this.mem[0x0000] = 0;
@@ -23,4 +22,42 @@ public class SimpleMemMapper implements CPUMemMapper {
     this.mem[address & 0xffff] = (byte) (value & 0xff);
   }
   
+  @Override
+  public int read16(int address) {
+    int lo = this.mem[address & 0xffff] & 0xff;
+    int hi = this.mem[(address + 1) & 0xffff] & 0xff;
+    return (hi << 8) | lo;
+  }
+  
+  @Override
+  public void readBlock(int address, byte[] dst, int offset, int length) {
+    address &= 0xffff;
+    if (address + length <= this.mem.length) {
+      System.arraycopy(this.mem, address, dst, offset, length);
+    } else {
+      CPUMemMapper.super.readBlock(address, dst, offset, length);
+    }
+  }
+  
+  @Override
+  public void writeBlock(int address, byte[] src, int offset, int length) {
+    address &= 0xffff;
+    if (address + length <= this.mem.length) {
+      System.arraycopy(src, offset, this.mem, address, length);
+    } else {
+      CPUMemMapper.super.writeBlock(address, src, offset, length);
+    }
+  }
+  
+  @Override
+  public void dma(int src, int dst, int length) {
+    src &= 0xffff;
+    dst &= 0xffff;
+    if (src + length <= this.mem.length && dst + length <= this.mem.length) {
+      System.arraycopy(this.mem, src, this.mem, dst, length);
+    } else {
+      CPUMemMapper.super.dma(src, dst, length);
+    }
+  }
+  
 }
@@ -0,0 +1,10 @@
+package com.emulation.cpu;
+
+/**
+ * Tells CPU6502.runUntil when to stop. It is checked before every
+ * instruction, so implementations should only read CPU state.
+ */
+public interface StopCondition {
+  
+  public boolean reached(CPU6502 cpu);
+}
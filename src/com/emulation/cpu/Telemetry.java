@@ -0,0 +1,240 @@
+package com.emulation.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for registered machines.
+ *
+ * The CPU keeps plain counters that its run loops update once per call and
+ * the interrupt entry updates once per interrupt. At the end of every run
+ * call it copies them into the Counters of its registration with opaque
+ * stores, as it does for CPUMonitor. Telemetry reads those with opaque loads
+ * from JFR's periodic thread, by default once a second, and commits one event
+ * of each kind per machine with the change since the previous one, so a
+ * period may be off by the instructions of one run call. The largest
+ * interrupt latency is collected per period in Counters; the periodic thread
+ * never writes to the CPU. Nothing runs unless a recording has the events
+ * enabled.
+ *
+ * Registered machines are held weakly, so a machine dropped without
+ * unregister stops being reported once it is garbage collected.
+ */
+public final class Telemetry {
+
+  @Name("com.emulation.cpu.Throughput")
+  @Label("Emulator Throughput")
+  @Category({ "Emulator", "CPU" })
+  @Description("Instructions and cycles run since the previous event")
+  @Period("1 s")
+  @StackTrace(false)
+  public static final class ThroughputEvent extends Event {
+    @Label("Machine")
+    String machine;
+    @Label("Instructions")
+    long   instructions;
+    @Label("Cycles")
+    long   cycles;
+    @Label("Emulated MHz")
+    double mhz;
+    @Label("Real-Time Factor")
+    @Description("Emulated clock against CPU6502.CPUFrequency")
+    double realTime;
+  }
+
+  @Name("com.emulation.cpu.Stall")
+  @Label("Emulator Stalls")
+  @Category({ "Emulator", "CPU" })
+  @Description("Stall cycles since the previous event")
+  @Period("1 s")
+  @StackTrace(false)
+  public static final class StallEvent extends Event {
+    @Label("Machine")
+    String machine;
+    @Label("Stall Cycles")
+    @Description("Cycles the CPU spent stalled")
+    long   stallCycles;
+    @Label("DMA Cycles")
+    @Description("Stall cycles added by DMA transfers")
+    long   dmaCycles;
+  }
+
+  @Name("com.emulation.cpu.InterruptLatency")
+  @Label("Emulator Interrupt Latency")
+  @Category({ "Emulator", "CPU" })
+  @Description("Cycles from triggerNMI or triggerIRQ to the first cycle of "
+      + "the handler, the 7 cycles of the entry included, for interrupts "
+      + "since the previous event")
+  @Period("1 s")
+  @StackTrace(false)
+  public static final class InterruptLatencyEvent extends Event {
+    @Label("Machine")
+    String machine;
+    @Label("Interrupts")
+    long   interrupts;
+    @Label("Mean Latency")
+    double meanLatency;
+    @Label("Max Latency")
+    long   maxLatency;
+  }
+
+  /**
+   * Counters of a registered machine, written by the thread running it and
+   * read by JFR's periodic thread. The fields hold the values at the
+   * previous events and are only used by the periodic thread.
+   */
+  static final class Counters {
+    private static final VarHandle COUNTERS =
+        MethodHandles.arrayElementVarHandle(long[].class);
+
+    static final int               CYCLES       = 0;
+    static final int               INSTRUCTIONS = 1;
+    static final int               STALL        = 2;
+    static final int               DMA          = 3;
+    static final int               INTERRUPTS   = 4;
+    static final int               LATENCY      = 5;
+    // largest latency since the previous InterruptLatencyEvent
+    static final int               MAX_LATENCY  = 6;
+
+    final String                   name;
+    private final long[]           counters     = new long[7];
+
+    long                           instructions;
+    long                           cycles;
+    long                           nanos;
+    long                           stallCycles;
+    long                           dmaCycles;
+    long                           interrupts;
+    long                           interruptLatency;
+
+    Counters(String name, CPU6502 cpu) {
+      this.name = name;
+      this.publish(cpu);
+      this.instructions = cpu.instructions;
+      this.cycles = cpu.cycles;
+      this.nanos = System.nanoTime();
+      this.stallCycles = cpu.stallCycles;
+      this.dmaCycles = cpu.dmaCycles;
+      this.interrupts = cpu.interrupts;
+      this.interruptLatency = cpu.interruptLatency;
+    }
+
+    // publish copies the counters of cpu, called at the end of a run call
+    void publish(CPU6502 cpu) {
+      long[] counters = this.counters;
+      COUNTERS.setOpaque(counters, CYCLES, cpu.cycles);
+      COUNTERS.setOpaque(counters, INSTRUCTIONS, cpu.instructions);
+      COUNTERS.setOpaque(counters, STALL, cpu.stallCycles);
+      COUNTERS.setOpaque(counters, DMA, cpu.dmaCycles);
+      COUNTERS.setOpaque(counters, INTERRUPTS, cpu.interrupts);
+      COUNTERS.setOpaque(counters, LATENCY, cpu.interruptLatency);
+      long max = cpu.maxInterruptLatency;
+      if (max != 0) {
+        // only the CPU thread writes its own maximum
+        cpu.maxInterruptLatency = 0;
+        long period = (long) COUNTERS.getVolatile(counters, MAX_LATENCY);
+        while (period < max && !COUNTERS.weakCompareAndSet(counters,
+            MAX_LATENCY, period, max)) {
+          period = (long) COUNTERS.getVolatile(counters, MAX_LATENCY);
+        }
+      }
+    }
+
+    long get(int counter) {
+      return (long) COUNTERS.getOpaque(this.counters, counter);
+    }
+
+    // takeMaxLatency returns the largest latency since the previous call
+    long takeMaxLatency() {
+      return (long) COUNTERS.getAndSet(this.counters, MAX_LATENCY, 0L);
+    }
+  }
+
+  private static final Map<CPU6502, Counters> machines =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  static {
+    FlightRecorder.addPeriodicEvent(ThroughputEvent.class,
+        Telemetry::throughput);
+    FlightRecorder.addPeriodicEvent(StallEvent.class, Telemetry::stalls);
+    FlightRecorder.addPeriodicEvent(InterruptLatencyEvent.class,
+        Telemetry::latency);
+  }
+
+  private Telemetry() {
+  }
+
+  /**
+   * Report events for cpu under name until it is unregistered. Call it
+   * before the machine starts running, or from the thread running it.
+   */
+  public static void register(CPU6502 cpu, String name) {
+    Counters counters = new Counters(name, cpu);
+    cpu.telemetry = counters;
+    machines.put(cpu, counters);
+  }
+
+  // unregister stops reporting cpu, call it like register
+  public static void unregister(CPU6502 cpu) {
+    machines.remove(cpu);
+    cpu.telemetry = null;
+  }
+
+  private static void throughput() {
+    long now = System.nanoTime();
+    machines.forEach((cpu, last) -> {
+      ThroughputEvent event = new ThroughputEvent();
+      long cycles = last.get(Counters.CYCLES);
+      event.machine = last.name;
+      event.instructions = last.get(Counters.INSTRUCTIONS)
+          - last.instructions;
+      event.cycles = cycles - last.cycles;
+      long nanos = now - last.nanos;
+      event.mhz = nanos == 0 ? 0 : event.cycles * 1000.0 / nanos;
+      event.realTime = event.mhz * 1e6 / CPU6502.CPUFrequency;
+      event.commit();
+      last.instructions += event.instructions;
+      last.cycles = cycles;
+      last.nanos = now;
+    });
+  }
+
+  private static void stalls() {
+    machines.forEach((cpu, last) -> {
+      StallEvent event = new StallEvent();
+      event.machine = last.name;
+      event.stallCycles = last.get(Counters.STALL) - last.stallCycles;
+      event.dmaCycles = last.get(Counters.DMA) - last.dmaCycles;
+      event.commit();
+      last.stallCycles += event.stallCycles;
+      last.dmaCycles += event.dmaCycles;
+    });
+  }
+
+  private static void latency() {
+    machines.forEach((cpu, last) -> {
+      InterruptLatencyEvent event = new InterruptLatencyEvent();
+      long latency = last.get(Counters.LATENCY);
+      event.machine = last.name;
+      event.interrupts = last.get(Counters.INTERRUPTS) - last.interrupts;
+      event.meanLatency = event.interrupts == 0 ? 0
+          : (double) (latency - last.interruptLatency) / event.interrupts;
+      event.maxLatency = last.takeMaxLatency();
+      event.commit();
+      last.interrupts += event.interrupts;
+      last.interruptLatency = latency;
+    });
+  }
+}
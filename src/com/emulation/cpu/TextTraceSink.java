@@ -0,0 +1,111 @@
+package com.emulation.cpu;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes one text line per instruction into a buffered Writer.
+ * 
+ * Lines look like "PC:3412 SP:FD A:00 X:00 Y:00 P:24 NONE CYC:7". Hex digits
+ * are written straight into a char buffer, so tracing does not go through
+ * java.util.Formatter and does not allocate per line.
+ */
+public class TextTraceSink implements TraceSink, Flushable, Closeable {
+  
+  private static final char[]   HEX        = "0123456789ABCDEF"
+      .toCharArray();
+  private static final String[] INTERRUPTS = { "NONE", "NMI", "IRQ" };
+  
+  // longest line: fixed part plus 19 digits of cycles
+  private static final int      MAX_LINE   = 64;
+  
+  private final Writer          out;
+  private final char[]          buf;
+  private int                   pos;
+  
+  public TextTraceSink(Writer out) {
+    this(out, 1 << 16);
+  }
+  
+  public TextTraceSink(Writer out, int bufferSize) {
+    this.out = out;
+    this.buf = new char[Math.max(bufferSize, MAX_LINE)];
+  }
+  
+  @Override
+  public void trace(int PC, byte SP, byte A, byte X, byte Y, byte P,
+      int interrupt, long cycles) {
+    if (this.pos + MAX_LINE > this.buf.length) {
+      this.drain();
+    }
+    this.text("PC:");
+    this.hex(PC >> 8);
+    this.hex(PC);
+    this.text(" SP:");
+    this.hex(SP);
+    this.text(" A:");
+    this.hex(A);
+    this.text(" X:");
+    this.hex(X);
+    this.text(" Y:");
+    this.hex(Y);
+    this.text(" P:");
+    this.hex(P);
+    this.buf[this.pos++] = ' ';
+    this.text(INTERRUPTS[interrupt]);
+    this.text(" CYC:");
+    this.decimal(cycles);
+    this.buf[this.pos++] = '\n';
+  }
+  
+  // text appends a constant string
+  private void text(String s) {
+    int n = s.length();
+    s.getChars(0, n, this.buf, this.pos);
+    this.pos += n;
+  }
+  
+  // hex appends the low byte of value as two hex digits
+  private void hex(int value) {
+    this.buf[this.pos++] = HEX[(value >> 4) & 0xf];
+    this.buf[this.pos++] = HEX[value & 0xf];
+  }
+  
+  // decimal appends a non-negative number
+  private void decimal(long value) {
+    int start = this.pos;
+    do {
+      this.buf[this.pos++] = (char) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    // digits were written least significant first
+    for (int i = start, j = this.pos - 1; i < j; i++, j--) {
+      char c = this.buf[i];
+      this.buf[i] = this.buf[j];
+      this.buf[j] = c;
+    }
+  }
+  
+  private void drain() {
+    try {
+      this.out.write(this.buf, 0, this.pos);
+    } catch (IOException e) {
+      throw new IllegalStateException("trace write failed", e);
+    }
+    this.pos = 0;
+  }
+  
+  @Override
+  public void flush() throws IOException {
+    this.drain();
+    this.out.flush();
+  }
+  
+  @Override
+  public void close() throws IOException {
+    this.flush();
+    this.out.close();
+  }
+}
@@ -0,0 +1,392 @@
+package com.emulation.cpu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares every instruction against a reference trace streamed from a
+ * channel, and throws IllegalStateException at the first divergence.
+ *
+ * Two line formats are read. nestest logs:
+ *
+ * <pre>
+ * C000  4C F5 C5  JMP $C5F5  ...  A:00 X:00 Y:00 P:24 SP:FD PPU:  0, 21 CYC:7
+ * </pre>
+ *
+ * where the opcode bytes are checked against memory at PC, and the lines of
+ * TextTraceSink ("PC:C000 SP:FD A:00 X:00 Y:00 P:24 NONE CYC:7"). Fields
+ * missing from a line are not compared. B and U in P are not compared, they
+ * only exist on the stack. CYC is compared relative to the first line, so a
+ * log that counts the reset cycles still matches.
+ *
+ * The CPU traces an instruction before it enters a pending interrupt, and
+ * TextTraceSink names the interrupt on that line. Logs without the name,
+ * like nestest and Mesen, show the first instruction of the handler instead,
+ * so against them a trace with an interrupt is compared as the state after
+ * the entry: PC at the vector, three bytes pushed, I set and 7 cycles later.
+ *
+ * The log is read through one buffer and parsed in place, without building
+ * strings, so a comparison costs about as much as writing a text trace. Only
+ * the last CONTEXT lines are kept, copied for the divergence report.
+ */
+public class TraceComparator implements TraceSink, Closeable {
+
+  // reference lines shown before the one that diverged
+  public static final int           CONTEXT  = 8;
+
+  public static final int           MAX_LINE = 256;
+
+  // P bits compared: all but B and U
+  private static final int          P_MASK   = 0xcf;
+  private static final int          I        = 0x04;
+
+  private final CPU6502             cpu;
+  private final ReadableByteChannel in;
+  private final ByteBuffer          buf;
+  private final byte[]              bytes;
+  private boolean                   eof;
+
+  // the last CONTEXT lines, by line number modulo CONTEXT
+  private final byte[][]            history  = new byte[CONTEXT][MAX_LINE];
+  private final int[]               lengths  = new int[CONTEXT];
+  private long                      line;
+
+  // fields of the current line, -1 when missing
+  private int                       PC;
+  private int                       SP;
+  private int                       A;
+  private int                       X;
+  private int                       Y;
+  private int                       P;
+  private long                      cycles;
+  private int                       interrupt;
+  private int                       opcodes;
+  private final int[]               opcode   = new int[3];
+
+  // reference CYC minus CPU cycles, taken from the first line with CYC
+  private boolean                   offsetSet;
+  private long                      offset;
+
+  private boolean                   done;
+  private String                    mismatch;
+
+  // TraceComparator reads the reference from in and the opcode bytes of cpu
+  public TraceComparator(CPU6502 cpu, ReadableByteChannel in) {
+    this(cpu, in, 1 << 16);
+  }
+
+  public TraceComparator(CPU6502 cpu, ReadableByteChannel in,
+      int bufferSize) {
+    this.cpu = cpu;
+    this.in = in;
+    // room for a longest line and its CR LF, so that a full buffer without
+    // a newline is always an overlong line
+    this.buf = ByteBuffer.allocate(Math.max(bufferSize, MAX_LINE + 2));
+    this.bytes = this.buf.array();
+    this.buf.flip();
+  }
+
+  @Override
+  public void trace(int PC, byte SP, byte A, byte X, byte Y, byte P,
+      int interrupt, long cycles) {
+    if (this.done) {
+      return;
+    }
+    if (!this.next()) {
+      this.done = true;
+      return;
+    }
+    if (interrupt != 0 && this.interrupt < 0) {
+      int vector = interrupt == 1 ? 0xfffa : 0xfffe;
+      PC = (this.cpu.peek(vector) & 0xff)
+          | (this.cpu.peek(vector + 1) & 0xff) << 8;
+      SP = (byte) (SP - 3);
+      P = (byte) (P | I);
+      cycles += 7;
+    }
+    String field = null;
+    if (this.PC >= 0 && this.PC != PC) {
+      field = "PC";
+    } else if (!this.opcodesMatch(PC)) {
+      field = "opcode";
+    } else if (this.interrupt >= 0 && this.interrupt != interrupt) {
+      field = "interrupt";
+    } else if (this.A >= 0 && this.A != (A & 0xff)) {
+      field = "A";
+    } else if (this.X >= 0 && this.X != (X & 0xff)) {
+      field = "X";
+    } else if (this.Y >= 0 && this.Y != (Y & 0xff)) {
+      field = "Y";
+    } else if (this.P >= 0 && ((this.P ^ P) & P_MASK) != 0) {
+      field = "P";
+    } else if (this.SP >= 0 && this.SP != (SP & 0xff)) {
+      field = "SP";
+    } else if (this.cycles >= 0) {
+      if (!this.offsetSet) {
+        this.offset = this.cycles - cycles;
+        this.offsetSet = true;
+      } else if (this.cycles - this.offset != cycles) {
+        field = "CYC";
+      }
+    }
+    if (field != null) {
+      this.done = true;
+      this.mismatch = this.report(field, PC, SP, A, X, Y, P, cycles);
+      throw new IllegalStateException(this.mismatch);
+    }
+  }
+
+  // isDone returns true after a divergence or the end of the reference
+  public boolean isDone() {
+    return this.done;
+  }
+
+  // getMismatch returns the divergence report, or null
+  public String getMismatch() {
+    return this.mismatch;
+  }
+
+  // getLine returns the number of reference lines read so far
+  public long getLine() {
+    return this.line;
+  }
+
+  private boolean opcodesMatch(int PC) {
+    for (int i = 0; i < this.opcodes; i++) {
+      if ((this.cpu.peek(PC + i) & 0xff) != this.opcode[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String report(String field, int PC, byte SP, byte A, byte X,
+      byte Y, byte P, long cycles) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("trace diverges in ").append(field).append(" at line ")
+        .append(this.line).append('\n');
+    long first = Math.max(1, this.line - CONTEXT + 1);
+    for (long l = first; l <= this.line; l++) {
+      int i = (int) (l % CONTEXT);
+      sb.append(l == this.line ? "expected " : "         ")
+          .append(new String(this.history[i], 0, this.lengths[i],
+              StandardCharsets.ISO_8859_1))
+          .append('\n');
+    }
+    sb.append(String.format(
+        "actual   PC:%04X %s A:%02X X:%02X Y:%02X P:%02X SP:%02X CYC:%d",
+        PC, this.actualOpcodes(PC), A, X, Y, P, SP,
+        this.offsetSet ? cycles + this.offset : cycles));
+    return sb.toString();
+  }
+
+  private String actualOpcodes(int PC) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < Math.max(this.opcodes, 1); i++) {
+      sb.append(i == 0 ? "" : " ").append(String.format("%02X",
+          this.cpu.peek(PC + i) & 0xff));
+    }
+    return sb.toString();
+  }
+
+  // next parses the next non-empty line, returns false at the end
+  private boolean next() {
+    int start;
+    int end;
+    do {
+      end = this.lineEnd();
+      if (end < 0) {
+        return false;
+      }
+      start = this.buf.position();
+      this.buf.position(Math.min(end + 1, this.buf.limit()));
+      if (end > start && this.bytes[end - 1] == '\r') {
+        end--;
+      }
+    } while (end == start);
+    this.line++;
+    if (end - start > MAX_LINE) {
+      throw new IllegalArgumentException("line " + this.line
+          + " is longer than " + MAX_LINE + " bytes");
+    }
+    int h = (int) (this.line % CONTEXT);
+    System.arraycopy(this.bytes, start, this.history[h], 0, end - start);
+    this.lengths[h] = end - start;
+    this.parse(start, end);
+    return true;
+  }
+
+  // lineEnd returns the index of the newline ending the line at position,
+  // or limit for a last or overlong line without one, or -1 at the end of
+  // the stream
+  private int lineEnd() {
+    while (true) {
+      byte[] b = this.bytes;
+      for (int i = this.buf.position(), n = this.buf.limit(); i < n; i++) {
+        if (b[i] == '\n') {
+          return i;
+        }
+      }
+      // a full buffer without a newline: next reports the long line
+      if (this.eof || this.buf.remaining() == this.buf.capacity()) {
+        return this.buf.hasRemaining() ? this.buf.limit() : -1;
+      }
+      this.fill();
+    }
+  }
+
+  private void fill() {
+    this.buf.compact();
+    try {
+      if (this.in.read(this.buf) < 0) {
+        this.eof = true;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("trace read failed", e);
+    }
+    this.buf.flip();
+  }
+
+  private void parse(int start, int end) {
+    byte[] b = this.bytes;
+    this.PC = -1;
+    this.SP = -1;
+    this.A = -1;
+    this.X = -1;
+    this.Y = -1;
+    this.P = -1;
+    this.cycles = -1;
+    this.interrupt = -1;
+    this.opcodes = 0;
+
+    int i = start;
+    boolean keyed = end - start >= 3 && b[i] == 'P' && b[i + 1] == 'C'
+        && b[i + 2] == ':';
+    if (keyed) {
+      i += 3;
+    }
+    this.PC = hex(b, i, 4, end);
+    if (this.PC < 0) {
+      throw new IllegalArgumentException("line " + this.line
+          + " does not start with a PC");
+    }
+    i += 4;
+    // nestest puts up to three opcode bytes in columns 6, 9 and 12
+    if (!keyed) {
+      while (this.opcodes < 3) {
+        int at = start + 6 + this.opcodes * 3;
+        int value = hex(b, at, 2, end);
+        if (value < 0 || b[at - 1] != ' '
+            || (at + 2 < end && b[at + 2] != ' ')) {
+          break;
+        }
+        this.opcode[this.opcodes++] = value;
+        i = at + 2;
+      }
+    }
+    // the remaining fields are KEY:value tokens or interrupt names after a
+    // space
+    for (; i < end; i++) {
+      if (b[i - 1] != ' ') {
+        continue;
+      }
+      switch (b[i]) {
+        case 'A':
+          this.A = key(b, i, 1, end) ? hex(b, i + 2, 2, end) : this.A;
+          break;
+        case 'X':
+          this.X = key(b, i, 1, end) ? hex(b, i + 2, 2, end) : this.X;
+          break;
+        case 'Y':
+          this.Y = key(b, i, 1, end) ? hex(b, i + 2, 2, end) : this.Y;
+          break;
+        case 'P':
+          this.P = key(b, i, 1, end) ? hex(b, i + 2, 2, end) : this.P;
+          break;
+        case 'S':
+          if (key(b, i, 2, end) && b[i + 1] == 'P') {
+            this.SP = hex(b, i + 3, 2, end);
+          }
+          break;
+        case 'N':
+          if (word(b, i, "NONE", end)) {
+            this.interrupt = 0;
+          } else if (word(b, i, "NMI", end)) {
+            this.interrupt = 1;
+          }
+          break;
+        case 'I':
+          if (word(b, i, "IRQ", end)) {
+            this.interrupt = 2;
+          }
+          break;
+        case 'C':
+          if (key(b, i, 3, end) && b[i + 1] == 'Y' && b[i + 2] == 'C') {
+            this.cycles = decimal(b, i + 4, end);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  // key returns true if the n letters at i are followed by a colon
+  private static boolean key(byte[] b, int i, int n, int end) {
+    return i + n < end && b[i + n] == ':';
+  }
+
+  // word returns true if the token at i is w
+  private static boolean word(byte[] b, int i, String w, int end) {
+    int n = w.length();
+    if (i + n > end || (i + n < end && b[i + n] != ' ')) {
+      return false;
+    }
+    for (int j = 0; j < n; j++) {
+      if (b[i + j] != w.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // hex parses n hex digits at i, or returns -1
+  private static int hex(byte[] b, int i, int n, int end) {
+    if (i + n > end) {
+      return -1;
+    }
+    int value = 0;
+    for (int j = i; j < i + n; j++) {
+      int c = b[j];
+      int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0';
+      } else if (c >= 'A' && c <= 'F') {
+        digit = c - 'A' + 10;
+      } else if (c >= 'a' && c <= 'f') {
+        digit = c - 'a' + 10;
+      } else {
+        return -1;
+      }
+      value = value << 4 | digit;
+    }
+    return value;
+  }
+
+  // decimal parses the digits at i, or returns -1 if there are none
+  private static long decimal(byte[] b, int i, int end) {
+    long value = -1;
+    for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+      value = (value < 0 ? 0 : value * 10) + (b[i] - '0');
+    }
+    return value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+}
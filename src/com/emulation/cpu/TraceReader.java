@@ -0,0 +1,231 @@
+package com.emulation.cpu;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Reads the files written by BinaryTraceSink, one record at a time.
+ *
+ * replay() passes the records on to another sink: a TextTraceSink turns the
+ * file into text with the fields of CPU6502.toString(), and a
+ * TraceComparator checks it against a reference. main() converts a file to
+ * text on standard output:
+ *
+ * <pre>
+ * java com.emulation.cpu.TraceReader [-d] trace.bin
+ * </pre>
+ *
+ * where -d writes nestest-style lines with the instruction disassembled.
+ */
+public class TraceReader implements Closeable {
+
+  private final ReadableByteChannel in;
+  private final ByteBuffer          buf;
+  private boolean                   eof;
+
+  // fields of the current record
+  private int                       PC;
+  private int                       opcode;
+  private int                       operand;
+  private byte                      A;
+  private byte                      X;
+  private byte                      Y;
+  private byte                      P;
+  private byte                      SP;
+  private int                       interrupt;
+  private long                      cycles;
+
+  public TraceReader(ReadableByteChannel in) {
+    this.in = in;
+    this.buf = ByteBuffer.allocate(BinaryTraceSink.RECORD_SIZE * 4096)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    this.buf.flip();
+    if (!this.fill(BinaryTraceSink.HEADER_SIZE)
+        || this.buf.getInt() != BinaryTraceSink.MAGIC
+        || this.buf.getInt() != BinaryTraceSink.RECORD_SIZE) {
+      throw new IllegalArgumentException("not a BinaryTraceSink trace");
+    }
+    this.cycles = this.buf.getLong();
+  }
+
+  // next reads the next record, returns false at the end of the file
+  public boolean next() {
+    if (!this.fill(BinaryTraceSink.RECORD_SIZE)) {
+      if (this.buf.hasRemaining()) {
+        throw new IllegalArgumentException("trace ends inside a record");
+      }
+      return false;
+    }
+    ByteBuffer b = this.buf;
+    this.PC = b.getShort() & 0xffff;
+    this.opcode = b.get() & 0xff;
+    this.operand = b.getShort() & 0xffff;
+    this.A = b.get();
+    this.X = b.get();
+    this.Y = b.get();
+    this.P = b.get();
+    this.SP = b.get();
+    this.interrupt = b.get();
+    b.get();
+    this.cycles += b.getInt() & 0xffffffffL;
+    return true;
+  }
+
+  public int getPC() {
+    return this.PC;
+  }
+
+  public int getOpcode() {
+    return this.opcode;
+  }
+
+  // getOperand returns the two bytes after the opcode, little endian
+  public int getOperand() {
+    return this.operand;
+  }
+
+  public byte getA() {
+    return this.A;
+  }
+
+  public byte getX() {
+    return this.X;
+  }
+
+  public byte getY() {
+    return this.Y;
+  }
+
+  public byte getP() {
+    return this.P;
+  }
+
+  public byte getSP() {
+    return this.SP;
+  }
+
+  public int getInterrupt() {
+    return this.interrupt;
+  }
+
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  // replay passes every remaining record to sink, returns their number
+  public long replay(TraceSink sink) {
+    long n = 0;
+    while (this.next()) {
+      sink.trace(this.PC, this.SP, this.A, this.X, this.Y, this.P,
+          this.interrupt, this.cycles);
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Write every remaining record as a nestest-style line, the instruction
+   * disassembled from the recorded bytes followed by the registers.
+   */
+  public void disassemble(Appendable out) throws IOException {
+    // the disassembler reads the recorded bytes back at PC
+    CPUMemMapper bytes = new CPUMemMapper() {
+      @Override
+      public byte read(int address) {
+        int i = (address - TraceReader.this.PC) & 0xffff;
+        return (byte) (i == 0 ? TraceReader.this.opcode
+            : TraceReader.this.operand >> (8 * (i - 1)));
+      }
+
+      @Override
+      public void write(int address, int value) {
+      }
+    };
+    Disassembler disassembler = new Disassembler(bytes);
+    StringBuilder line = new StringBuilder(80);
+    while (this.next()) {
+      line.setLength(0);
+      disassembler.line(this.PC, line);
+      line.setLength(line.length() - 1);
+      while (line.length() < 48) {
+        line.append(' ');
+      }
+      line.append("A:");
+      hex(line, this.A);
+      line.append(" X:");
+      hex(line, this.X);
+      line.append(" Y:");
+      hex(line, this.Y);
+      line.append(" P:");
+      hex(line, this.P);
+      line.append(" SP:");
+      hex(line, this.SP);
+      line.append(" CYC:").append(this.cycles).append('\n');
+      out.append(line);
+    }
+  }
+
+  private static void hex(StringBuilder sb, byte value) {
+    sb.append(Character.toUpperCase(Character.forDigit((value >> 4) & 0xf,
+        16)));
+    sb.append(Character.toUpperCase(Character.forDigit(value & 0xf, 16)));
+  }
+
+  // fill reads until buf holds at least n bytes, false if the file ends
+  private boolean fill(int n) {
+    if (this.buf.remaining() >= n) {
+      return true;
+    }
+    if (this.eof) {
+      return false;
+    }
+    this.buf.compact();
+    try {
+      while (this.buf.position() < n) {
+        if (this.in.read(this.buf) < 0) {
+          this.eof = true;
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("trace read failed", e);
+    }
+    this.buf.flip();
+    return this.buf.remaining() >= n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean disassemble = args.length == 2 && args[0].equals("-d");
+    if (args.length != (disassemble ? 2 : 1)) {
+      System.err.println("usage: TraceReader [-d] trace.bin");
+      System.exit(2);
+    }
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out,
+        StandardCharsets.US_ASCII), 1 << 16);
+    try (TraceReader reader = new TraceReader(
+        FileChannel.open(Paths.get(args[args.length - 1])))) {
+      if (disassemble) {
+        reader.disassemble(out);
+        out.flush();
+      } else {
+        TextTraceSink text = new TextTraceSink(out);
+        reader.replay(text);
+        text.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.emulation.cpu;
+
+/**
+ * Receives the CPU state at the start of every instruction.
+ * 
+ * The fields are the same ones printed by CPU6502.toString(), with the eight
+ * flags packed into P (NVUBDIZC) and the pending interrupt given as 0 (none),
+ * 1 (NMI) or 2 (IRQ).
+ */
+public interface TraceSink {
+  
+  // NONE discards everything; it is the default sink of every CPU
+  public static final TraceSink NONE = new TraceSink() {
+    @Override
+    public void trace(int PC, byte SP, byte A, byte X, byte Y, byte P,
+        int interrupt, long cycles) {
+    }
+  };
+  
+  public void trace(int PC, byte SP, byte A, byte X, byte Y, byte P,
+      int interrupt, long cycles);
+}
@@ -0,0 +1,175 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.emulation.cpu.CPU6502.Arithmetic;
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Checks ADC, SBC and CMP on every A, operand, carry and D against an
+ * independent NMOS 6502 reference, in the ALU tables and through the CPU.
+ */
+class ALUTest {
+
+  static final int ADC = 0;
+  static final int SBC = 1;
+  static final int CMP = 2;
+
+  static final int[] OPCODES = { 0x69, 0xe9, 0xc9 };
+  static final String[] NAMES = { "ADC", "SBC", "CMP" };
+
+  /**
+   * Return NV----ZC &lt;&lt; 8 | A after op on a and b with carry c, in
+   * decimal mode when d, following the NMOS 6502 as VICE emulates it. CMP
+   * leaves A and v, the V flag before the instruction, unchanged.
+   */
+  static int reference(int op, int a, int b, int c, boolean d, int v) {
+    if (op == CMP) {
+      int t = a - b;
+      int flags = (t >= 0 ? 0x01 : 0) | ((t & 0xff) == 0 ? 0x02 : 0)
+          | (t & 0x80) | v << 6;
+      return flags << 8 | a;
+    }
+    int result;
+    int C;
+    int Z;
+    int N;
+    int V;
+    if (op == ADC) {
+      int binary = a + b + c;
+      if (!d) {
+        result = binary & 0xff;
+        C = binary >> 8;
+        Z = result == 0 ? 1 : 0;
+        N = result >> 7;
+        V = ((a ^ result) & (b ^ result) & 0x80) != 0 ? 1 : 0;
+      } else {
+        int t = (a & 0x0f) + (b & 0x0f) + c;
+        if (t > 9) {
+          t += 6;
+        }
+        if (t <= 0x0f) {
+          t = (t & 0x0f) + (a & 0xf0) + (b & 0xf0);
+        } else {
+          t = (t & 0x0f) + (a & 0xf0) + (b & 0xf0) + 0x10;
+        }
+        Z = (binary & 0xff) == 0 ? 1 : 0;
+        N = (t >> 7) & 1;
+        V = ((a ^ t) & 0x80) != 0 && ((a ^ b) & 0x80) == 0 ? 1 : 0;
+        if ((t & 0x1f0) > 0x90) {
+          t += 0x60;
+        }
+        C = (t & 0xff0) > 0xf0 ? 1 : 0;
+        result = t & 0xff;
+      }
+    } else {
+      int t = a - b - (1 - c);
+      result = t & 0xff;
+      C = t >= 0 ? 1 : 0;
+      Z = result == 0 ? 1 : 0;
+      N = result >> 7;
+      V = ((a ^ b) & (a ^ result) & 0x80) != 0 ? 1 : 0;
+      if (d) {
+        int u = (a & 0x0f) - (b & 0x0f) - (1 - c);
+        if ((u & 0x10) != 0) {
+          u = ((u - 6) & 0x0f) | ((a & 0xf0) - (b & 0xf0) - 0x10);
+        } else {
+          u = (u & 0x0f) | ((a & 0xf0) - (b & 0xf0));
+        }
+        if ((u & 0x100) != 0) {
+          u -= 0x60;
+        }
+        result = u & 0xff;
+      }
+    }
+    return (C | Z << 1 | V << 6 | N << 7) << 8 | result;
+  }
+
+  static String where(int op, int a, int b, int c, int d) {
+    return String.format("%s A %02x operand %02x carry %d D %d", NAMES[op], a,
+        b, c, d);
+  }
+
+  @Test
+  void tablesMatchTheReference() {
+    for (int i = 0; i < ALU.ADC.length; i++) {
+      int d = i >> 17;
+      int c = (i >> 16) & 1;
+      int a = (i >> 8) & 0xff;
+      int b = i & 0xff;
+      int adc = reference(ADC, a, b, c, d == 1, 0);
+      int sbc = reference(SBC, a, b, c, d == 1, 0);
+      assertEquals(adc, ALU.ADC[i], () -> where(ADC, a, b, c, d));
+      assertEquals(sbc, ALU.SBC[i], () -> where(SBC, a, b, c, d));
+    }
+  }
+
+  @Test
+  void knownDecimalResults() {
+    // { op, A, operand, carry, result, carry out }
+    int[][] known = { { ADC, 0x58, 0x46, 1, 0x05, 1 },
+        { ADC, 0x12, 0x34, 0, 0x46, 0 }, { ADC, 0x81, 0x92, 0, 0x73, 1 },
+        { SBC, 0x46, 0x12, 1, 0x34, 1 }, { SBC, 0x40, 0x13, 1, 0x27, 1 },
+        { SBC, 0x32, 0x02, 0, 0x29, 1 } };
+    for (int[] k : known) {
+      char[] table = k[0] == ADC ? ALU.ADC : ALU.SBC;
+      int entry = table[ALU.index(1, k[3], k[1], k[2])];
+      String where = where(k[0], k[1], k[2], k[3], 1);
+      assertEquals(k[4], entry & 0xff, where);
+      assertEquals(k[5], (entry >> 8) & ALU.C, where);
+    }
+  }
+
+  // check runs every operation, A, operand, carry, D and V on a CPU
+  static void check(Arithmetic arithmetic, Dispatch dispatch, boolean lazy) {
+    SimpleMemMapper m = new SimpleMemMapper();
+    // LDA #a, op #b, JMP $8000
+    int[] program = { 0xa9, 0, 0x69, 0, 0x4c, 0x00, 0x80 };
+    for (int i = 0; i < program.length; i++) {
+      m.write(0x8000 + i, program[i]);
+    }
+    m.write(0xfffc, 0x00);
+    m.write(0xfffd, 0x80);
+    CPU6502 cpu = new CPU6502(m, arithmetic);
+    cpu.setDispatch(dispatch);
+    cpu.setLazyFlags(lazy);
+    for (int op = ADC; op <= CMP; op++) {
+      m.write(0x8002, OPCODES[op]);
+      for (int d = 0; d < 2; d++) {
+        boolean decimal = d == 1 && arithmetic == Arithmetic.DECIMAL;
+        for (int c = 0; c < 2; c++) {
+          for (int a = 0; a < 0x100; a++) {
+            m.write(0x8001, a);
+            for (int b = 0; b < 0x100; b++) {
+              int v = (a ^ b ^ c) & 1;
+              m.write(0x8003, b);
+              cpu.setFlags(0x24 | c | d << 3 | v << 6);
+              cpu.step();
+              cpu.step();
+              int expected = reference(op, a, b, c, decimal, v);
+              int actual = (cpu.getStatus() & 0xc3) << 8 | (cpu.getA() & 0xff);
+              if (actual != expected) {
+                assertEquals(expected, actual, arithmetic + " " + dispatch
+                    + " lazy " + lazy + " " + where(op, a, b, c, d));
+              }
+              cpu.step();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(Arithmetic.class)
+  void cpuMatchesTheReference(Arithmetic arithmetic) {
+    check(arithmetic, Dispatch.SWITCH, false);
+    check(arithmetic, Dispatch.SWITCH, true);
+    check(arithmetic, Dispatch.TABLE, false);
+    check(arithmetic, Dispatch.TABLE, true);
+  }
+}
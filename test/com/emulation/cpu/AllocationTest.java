@@ -0,0 +1,66 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that stepping the CPU allocates nothing once it is warm.
+ */
+class AllocationTest {
+
+  static final int    WARMUP = 500_000;
+  static final int    STEPS  = 1_000_000;
+  static final int    ROUNDS = 3;
+
+  // loads, stores, ALU, stack and calls over a page of RAM
+  static final String LOOP   = String.join("\n", //
+      "start:  LDX #$00", //
+      "loop:   LDA $0200,X", //
+      "        CLC", //
+      "        ADC #$03", //
+      "        STA $0200,X", //
+      "        PHA", //
+      "        PLA", //
+      "        JSR sub", //
+      "        INX", //
+      "        BNE loop", //
+      "        JMP start", //
+      "sub:    ROR $10", //
+      "        RTS");
+
+  @ParameterizedTest
+  @EnumSource(Dispatch.class)
+  void stepAllocatesNothing(Dispatch dispatch) {
+    CPU6502 cpu = Machines.create(LOOP, dispatch);
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assertTrue(threads.isThreadAllocatedMemoryEnabled());
+    long thread = Thread.currentThread().getId();
+    for (int i = 0; i < WARMUP; i++) {
+      cpu.step();
+    }
+    threads.getThreadAllocatedBytes(thread);
+
+    // a recompilation after the warmup can reallocate a few objects once,
+    // so take the best of a few rounds
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long before = threads.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < STEPS; i++) {
+        cpu.step();
+      }
+      allocated = Math.min(allocated,
+          threads.getThreadAllocatedBytes(thread) - before);
+    }
+    // far less than one object per thousand steps
+    assertTrue(allocated < STEPS / 1000 * 16,
+        dispatch + " allocated " + allocated + " bytes in " + STEPS
+            + " steps");
+  }
+}
@@ -0,0 +1,131 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks what Assembler makes of source text.
+ */
+class AssemblerTest {
+
+  // assemble assembles source at origin and returns the bytes from origin
+  // up to the last one assembled
+  static int[] assemble(int origin, String source) {
+    Assembler assembler = new Assembler(origin).source(source);
+    int end = assembler.getPC();
+    byte[] image = assembler.assemble();
+    int[] bytes = new int[end - origin];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = image[origin + i] & 0xff;
+    }
+    return bytes;
+  }
+
+  static int[] assemble(String source) {
+    return assemble(0x8000, source);
+  }
+
+  static void assertBytes(String source, int... expected) {
+    assertArrayEquals(expected, assemble(source),
+        () -> source + " gave " + Arrays.toString(assemble(source)));
+  }
+
+  // assertError checks the message of the error source fails with
+  static void assertError(String message, String source) {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> assemble(source));
+    assertEquals(message, e.getMessage());
+  }
+
+  @Test
+  void labelsResolveForward() {
+    assertBytes(String.join("\n", //
+        "        JMP end", //
+        "        BNE end", //
+        "end:    RTS"), //
+        0x4c, 0x05, 0x80, 0xd0, 0x00, 0x60);
+    // a label defined later is taken as absolute, even below 0x100
+    assertBytes("LDA var\nvar = $10", 0xad, 0x10, 0x00);
+  }
+
+  @Test
+  void zeroPageIsPickedWhenItFits() {
+    assertBytes("LDA $10", 0xa5, 0x10);
+    assertBytes("LDA $0010", 0xad, 0x10, 0x00);
+    assertBytes("LDA $1234", 0xad, 0x34, 0x12);
+    assertBytes("LDA 16,X", 0xb5, 0x10);
+    assertBytes("LDA $0010,X", 0xbd, 0x10, 0x00);
+    assertBytes("LDX $10,Y", 0xb6, 0x10);
+    // LDA has no zero page,Y mode
+    assertBytes("LDA $10,Y", 0xb9, 0x10, 0x00);
+    assertBytes("var = $20\nSTX var", 0x86, 0x20);
+    assertBytes("LDA ($10),Y\nLDA ($20,X)", 0xb1, 0x10, 0xa1, 0x20);
+  }
+
+  @Test
+  void selectorsTakeOneByte() {
+    assertBytes("ptr = $1234\nLDA #<ptr\nLDX #>ptr", 0xa9, 0x34, 0xa2, 0x12);
+    assertBytes("LDA #<ptr\nLDX #>ptr\nptr = $9abc", 0xa9, 0xbc, 0xa2,
+        0x9a);
+    assertBytes("LDA #%101\nLDA #255", 0xa9, 0x05, 0xa9, 0xff);
+  }
+
+  @Test
+  void labelsTakeOffsets() {
+    assertBytes(String.join("\n", //
+        "        LDA table+1", //
+        "        LDA table-1", //
+        "        JMP later+2", //
+        "table:  .byte 1, 2", //
+        "later:  NOP"), //
+        0xad, 0x0a, 0x80, 0xad, 0x08, 0x80, 0x4c, 0x0d, 0x80, 0x01, 0x02,
+        0xea);
+  }
+
+  @Test
+  void branchesWrapAndStayInRange() {
+    assertArrayEquals(new int[] { 0xd0, 0x1c }, assemble(0xfff0, "BNE $000E"));
+    assertArrayEquals(new int[] { 0xf0, 0xe9 }, assemble(0x0005, "BEQ $FFF0"));
+    assertError("line 1: BNE $8082: branch to $8082 out of range",
+        "BNE $8082");
+    assertBytes("BNE $8081", 0xd0, 0x7f);
+    assertError("line 1: BEQ far: branch to $8100 out of range",
+        "BEQ far\nfar = $8100");
+  }
+
+  @Test
+  void dataResolvesForward() {
+    assertBytes(String.join("\n", //
+        "        .word later, later+2, $1234", //
+        "        .byte <later, >later, 3, -1", //
+        "later:  RTS"), //
+        0x0a, 0x80, 0x0c, 0x80, 0x34, 0x12, 0x0a, 0x80, 0x03, 0xff, 0x60);
+  }
+
+  @Test
+  void nopIsTheOfficialOne() {
+    assertBytes("NOP\nnop", 0xea, 0xea);
+    assertBytes("ASL\nASL A\nROR a", 0x0a, 0x0a, 0x6a);
+  }
+
+  @Test
+  void errorsNameTheLine() {
+    assertError("line 2: FOO #1: unknown instruction FOO", "NOP\n FOO #1");
+    assertError("line 1: LDA #$GG: bad number $GG", "LDA #$GG");
+    assertError("line 1: LDA #$100: value does not fit in a byte: 256",
+        "LDA #$100");
+    assertError("line 3: JMP nowhere ; a comment: undefined label nowhere",
+        "NOP\n\nJMP nowhere ; a comment");
+    assertError("line 2: x = 2: label defined twice: x", "x = 1\nx = 2");
+    assertError("line 1: STA #$10: STA has no imm mode", "STA #$10");
+    assertError("line 2: JMP $1234: program runs past $FFFF",
+        ".org $FFFE\nJMP $1234");
+    assertError("line 1: .org $10000: address out of range: 65536",
+        ".org $10000");
+  }
+}
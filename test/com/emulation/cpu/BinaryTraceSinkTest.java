@@ -0,0 +1,64 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Writes binary traces and reads them back with TraceReader.
+ */
+class BinaryTraceSinkTest {
+
+  // calls an RTS in the last byte before the I/O page at 0x2000, so the
+  // trace record of the RTS covers two device bytes
+  static final String CALL = String.join("\n", //
+      "loop:   JSR $1fff", //
+      "        INX", //
+      "        JMP loop", //
+      "        .org $1fff", //
+      "        RTS");
+
+  @Test
+  void tracesReadBackWithoutDeviceReads() throws IOException {
+    PagedMemMapper m = new PagedMemMapper();
+    byte[] ram = new byte[0x2000];
+    m.mapRAM(0x00, 0x20, ram, 0);
+    Machines.Counter device = new Machines.Counter();
+    m.mapIO(0x20, 0x20, device);
+    m.mapRAM(0x80, 0x80, new byte[0x8000], 0);
+    CPU6502 cpu = Machines.create(m, CALL);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (BinaryTraceSink sink = new BinaryTraceSink(cpu,
+        Channels.newChannel(out), 16)) {
+      cpu.setTraceSink(sink);
+      cpu.runInstructions(400);
+      cpu.setTraceSink(null);
+    }
+    assertEquals(0, device.reads);
+
+    try (TraceReader reader = new TraceReader(
+        Channels.newChannel(new ByteArrayInputStream(out.toByteArray())))) {
+      int records = 0;
+      int[] PCs = { 0x8000, 0x1fff, 0x8003, 0x8004 };
+      while (reader.next()) {
+        assertEquals(PCs[records % 4], reader.getPC());
+        if (reader.getPC() == 0x1fff) {
+          assertEquals(0x60, reader.getOpcode());
+          assertEquals(0xeaea, reader.getOperand());
+        }
+        records++;
+      }
+      assertEquals(400, records);
+      assertTrue(reader.getCycles() > 400 * 2);
+      assertFalse(reader.next());
+    }
+  }
+}
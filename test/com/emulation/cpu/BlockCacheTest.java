@@ -0,0 +1,28 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks what the block cache reads while decoding.
+ */
+class BlockCacheTest {
+
+  @Test
+  void decodingDoesNotReadDevices() {
+    PagedMemMapper m = new PagedMemMapper();
+    byte[] ram = new byte[0x2000];
+    m.mapRAM(0x00, 0x20, ram, 0);
+    Machines.Counter device = new Machines.Counter();
+    m.mapIO(0x20, 0x20, device);
+    // NOPs running into the I/O pages at 0x2000
+    for (int a = 0x1ff0; a < 0x2000; a++) {
+      ram[a] = (byte) 0xea;
+    }
+    BlockCache cache = new BlockCache(m);
+    BlockCache.Block block = cache.lookup(0x1ff0);
+    assertEquals(BlockCache.MAX_INSTRUCTIONS, block.length);
+    assertEquals(0, device.reads);
+  }
+}
@@ -0,0 +1,91 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the pause and speed ratio of a CPUMonitor.
+ */
+class CPUMonitorTest {
+
+  @Test
+  void pausedRunCallsReturnAtOnce() {
+    CPU6502 cpu = Machines.create(Machines.LOOP);
+    CPUMonitor monitor = CPUMonitor.register(cpu, "paused");
+    try {
+      cpu.runCycles(1000);
+      long cycles = cpu.cycles;
+      monitor.pause();
+      assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+        assertEquals(-1000, cpu.runCycles(1000));
+        assertEquals(0, cpu.runInstructions(1000));
+        assertEquals(0, cpu.runUntil(c -> false, 1000));
+        assertEquals(0, cpu.step());
+      });
+      assertTrue(cpu.isPaused());
+      assertEquals(cycles, cpu.cycles);
+
+      // a reset is applied even while paused
+      cpu.runInstructions(1);
+      monitor.reset();
+      cpu.runCycles(1000);
+      assertEquals(0x8000, cpu.getPC());
+
+      monitor.resume();
+      assertFalse(cpu.isPaused());
+      assertTrue(cpu.runCycles(1000) >= 0);
+      assertTrue(cpu.cycles > cycles);
+    } finally {
+      monitor.unregister();
+    }
+  }
+
+  @Test
+  void fleetsEndPausedMachines() throws InterruptedException {
+    try (Fleet fleet = new Fleet(1)) {
+      CPU6502 cpu = Machines.create(Machines.LOOP);
+      Fleet.Machine machine = fleet.add(cpu);
+      Fleet.Machine running = fleet.add(Machines.create(Machines.LOOP));
+      CPUMonitor monitor = CPUMonitor.register(cpu, "fleet");
+      try {
+        monitor.pause();
+        Fleet.Report report = assertTimeoutPreemptively(
+            Duration.ofSeconds(10), () -> fleet.run(10_000, 1_000));
+        assertEquals(1, report.getPaused());
+        assertTrue(machine.isPaused());
+        assertEquals(0, machine.getCycles());
+        assertTrue(running.getCycles() >= 10_000);
+
+        monitor.resume();
+        report = fleet.run(10_000, 1_000);
+        assertEquals(0, report.getPaused());
+        assertTrue(machine.getCycles() >= 10_000);
+      } finally {
+        monitor.unregister();
+      }
+    }
+  }
+
+  @Test
+  void speedRatioDoesNotDependOnCallers() throws InterruptedException {
+    CPU6502 cpu = Machines.create(Machines.LOOP);
+    CPUMonitor monitor = CPUMonitor.register(cpu, "ratio");
+    try {
+      cpu.runCycles(100_000);
+      Thread.sleep(10);
+      // a second reader right after the first sees the same window
+      double first = monitor.getSpeedRatio();
+      double second = monitor.getSpeedRatio();
+      assertTrue(first > 0);
+      assertTrue(second > first / 2, first + " then " + second);
+    } finally {
+      monitor.unregister();
+    }
+  }
+}
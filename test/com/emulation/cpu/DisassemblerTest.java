@@ -0,0 +1,121 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Disassembles random ROMs and checks the listings.
+ */
+class DisassemblerTest {
+
+  static final int BASE = 0x8000;
+  static final int SIZE = 0x4000;
+
+  // the opcodes, operands and addresses start at these columns
+  static final int TEXT = 16;
+
+  // rom returns SIZE random bytes, implemented opcodes or not
+  static byte[] rom(long seed) {
+    byte[] rom = new byte[SIZE];
+    new Random(seed).nextBytes(rom);
+    return rom;
+  }
+
+  static String listing(byte[] rom) throws IOException {
+    StringBuilder out = new StringBuilder();
+    new Disassembler(RomImage.wrap(rom), BASE).range(BASE, BASE + SIZE, out);
+    return out.toString();
+  }
+
+  @Test
+  void listingsAssembleToTheSameInstructions() throws IOException {
+    for (long seed = 0; seed < 20; seed++) {
+      byte[] rom = rom(seed);
+      StringBuilder source = new StringBuilder();
+      for (String line : listing(rom).split("\n")) {
+        source.append(line.substring(TEXT)).append('\n');
+      }
+      byte[] image = new Assembler(BASE).source(source.toString())
+          .assemble();
+      int address = BASE;
+      while (address < BASE + SIZE) {
+        int op = rom[address - BASE] & 0xff;
+        int assembled = image[address] & 0xff;
+        String where = String.format("image %d at $%04X", seed, address);
+        if (CPU6502.instructionSizes[op] == 0) {
+          // listed as .byte
+          assertEquals(op, assembled, where);
+        } else {
+          // unofficial opcodes with several encodings assemble to one
+          assertEquals(CPU6502.instructionNames[op],
+              CPU6502.instructionNames[assembled], where);
+          assertEquals(CPU6502.instructionModes[op],
+              CPU6502.instructionModes[assembled], where);
+        }
+        for (int i = 1; i < Disassembler.length(op); i++) {
+          int offset = address - BASE + i;
+          assertEquals(offset < SIZE ? rom[offset] : 0, image[address + i],
+              where);
+        }
+        address += Disassembler.length(op);
+      }
+    }
+  }
+
+  @Test
+  void parallelMatchesOneRange() throws IOException {
+    for (long seed = 0; seed < 5; seed++) {
+      byte[] rom = rom(seed);
+      byte[] expected = listing(rom).getBytes(StandardCharsets.US_ASCII);
+      for (int parts = 1; parts <= 9; parts++) {
+        assertArrayEquals(expected,
+            Disassembler.parallel(RomImage.wrap(rom), BASE, parts),
+            "image " + seed + " in " + parts + " parts");
+      }
+    }
+  }
+
+  @Test
+  void fullBuffersResume() throws IOException {
+    byte[] rom = rom(1);
+    Disassembler disassembler = new Disassembler(RomImage.wrap(rom), BASE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(3 * Disassembler.MAX_LINE - 1);
+    int address = BASE;
+    while (address < BASE + SIZE) {
+      int next = disassembler.range(address, BASE + SIZE, buffer);
+      // at least one line fits each time
+      assertTrue(next > address);
+      address = next;
+      buffer.flip();
+      out.write(buffer.array(), 0, buffer.limit());
+      buffer.clear();
+    }
+    assertEquals(listing(rom), out.toString(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  void memoryIsReadWithoutDeviceReads() throws IOException {
+    PagedMemMapper m = Machines.ram();
+    Machines.Counter device = new Machines.Counter();
+    m.mapIO(0x20, 0x01, device);
+    m.write(0x1ffe, 0xa9);
+    m.write(0x1fff, 0x01);
+    StringBuilder out = new StringBuilder();
+    assertEquals(0x2002,
+        new Disassembler(m).range(0x1ffe, 0x2002, out));
+    assertEquals("1FFE  A9 01     LDA #$01\n" //
+        + "2000  EA        NOP\n" //
+        + "2001  EA        NOP\n", out.toString());
+    assertEquals(0, device.reads);
+  }
+}
@@ -0,0 +1,130 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Runs random programs on every dispatch engine in lockstep with the SWITCH
+ * engine and checks that registers, flags, cycles and memory stay equal.
+ *
+ * Every byte of an image is an opcode the CPU implements, so execution that
+ * lands on an operand keeps going; the programs write into themselves all
+ * the time, which also covers cache invalidation.
+ */
+class DispatchTest {
+
+  static final int   IMAGES       = 300;
+  static final int   INSTRUCTIONS = 3000;
+
+  // opcodes with a non-zero size
+  static final int[] OPCODES      = opcodes();
+
+  static int[] opcodes() {
+    int n = 0;
+    int[] opcodes = new int[0x100];
+    for (int op = 0; op < 0x100; op++) {
+      if (CPU6502.instructionSizes[op] != 0) {
+        opcodes[n++] = op;
+      }
+    }
+    return Arrays.copyOf(opcodes, n);
+  }
+
+  // image returns a 64K image made of random implemented opcodes
+  static byte[] image(long seed) {
+    Random random = new Random(seed);
+    byte[] image = new byte[0x10000];
+    for (int i = 0; i < image.length; i++) {
+      image[i] = (byte) OPCODES[random.nextInt(OPCODES.length)];
+    }
+    return image;
+  }
+
+  static SimpleMemMapper memory(byte[] image) {
+    SimpleMemMapper m = new SimpleMemMapper();
+    System.arraycopy(image, 0, m.mem, 0, image.length);
+    return m;
+  }
+
+  /**
+   * Run the image of seed on dispatch and on an eager SWITCH CPU, in the
+   * same random slices of runInstructions with an NMI after some of them,
+   * and compare the two after every slice.
+   */
+  static void lockstep(long seed, Dispatch dispatch, boolean lazy) {
+    byte[] image = image(seed);
+    SimpleMemMapper expectedMemory = memory(image);
+    SimpleMemMapper actualMemory = memory(image);
+    CPU6502 expected = Machines.create(expectedMemory, Dispatch.SWITCH, false);
+    CPU6502 actual = Machines.create(actualMemory, dispatch, lazy);
+    Random random = new Random(~seed);
+    int done = 0;
+    while (done < INSTRUCTIONS) {
+      int slice = 1 + random.nextInt(64);
+      long cycles = expected.runInstructions(slice);
+      assertEquals(cycles, actual.runInstructions(slice),
+          () -> where(seed, expected));
+      done += slice;
+      if (random.nextInt(8) == 0) {
+        expected.triggerNMI();
+        actual.triggerNMI();
+      }
+      assertSame(seed, expected, actual);
+    }
+    assertArrayEquals(expectedMemory.mem, actualMemory.mem,
+        () -> where(seed, expected) + " memory");
+  }
+
+  static void assertSame(long seed, CPU6502 expected, CPU6502 actual) {
+    String where = where(seed, expected);
+    assertEquals(expected.getPC(), actual.getPC(), where + " PC");
+    assertEquals(expected.getA(), actual.getA(), where + " A");
+    assertEquals(expected.getX(), actual.getX(), where + " X");
+    assertEquals(expected.getY(), actual.getY(), where + " Y");
+    assertEquals(expected.getSP(), actual.getSP(), where + " SP");
+    assertEquals(expected.getStatus(), actual.getStatus(), where + " P");
+    assertEquals(expected.cycles, actual.cycles, where + " cycles");
+  }
+
+  static String where(long seed, CPU6502 cpu) {
+    return "image " + seed + " at instruction " + cpu.getInstructions();
+  }
+
+  @Test
+  void tableMatchesSwitch() {
+    for (long seed = 0; seed < IMAGES; seed++) {
+      lockstep(seed, Dispatch.TABLE, false);
+    }
+  }
+
+  @Test
+  void blockMatchesSwitch() {
+    for (long seed = 0; seed < IMAGES; seed++) {
+      lockstep(seed, Dispatch.BLOCK, false);
+    }
+  }
+
+  @Test
+  void jitMatchesSwitch() {
+    for (long seed = 0; seed < IMAGES; seed++) {
+      lockstep(seed, Dispatch.JIT, false);
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(Dispatch.class)
+  void lazyFlagsMatchEagerFlags(Dispatch dispatch) {
+    for (long seed = 0; seed < IMAGES; seed++) {
+      lockstep(seed, dispatch, true);
+    }
+  }
+}
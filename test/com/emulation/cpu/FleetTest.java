@@ -0,0 +1,48 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how a Fleet runs and fails machines.
+ */
+class FleetTest {
+
+  static final long BUDGET  = 100_000;
+  static final long QUANTUM = 1_000;
+
+  @Test
+  void errorsEndOnlyTheirMachine() {
+    try (Fleet fleet = new Fleet(2)) {
+      Fleet.Machine good = fleet.add(Machines.create(Machines.LOOP));
+      Fleet.Machine bad = fleet.add(
+          Machines.create(new Machines.Failing(5_000), Machines.LOOP));
+      // a lost latch count would hang run
+      Fleet.Report report = assertTimeoutPreemptively(Duration.ofSeconds(30),
+          () -> fleet.run(BUDGET, QUANTUM));
+      assertEquals(1, report.getFailed());
+      assertNull(good.getFailure());
+      assertTrue(good.getCycles() >= BUDGET);
+      assertTrue(bad.getFailure() instanceof StackOverflowError);
+    }
+  }
+
+  @Test
+  void runsReuseThePool() throws InterruptedException {
+    Fleet fleet = new Fleet(1);
+    fleet.add(Machines.create(Machines.LOOP));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(fleet.run(BUDGET, QUANTUM).getCycles() >= BUDGET);
+    }
+    fleet.close();
+    assertThrows(IllegalStateException.class,
+        () -> fleet.run(BUDGET, QUANTUM));
+  }
+}
@@ -0,0 +1,129 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the results and flags of single instructions.
+ */
+class InstructionTest {
+
+  static final int C = 0x01;
+  static final int Z = 0x02;
+  static final int V = 0x40;
+  static final int N = 0x80;
+
+  // run assembles source at 0x8000, runs it and returns the CPU
+  static CPU6502 run(String source, int instructions) {
+    CPU6502 cpu = Machines.create(source);
+    cpu.runInstructions(instructions);
+    return cpu;
+  }
+
+  static int flags(CPU6502 cpu, int mask) {
+    return cpu.getStatus() & mask;
+  }
+
+  @Test
+  void lsrShiftsZeroIntoBit7() {
+    CPU6502 cpu = run("LDA #$80\n LSR A", 2);
+    assertEquals(0x40, cpu.getA() & 0xff);
+    assertEquals(0, flags(cpu, N | Z | C));
+
+    cpu = run("LDA #$81\n STA $10\n LSR $10\n LDA $10", 4);
+    assertEquals(0x40, cpu.getA() & 0xff);
+    assertEquals(C, flags(cpu, N | Z | C));
+  }
+
+  @Test
+  void rorShiftsCarryIntoBit7() {
+    CPU6502 cpu = run("CLC\n LDA #$80\n ROR A", 3);
+    assertEquals(0x40, cpu.getA() & 0xff);
+    assertEquals(0, flags(cpu, N | Z | C));
+
+    cpu = run("SEC\n LDA #$81\n ROR A", 3);
+    assertEquals(0xc0, cpu.getA() & 0xff);
+    assertEquals(N | C, flags(cpu, N | Z | C));
+
+    cpu = run("LDA #$80\n STA $10\n CLC\n ROR $10\n LDA $10", 5);
+    assertEquals(0x40, cpu.getA() & 0xff);
+
+    cpu = run("LDA #$01\n STA $10\n CLC\n ROR $10\n LDA $10", 5);
+    assertEquals(0x00, cpu.getA() & 0xff);
+  }
+
+  // binary returns the NV-ZC flags of op (ADC, SBC or CMP) on a and b with
+  // carry in, computed bit by bit like the 6502 adder
+  static int binary(int op, int a, int b, int carry) {
+    if (op != 0x69) {
+      b ^= 0xff;
+    }
+    if (op == 0xc9) {
+      carry = 1;
+    }
+    int result = 0;
+    int bit6 = 0;
+    for (int i = 0; i < 8; i++) {
+      int x = (a >> i) & 1;
+      int y = (b >> i) & 1;
+      result |= (x ^ y ^ carry) << i;
+      carry = (x & y) | (carry & (x ^ y));
+      if (i == 6) {
+        bit6 = carry;
+      }
+    }
+    int flags = (carry != 0 ? C : 0) | (result == 0 ? Z : 0) | (result & N);
+    if (op != 0xc9 && bit6 != carry) {
+      flags |= V;
+    }
+    return flags;
+  }
+
+  // carryFlags runs op #b on every A and carry, with lazy flags on or off,
+  // and compares C, Z, N and V with binary()
+  static void carryFlags(int op, boolean lazy) {
+    SimpleMemMapper m = new SimpleMemMapper();
+    m.write(0xfffc, 0x00);
+    m.write(0xfffd, 0x80);
+    CPU6502 cpu = new CPU6502(m);
+    cpu.setLazyFlags(lazy);
+    for (int carry = 0; carry < 2; carry++) {
+      for (int a = 0; a < 0x100; a++) {
+        for (int b = 0; b < 0x100; b++) {
+          // SEC or CLC, CLV, LDA #a, op #b
+          m.write(0x8000, carry != 0 ? 0x38 : 0x18);
+          m.write(0x8001, 0xb8);
+          m.write(0x8002, 0xa9);
+          m.write(0x8003, a);
+          m.write(0x8004, op);
+          m.write(0x8005, b);
+          cpu.reset();
+          cpu.runInstructions(4);
+          int expected = binary(op, a, b, carry);
+          assertEquals(expected, flags(cpu, N | V | Z | C),
+              String.format("op %02x A %02x operand %02x carry %d lazy %b",
+                  op, a, b, carry, lazy));
+        }
+      }
+    }
+  }
+
+  @Test
+  void adcSetsCarryAndOverflow() {
+    carryFlags(0x69, false);
+    carryFlags(0x69, true);
+  }
+
+  @Test
+  void sbcSetsCarryAndOverflow() {
+    carryFlags(0xe9, false);
+    carryFlags(0xe9, true);
+  }
+
+  @Test
+  void cmpSetsCarry() {
+    carryFlags(0xc9, false);
+    carryFlags(0xc9, true);
+  }
+}
@@ -0,0 +1,113 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Records journals of random events on random images and replays them on
+ * other engines with other run lengths.
+ */
+class JournalTest {
+
+  static final int    IMAGES = 100;
+  static final int    RUNS   = 200;
+
+  static final Dispatch[] ENGINES = Dispatch.values();
+
+  // record runs image in random slices on dispatch, with a random event or
+  // checkpoint after each, and returns the journal
+  static byte[] record(long seed, byte[] image, Dispatch dispatch)
+      throws IOException {
+    CPU6502 cpu = Machines.create(DispatchTest.memory(image), dispatch,
+        false);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Random random = new Random(seed);
+    try (Journal.Recorder recorder = new Journal.Recorder(cpu,
+        Channels.newChannel(out))) {
+      for (int i = 0; i < RUNS; i++) {
+        cpu.runCycles(1 + random.nextInt(500));
+        switch (random.nextInt(4)) {
+          case 0:
+            recorder.triggerNMI();
+            break;
+          case 1:
+            recorder.triggerIRQ();
+            break;
+          case 2:
+            recorder.write(0x0200 + random.nextInt(0x100),
+                random.nextInt(0x100));
+            break;
+          default:
+            break;
+        }
+        recorder.checkpoint();
+      }
+    }
+    return out.toByteArray();
+  }
+
+  // replay plays journal over image on dispatch in random slices and
+  // returns the number of events injected
+  static long replay(long seed, byte[] image, byte[] journal,
+      Dispatch dispatch, boolean lazy) {
+    CPU6502 cpu = Machines.create(DispatchTest.memory(image), dispatch,
+        lazy);
+    Journal.Player player = new Journal.Player(cpu,
+        Channels.newChannel(new ByteArrayInputStream(journal)));
+    Random random = new Random(~seed);
+    while (!player.isDone()) {
+      player.runCycles(1 + random.nextInt(2000));
+    }
+    return player.getEvents();
+  }
+
+  @Test
+  void replaysMatchOnEveryEngine() throws IOException {
+    for (long seed = 0; seed < IMAGES; seed++) {
+      byte[] image = DispatchTest.image(seed);
+      Dispatch recorded = ENGINES[(int) (seed % ENGINES.length)];
+      byte[] journal = record(seed, image, recorded);
+      for (int i = 1; i < 3; i++) {
+        Dispatch replayed = ENGINES[(int) ((seed + i) % ENGINES.length)];
+        long events = replay(seed + i, image, journal, replayed, i == 2);
+        assertTrue(events >= RUNS, "image " + seed + " on " + replayed);
+      }
+    }
+  }
+
+  @Test
+  void replayOnAnotherImageFails() throws IOException {
+    for (long seed = 0; seed < IMAGES; seed++) {
+      byte[] image = DispatchTest.image(seed);
+      byte[] journal = record(seed, image, Dispatch.SWITCH);
+      // replace the first instruction with a jump to itself
+      byte[] modified = image.clone();
+      int start = (image[0xfffc] & 0xff) | (image[0xfffd] & 0xff) << 8;
+      modified[start] = (byte) 0x4c;
+      modified[(start + 1) & 0xffff] = (byte) start;
+      modified[(start + 2) & 0xffff] = (byte) (start >> 8);
+      final long s = seed;
+      IllegalStateException e = assertThrows(IllegalStateException.class,
+          () -> replay(s, modified, journal, Dispatch.TABLE, false),
+          "image " + seed);
+      assertTrue(e.getMessage().startsWith("replay does not match"));
+    }
+  }
+
+  @Test
+  void journalsAreSmall() throws IOException {
+    byte[] journal = record(0, DispatchTest.image(0), Dispatch.BLOCK);
+    // magic, start cycle, end record and at most 10 bytes per run
+    assertTrue(journal.length <= 12 + 2 + RUNS * 10, journal.length + " bytes");
+  }
+}
@@ -0,0 +1,122 @@
+package com.emulation.cpu;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Builds the machines tests run: a program assembled at 0x8000 with the
+ * reset vector pointing at it, and the devices tests map next to it.
+ */
+final class Machines {
+
+  // counts in X forever
+  static final String     LOOP  = "loop: INX\n JMP loop";
+
+  // counts in X, and in Y on every NMI
+  static final String     COUNT = String.join("\n", //
+      "loop:   INX", //
+      "        JMP loop", //
+      "nmi:    INY", //
+      "        RTI");
+
+  // an NMI every 1000 cycles, scheduled relative to its own cycle
+  static final CycleEvent TIMER = new CycleEvent() {
+    @Override
+    public void fire(CPU6502 cpu, long cycle) {
+      cpu.triggerNMI();
+      cpu.schedule(cycle + 1000, this);
+    }
+  };
+
+  // a device that counts reads and returns NOP opcodes
+  static final class Counter implements CPUMemMapper {
+    int reads;
+
+    @Override
+    public byte read(int address) {
+      this.reads++;
+      return (byte) 0xea;
+    }
+
+    @Override
+    public void write(int address, int value) {
+    }
+
+    @Override
+    public byte peek(int address) {
+      return (byte) 0xea;
+    }
+  }
+
+  // a mapper that throws an Error once it has been read count times
+  static final class Failing extends SimpleMemMapper {
+    int count;
+
+    Failing(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public byte read(int address) {
+      if (--this.count == 0) {
+        throw new StackOverflowError("read " + address);
+      }
+      return super.read(address);
+    }
+  }
+
+  private Machines() {
+  }
+
+  // load assembles source at 0x8000 into m and points the reset vector at it
+  static <M extends CPUMemMapper> M load(M m, String source) {
+    new Assembler(0x8000).source(source).org(0xfffc).word(0x8000).load(m);
+    return m;
+  }
+
+  // load also points the NMI vector at the label nmi
+  static <M extends CPUMemMapper> M load(M m, String source, String nmi) {
+    new Assembler(0x8000).source(source).org(0xfffa).word(nmi).word(0x8000)
+        .load(m);
+    return m;
+  }
+
+  // ram returns a PagedMemMapper with RAM everywhere
+  static PagedMemMapper ram() {
+    PagedMemMapper m = new PagedMemMapper();
+    m.mapRAM(0x00, 0x100, new byte[0x10000], 0);
+    return m;
+  }
+
+  // create returns a CPU on m, which already holds its program
+  static CPU6502 create(CPUMemMapper m, Dispatch dispatch, boolean lazy) {
+    CPU6502 cpu = new CPU6502(m);
+    cpu.setDispatch(dispatch);
+    cpu.setLazyFlags(lazy);
+    return cpu;
+  }
+
+  // create loads source into m and returns a CPU on it
+  static CPU6502 create(CPUMemMapper m, String source, Dispatch dispatch) {
+    return create(load(m, source), dispatch, false);
+  }
+
+  // create returns a CPU running source on a SimpleMemMapper
+  static CPU6502 create(String source, Dispatch dispatch) {
+    return create(new SimpleMemMapper(), source, dispatch);
+  }
+
+  static CPU6502 create(CPUMemMapper m, String source) {
+    return create(m, source, Dispatch.SWITCH);
+  }
+
+  static CPU6502 create(String source) {
+    return create(source, Dispatch.SWITCH);
+  }
+
+  // timed returns a CPU running COUNT in RAM, with TIMER first at cycle 500
+  static CPU6502 timed(Dispatch dispatch) {
+    CPU6502 cpu = create(load(ram(), COUNT, "nmi"), dispatch, false);
+    cpu.schedule(500, TIMER);
+    return cpu;
+  }
+}
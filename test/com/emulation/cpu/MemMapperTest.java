@@ -0,0 +1,198 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Checks the block methods of the mappers against byte by byte reads and
+ * writes, and the DMA of the CPU.
+ */
+class MemMapperTest {
+
+  static final int OPS = 3000;
+
+  // a mapper that only forwards read and write, so every block method runs
+  // the byte by byte defaults of CPUMemMapper
+  static final class Bytewise implements CPUMemMapper {
+    final CPUMemMapper m;
+
+    Bytewise(CPUMemMapper m) {
+      this.m = m;
+    }
+
+    @Override
+    public byte read(int address) {
+      return this.m.read(address);
+    }
+
+    @Override
+    public void write(int address, int value) {
+      this.m.write(address, value);
+    }
+  }
+
+  static SimpleMemMapper simple() {
+    SimpleMemMapper m = new SimpleMemMapper();
+    new Random(1).nextBytes(m.mem);
+    return m;
+  }
+
+  // paged maps RAM, an I/O device and ROM, in pages that copies cross, and
+  // shares the RAM pages with a snapshot
+  static PagedMemMapper paged() {
+    Random random = new Random(1);
+    byte[] ram = new byte[0xee00];
+    random.nextBytes(ram);
+    byte[] rom = new byte[0x1000];
+    random.nextBytes(rom);
+    PagedMemMapper m = new PagedMemMapper();
+    m.mapRAM(0x00, 0x20, ram, 0);
+    m.mapIO(0x20, 0x02, simple());
+    m.mapROM(0x22, 0x10, rom, 0);
+    m.mapRAM(0x32, 0xce, ram, 0x2000);
+    m.snapshot();
+    return m;
+  }
+
+  static void assertSameMemory(CPUMemMapper expected, CPUMemMapper actual,
+      String where) {
+    for (int address = 0; address < 0x10000; address++) {
+      assertEquals(expected.read(address), actual.read(address),
+          where + " at " + address);
+    }
+  }
+
+  // compare runs random block operations on a mapper and, through
+  // Bytewise, on an identical one
+  static void compare(Supplier<CPUMemMapper> create) {
+    CPUMemMapper actual = create.get();
+    CPUMemMapper expected = new Bytewise(create.get());
+    Random random = new Random(2);
+    for (int op = 0; op < OPS; op++) {
+      int address = random.nextInt(0x10000);
+      int length = random.nextInt(600);
+      String where = "op " + op + " address " + address + " length "
+          + length;
+      switch (op % 4) {
+        case 0:
+          assertEquals(expected.read16(address), actual.read16(address),
+              where);
+          break;
+        case 1:
+          byte[] want = new byte[length + 2];
+          byte[] got = new byte[length + 2];
+          expected.readBlock(address, want, 1, length);
+          actual.readBlock(address, got, 1, length);
+          assertArrayEquals(want, got, where);
+          break;
+        case 2:
+          byte[] src = new byte[length + 2];
+          random.nextBytes(src);
+          expected.writeBlock(address, src, 1, length);
+          actual.writeBlock(address, src, 1, length);
+          break;
+        default:
+          // ranges that do not overlap, wrapping at 0xffff
+          int dst = (address + length + random.nextInt(0x10000 - 2 * length))
+              & 0xffff;
+          expected.dma(address, dst, length);
+          actual.dma(address, dst, length);
+          break;
+      }
+      if (op % 500 == 499) {
+        assertSameMemory(expected, actual, where);
+      }
+    }
+    assertSameMemory(expected, actual, "end");
+  }
+
+  @Test
+  void simpleBlocksMatchBytes() {
+    compare(MemMapperTest::simple);
+  }
+
+  @Test
+  void pagedBlocksMatchBytes() {
+    compare(MemMapperTest::paged);
+  }
+
+  @Test
+  void wordsWrapAtTheTop() {
+    CPUMemMapper[] mappers = { simple(), paged() };
+    for (CPUMemMapper m : mappers) {
+      m.write(0xffff, 0x34);
+      m.write(0x0000, 0x12);
+      assertEquals(0x1234, m.read16(0xffff));
+      m.write(0x12ff, 0x78);
+      m.write(0x1300, 0x56);
+      assertEquals(0x5678, m.read16(0x12ff));
+
+      byte[] block = new byte[4];
+      m.readBlock(0xfffe, block, 0, 4);
+      assertEquals(0x34, block[1]);
+      assertEquals(0x12, block[2]);
+      m.writeBlock(0xffff, new byte[] { 1, 2 }, 0, 2);
+      assertEquals(0x0201, m.read16(0xffff));
+    }
+  }
+
+  @Test
+  void dmaStallsTheCPU() {
+    CPU6502 cpu = Machines.create(Machines.LOOP);
+    byte[] oam = new byte[0x100];
+    for (int i = 0; i < 0x100; i++) {
+      cpu.write(0x0200 + i, i);
+    }
+
+    // started on an even cycle
+    assertEquals(0, cpu.cycles & 1);
+    cpu.dma(0x0200, oam, 0, 0x100);
+    assertEquals(513, cpu.dmaCycles);
+    for (int i = 0; i < 0x100; i++) {
+      assertEquals(i, oam[i] & 0xff);
+    }
+    long instructions = cpu.getInstructions();
+    cpu.runCycles(513);
+    assertEquals(instructions, cpu.getInstructions());
+    cpu.step();
+    assertEquals(instructions + 1, cpu.getInstructions());
+
+    // and on an odd one, INX then JMP
+    cpu.step();
+    assertEquals(1, cpu.cycles & 1);
+    cpu.dma(0x0200, 0x0300, 0x100);
+    assertEquals(513 + 514, cpu.dmaCycles);
+    for (int i = 0; i < 0x100; i++) {
+      assertEquals(i, cpu.peek(0x0300 + i) & 0xff);
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = Dispatch.class, names = { "BLOCK", "JIT" })
+  void dmaInvalidatesCode(Dispatch dispatch) {
+    CPUMemMapper[] mappers = { new SimpleMemMapper(), Machines.ram() };
+    for (CPUMemMapper m : mappers) {
+      CPU6502 cpu = Machines.create(m, Machines.LOOP, dispatch);
+      cpu.runCycles(10_000);
+      assertTrue(cpu.getX() != 0);
+      // INY over the INX at 0x8000
+      cpu.write(0x0200, 0xc8);
+      cpu.dma(0x0200, 0x8000, 1);
+      cpu.runCycles(10_000);
+      int x = cpu.getX();
+      cpu.runCycles(10_000);
+      assertEquals(x, cpu.getX());
+      assertTrue(cpu.getY() != 0, m.getClass().getSimpleName());
+    }
+  }
+}
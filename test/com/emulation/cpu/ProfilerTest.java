@@ -0,0 +1,102 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Profiles a known loop on every engine.
+ */
+class ProfilerTest {
+
+  // eight instructions and 19 cycles per pass: LDX 2, DEX 3 x 2, BNE taken
+  // twice for 3 and once for 2, JMP 3
+  static final String LOOP = String.join("\n", //
+      "start:  LDX #$03", //
+      "loop:   DEX", //
+      "        BNE loop", //
+      "        JMP start");
+
+  static final String[] CSV = { //
+      "kind,key,name,count,cycles", //
+      "opcode,4C,JMP,2,6", //
+      "opcode,A2,LDX,2,4", //
+      "opcode,CA,DEX,6,12", //
+      "opcode,D0,BNE,6,16", //
+      "pc,8000,LDX,2,4", //
+      "pc,8002,DEX,6,12", //
+      "pc,8003,BNE,6,16", //
+      "pc,8005,JMP,2,6" };
+
+  // a mapper that counts reads, but not peeks
+  static final class Reads extends SimpleMemMapper {
+    int reads;
+
+    @Override
+    public byte read(int address) {
+      this.reads++;
+      return super.read(address);
+    }
+
+    @Override
+    public byte peek(int address) {
+      return super.read(address);
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(Dispatch.class)
+  void countsTwoPasses(Dispatch dispatch) throws IOException {
+    Reads m = new Reads();
+    CPU6502 cpu = Machines.create(m, LOOP, dispatch);
+    Profiler profiler = new Profiler();
+    cpu.setProfiler(profiler);
+    cpu.runInstructions(16);
+
+    assertEquals(6, profiler.getOpcodeCount(0xd0));
+    assertEquals(16, profiler.getOpcodeCycles(0xd0));
+    assertEquals(2, profiler.getCount(0x8000));
+    assertEquals(4, profiler.getCycles(0x8000));
+    assertEquals(6, profiler.getCount(0x8002));
+    assertEquals(16, profiler.getCycles(0x8003));
+    assertEquals(0, profiler.getCount(0x8001));
+
+    // largest cycles first, in both tables
+    String[] report = profiler.report(2).split("\n");
+    assertEquals(7, report.length);
+    assertTrue(report[1].startsWith("0xD0 BNE"), report[1]);
+    assertTrue(report[1].endsWith(String.format("%6.2f%%", 1600.0 / 38)),
+        report[1]);
+    assertTrue(report[2].startsWith("0xCA DEX"), report[2]);
+    assertTrue(report[5].startsWith("0x8003 BNE"), report[5]);
+    assertTrue(report[6].startsWith("0x8002 DEX"), report[6]);
+
+    StringBuilder csv = new StringBuilder();
+    profiler.writeCSV(csv);
+    assertArrayEquals(CSV, csv.toString().split("\n"));
+
+    // the profiler takes opcodes without reading memory again
+    Reads plain = new Reads();
+    Machines.create(plain, LOOP, dispatch).runInstructions(16);
+    assertEquals(plain.reads, m.reads);
+
+    profiler.reset();
+    for (int i = 0; i < 0x10000; i++) {
+      assertEquals(0, profiler.getCount(i));
+      assertEquals(0, profiler.getCycles(i));
+      assertEquals(0, profiler.getOpcodeCount(i & 0xff));
+      assertEquals(0, profiler.getOpcodeCycles(i & 0xff));
+    }
+    assertEquals(3, profiler.report(10).split("\n").length);
+    csv.setLength(0);
+    profiler.writeCSV(csv);
+    assertEquals(CSV[0] + "\n", csv.toString());
+  }
+}
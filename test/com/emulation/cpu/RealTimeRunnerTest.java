@@ -0,0 +1,36 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how a RealTimeRunner stops sessions.
+ */
+class RealTimeRunnerTest {
+
+  @Test
+  void errorsStopTheirSession() throws InterruptedException {
+    try (RealTimeRunner runner = new RealTimeRunner(1)) {
+      // the reads of the first burst fail with an Error
+      Machines.Failing m = new Machines.Failing(100);
+      RealTimeRunner.Session session = runner.start(
+          Machines.create(m, Machines.LOOP));
+      for (int i = 0; i < 500 && !session.isStopped(); i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(session.isStopped());
+      assertTrue(session.getFailure() instanceof StackOverflowError);
+    }
+  }
+
+  @Test
+  void closeKeepsTheInterrupt() {
+    RealTimeRunner runner = new RealTimeRunner(1);
+    runner.start(Machines.create(Machines.LOOP));
+    Thread.currentThread().interrupt();
+    runner.close();
+    // clears the flag for the tests that follow
+    assertTrue(Thread.interrupted());
+  }
+}
@@ -0,0 +1,94 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.invoke.MethodHandles;
+
+import org.junit.jupiter.api.Test;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Checks compiled blocks against the BLOCK interpreter.
+ */
+class RecompilerTest {
+
+  // sums reads of a device at 0x2000 without writing memory
+  static final String SUM = String.join("\n", //
+      "start:  LDY #$00", //
+      "loop:   LDA $2000", //
+      "        INX", //
+      "        INY", //
+      "        CLC", //
+      "        ADC #$01", //
+      "        AND #$7f", //
+      "        ORA #$01", //
+      "        BNE loop", //
+      "nmi:    INC $10", //
+      "        RTI");
+
+  // a device that raises an NMI on every seventh read
+  static final class Interrupter implements CPUMemMapper {
+    CPU6502 cpu;
+    int     reads;
+
+    @Override
+    public byte read(int address) {
+      if (++this.reads % 7 == 0) {
+        this.cpu.triggerNMI();
+      }
+      return (byte) this.reads;
+    }
+
+    @Override
+    public void write(int address, int value) {
+    }
+
+    @Override
+    public byte peek(int address) {
+      return (byte) this.reads;
+    }
+  }
+
+  static PagedMemMapper memory(CPUMemMapper device) {
+    PagedMemMapper m = new PagedMemMapper();
+    m.mapRAM(0x00, 0x20, new byte[0x2000], 0);
+    m.mapIO(0x20, 0x01, device);
+    m.mapRAM(0x80, 0x80, new byte[0x8000], 0);
+    return Machines.load(m, SUM, "nmi");
+  }
+
+  static CPU6502 create(Dispatch dispatch) {
+    Interrupter device = new Interrupter();
+    CPU6502 cpu = Machines.create(memory(device), dispatch, false);
+    device.cpu = cpu;
+    return cpu;
+  }
+
+  @Test
+  void machinesShareCompiledBlocks() throws ReflectiveOperationException {
+    MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(
+        CPU6502.class, MethodHandles.lookup());
+    BlockCache.Block first = new BlockCache(memory(new Interrupter()))
+        .lookup(0x8002);
+    BlockCache.Block second = new BlockCache(memory(new Interrupter()))
+        .lookup(0x8002);
+    CompiledBlock compiled = new Recompiler(lookup).compile(first);
+    assertNotNull(compiled);
+    assertSame(compiled, new Recompiler(lookup).compile(second));
+  }
+
+  @Test
+  void readsRaiseInterruptsInsideBlocks() {
+    CPU6502 expected = create(Dispatch.BLOCK);
+    CPU6502 actual = create(Dispatch.JIT);
+    for (int slice = 0; slice < 2000; slice++) {
+      expected.runInstructions(50);
+      actual.runInstructions(50);
+      DispatchTest.assertSame(slice, expected, actual);
+    }
+    assertTrue(expected.nmis > 0);
+  }
+}
@@ -0,0 +1,152 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Rewinds machines that write memory and take NMIs.
+ */
+class RewindTest {
+
+  static final long   INTERVAL = 1000;
+  static final long   BUDGET   = 1 << 20;
+
+  // writes a few pages in the loop and one more in the NMI handler
+  static final String STORE    = String.join("\n", //
+      "loop:   INX", //
+      "        TXA", //
+      "        STA $0300,X", //
+      "        INC $10", //
+      "        JMP loop", //
+      "nmi:    INY", //
+      "        STY $0400", //
+      "        RTI");
+
+  static CPU6502 create(Dispatch dispatch) {
+    CPU6502 cpu = Machines.create(Machines.load(Machines.ram(), STORE, "nmi"),
+        dispatch, false);
+    cpu.schedule(500, Machines.TIMER);
+    return cpu;
+  }
+
+  // assertSame runs expected to the cycle count of actual and compares the
+  // two, memory included
+  static void assertSame(CPU6502 expected, CPU6502 actual) {
+    expected.runCycles(actual.cycles - expected.cycles);
+    DispatchTest.assertSame(0, expected, actual);
+    for (int address = 0; address < 0x10000; address++) {
+      assertEquals(expected.peek(address), actual.peek(address),
+          "memory at " + address);
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(Dispatch.class)
+  void rewindsRestoreRecordedStates(Dispatch dispatch) {
+    CPU6502 cpu = create(dispatch);
+    Rewind rewind = new Rewind(cpu, INTERVAL, BUDGET);
+    rewind.runCycles(50_000);
+    int size = rewind.size();
+
+    long at = rewind.rewindTo(20_500);
+    assertTrue(at <= 20_500 && at > 20_500 - INTERVAL, "at " + at);
+    assertEquals(at, cpu.cycles);
+    assertTrue(rewind.size() < size - 25);
+    CPU6502 expected = create(dispatch);
+    assertSame(expected, cpu);
+
+    // the restored machine goes on like one that never rewound
+    rewind.runCycles(10_000);
+    assertSame(expected, cpu);
+
+    long before = cpu.cycles;
+    at = rewind.rewind(5_000);
+    assertTrue(at <= before - 5_000 && at > before - 5_000 - INTERVAL,
+        "at " + at);
+    assertSame(create(dispatch), cpu);
+  }
+
+  @Test
+  void oldSnapshotsAreDroppedOverTheBudget() {
+    CPU6502 cpu = create(Dispatch.SWITCH);
+    // the table bytes of ten snapshots and a few pages each
+    long budget = 10 * (Rewind.TABLE_BYTES + 3 * PagedMemMapper.PAGE_SIZE);
+    Rewind rewind = new Rewind(cpu, INTERVAL, budget);
+    rewind.runCycles(100_000);
+    assertTrue(rewind.getBytes() <= budget, rewind.getBytes() + " bytes");
+    assertTrue(rewind.size() >= 8 && rewind.size() <= 10,
+        rewind.size() + " snapshots");
+    assertTrue(rewind.getOldest() > 80_000);
+
+    // going back further than the oldest stops at the oldest
+    assertEquals(rewind.getOldest(), rewind.rewindTo(0));
+    assertEquals(1, rewind.size());
+  }
+
+  @Test
+  void outsideSnapshotsDoNotHidePages() {
+    CPU6502 cpu = create(Dispatch.SWITCH);
+    Rewind rewind = new Rewind(cpu, INTERVAL, BUDGET);
+    CPU6502 other = create(Dispatch.SWITCH);
+    Rewind expected = new Rewind(other, INTERVAL, BUDGET);
+    for (int i = 0; i < 50; i++) {
+      rewind.runCycles(700);
+      expected.runCycles(700);
+      cpu.snapshot();
+      cpu.fork();
+    }
+    assertEquals(expected.size(), rewind.size());
+    assertEquals(expected.getBytes(), rewind.getBytes());
+  }
+
+  @Test
+  void runsStopAtIntervalBoundaries() {
+    CPU6502 cpu = create(Dispatch.SWITCH);
+    Rewind rewind = new Rewind(cpu, INTERVAL, BUDGET);
+    long start = cpu.cycles;
+    rewind.runCycles(10 * INTERVAL + INTERVAL / 2);
+    assertEquals(11, rewind.size());
+    for (int k = 10; k > 0; k--) {
+      long boundary = start + k * INTERVAL;
+      long at = rewind.rewindTo(boundary + INTERVAL / 2);
+      // at most one instruction and one interrupt entry past the boundary
+      assertTrue(at >= boundary && at < boundary + 14, "at " + at);
+    }
+  }
+
+  @Test
+  void pausedRunsReturnAtOnce() {
+    CPU6502 cpu = create(Dispatch.SWITCH);
+    Rewind rewind = new Rewind(cpu, INTERVAL, BUDGET);
+    CPUMonitor monitor = CPUMonitor.register(cpu, "rewind");
+    try {
+      monitor.pause();
+      long cycles = cpu.cycles;
+      assertEquals(-10_000, (long) assertTimeoutPreemptively(
+          Duration.ofSeconds(10), () -> rewind.runCycles(10_000)));
+      assertEquals(cycles, cpu.cycles);
+      assertEquals(1, rewind.size());
+    } finally {
+      monitor.unregister();
+    }
+  }
+
+  @Test
+  void rewindNeedsPagedMemory() {
+    CPU6502 cpu = Machines.create(Machines.LOOP);
+    assertThrows(IllegalArgumentException.class,
+        () -> new Rewind(cpu, INTERVAL, BUDGET));
+    assertThrows(IllegalArgumentException.class,
+        () -> new Rewind(create(Dispatch.SWITCH), 0, BUDGET));
+  }
+}
@@ -0,0 +1,107 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Maps ROM files into machines.
+ */
+class RomImageTest {
+
+  // counts in RAM and tries to write over itself
+  static final String PROGRAM = String.join("\n", //
+      "loop:   INX", //
+      "        STX $10", //
+      "        STX loop", //
+      "        JMP loop");
+
+  @TempDir
+  Path dir;
+
+  // rom writes PROGRAM and its vectors as a 32K image at 0x8000 to a file
+  byte[] rom(Path file) throws IOException {
+    byte[] image = new Assembler(0x8000).source(PROGRAM).org(0xfffc)
+        .word(0x8000).assemble();
+    byte[] rom = Arrays.copyOfRange(image, 0x8000, 0x10000);
+    Files.write(file, rom);
+    return rom;
+  }
+
+  static PagedMemMapper memory(RomImage rom) {
+    PagedMemMapper m = new PagedMemMapper();
+    m.mapRAM(0x00, 0x80, new byte[0x8000], 0);
+    m.mapROM(0x80, 0x80, rom, 0);
+    return m;
+  }
+
+  @Test
+  void readsMatchTheFile() throws IOException {
+    Path file = this.dir.resolve("rom.bin");
+    byte[] bytes = this.rom(file);
+    RomImage rom = RomImage.map(file);
+    assertEquals(0x8000, rom.size());
+    PagedMemMapper m = memory(rom);
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals(bytes[i], m.read(0x8000 + i));
+      assertEquals(bytes[i], m.peek(0x8000 + i));
+    }
+    assertEquals(0x8000, m.read16(0xfffc));
+    byte[] block = new byte[0x300];
+    m.readBlock(0x7f80, block, 0, block.length);
+    assertArrayEquals(Arrays.copyOfRange(bytes, 0, 0x280),
+        Arrays.copyOfRange(block, 0x80, 0x300));
+  }
+
+  @Test
+  void writesAreIgnored() throws IOException {
+    Path file = this.dir.resolve("rom.bin");
+    byte[] bytes = this.rom(file);
+    PagedMemMapper m = memory(RomImage.map(file));
+    m.write(0x8000, 0x00);
+    m.writeBlock(0x9000, new byte[0x200], 0, 0x200);
+    m.dma(0x0000, 0xa000, 0x100);
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals(bytes[i], m.read(0x8000 + i));
+    }
+    assertArrayEquals(bytes, Files.readAllBytes(file));
+  }
+
+  @Test
+  void machinesShareAnImage() throws IOException, InterruptedException {
+    Path file = this.dir.resolve("rom.bin");
+    byte[] bytes = this.rom(file);
+    RomImage rom = RomImage.map(file);
+    CPU6502 first = new CPU6502(memory(rom));
+    CPU6502 second = new CPU6502(memory(rom));
+    try (Fleet fleet = new Fleet(2)) {
+      fleet.add(first);
+      fleet.add(second);
+      fleet.run(1_000_000, 1_000);
+    }
+    // both ran the program from the image, which neither could change
+    DispatchTest.assertSame(0, first, second);
+    assertEquals(first.getX(), first.peek(0x10));
+    assertEquals(bytes[0], first.peek(0x8000));
+    assertEquals(bytes[0], second.peek(0x8000));
+  }
+
+  @Test
+  void pagesMustFit() throws IOException {
+    Path file = this.dir.resolve("rom.bin");
+    Files.write(file, new byte[0x1000]);
+    RomImage rom = RomImage.map(file);
+    PagedMemMapper m = new PagedMemMapper();
+    assertThrows(IllegalArgumentException.class,
+        () -> m.mapROM(0xf0, 0x10, rom, 0x100));
+    m.mapROM(0xf0, 0x10, rom, 0);
+  }
+}
@@ -0,0 +1,51 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Checks that restored snapshots and forks continue like the original.
+ */
+class SnapshotTest {
+
+  static CPU6502 create(Dispatch dispatch) {
+    CPU6502 cpu = Machines.timed(dispatch);
+    cpu.schedule(2000, CycleEvent.NMI);
+    return cpu;
+  }
+
+  @Test
+  void restoreBringsBackEvents() {
+    for (Dispatch dispatch : Dispatch.values()) {
+      CPU6502 cpu = create(dispatch);
+      cpu.runCycles(200);
+      CPU6502.Snapshot snapshot = cpu.snapshot();
+      cpu.runCycles(10_000);
+      CPU6502 expected = create(dispatch);
+      expected.restore(cpu.snapshot());
+
+      cpu.restore(snapshot);
+      assertEquals(500, cpu.nextEvent());
+      cpu.runCycles(10_000);
+      DispatchTest.assertSame(0, expected, cpu);
+      assertEquals(expected.nextEvent(), cpu.nextEvent());
+    }
+  }
+
+  @Test
+  void forksGetTheEvents() {
+    for (Dispatch dispatch : Dispatch.values()) {
+      CPU6502 cpu = create(dispatch);
+      cpu.runCycles(200);
+      CPU6502 fork = cpu.fork();
+      cpu.runCycles(10_000);
+      fork.runCycles(10_000);
+      DispatchTest.assertSame(0, cpu, fork);
+      // 10 timer NMIs and one more
+      assertEquals(11, cpu.getY());
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks what the CPU publishes to Telemetry and the events it records.
+ */
+class TelemetryTest {
+
+  // every interrupt waits for the 7 cycles of its entry: raised by an event
+  // or a run call, it is taken before the next instruction
+  static final long       ENTRY   = 7;
+
+  static final String[]   EVENTS  = { "com.emulation.cpu.Throughput",
+      "com.emulation.cpu.Stall", "com.emulation.cpu.InterruptLatency" };
+
+  // counts in X, NMIs in Y and IRQs at $10
+  static final String     PROGRAM = String.join("\n", //
+      "        CLI", //
+      "loop:   INX", //
+      "        JMP loop", //
+      "nmi:    INY", //
+      "        RTI", //
+      "irq:    INC $10", //
+      "        RTI");
+
+  // an IRQ every 700 cycles, dropped when it comes during the NMI handler
+  static final CycleEvent IRQS    = new CycleEvent() {
+    @Override
+    public void fire(CPU6502 cpu, long cycle) {
+      cpu.triggerIRQ();
+      cpu.schedule(cycle + 700, this);
+    }
+  };
+
+  static CPU6502 create() {
+    PagedMemMapper m = Machines.ram();
+    new Assembler(0x8000).source(PROGRAM).org(0xfffa).word("nmi")
+        .word(0x8000).word("irq").load(m);
+    CPU6502 cpu = Machines.create(m, Dispatch.SWITCH, false);
+    cpu.schedule(500, Machines.TIMER);
+    cpu.schedule(300, IRQS);
+    return cpu;
+  }
+
+  @Test
+  void runCallsPublishCounters() {
+    CPU6502 cpu = create();
+    Telemetry.register(cpu, "counters");
+    Telemetry.Counters counters = cpu.telemetry;
+    cpu.runCycles(10_000);
+    assertEquals(cpu.cycles, counters.get(Telemetry.Counters.CYCLES));
+    assertEquals(cpu.instructions,
+        counters.get(Telemetry.Counters.INSTRUCTIONS));
+    long interrupts = counters.get(Telemetry.Counters.INTERRUPTS);
+    assertEquals(cpu.interrupts, interrupts);
+    assertTrue(cpu.nmis >= 9 && interrupts > cpu.nmis, interrupts + "");
+    assertEquals(ENTRY * interrupts,
+        counters.get(Telemetry.Counters.LATENCY));
+
+    // the maximum is per period and kept by Counters, the CPU only keeps
+    // the largest since its last run call
+    assertEquals(0, cpu.maxInterruptLatency);
+    assertEquals(ENTRY, counters.takeMaxLatency());
+    assertEquals(0, counters.takeMaxLatency());
+    cpu.runCycles(100);
+    assertEquals(0, counters.takeMaxLatency());
+    cpu.triggerNMI();
+    cpu.runCycles(100);
+    assertEquals(ENTRY, counters.takeMaxLatency());
+
+    Telemetry.unregister(cpu);
+    assertNull(cpu.telemetry);
+  }
+
+  @Test
+  void recordingsGetEvents(@TempDir Path dir)
+      throws IOException, InterruptedException {
+    CPU6502 cpu = create();
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      for (String name : EVENTS) {
+        recording.enable(name).withPeriod(Duration.ofMillis(20));
+      }
+      recording.start();
+      Telemetry.register(cpu, "recorded");
+      try {
+        for (int i = 0; i < 20; i++) {
+          cpu.runCycles(50_000);
+          cpu.dma(0x0200, 0x0300, 0x100);
+        }
+        // takes the stall of the last DMA
+        cpu.runCycles(1_000);
+        // the periodic events pick up the last counters
+        Thread.sleep(300);
+      } finally {
+        Telemetry.unregister(cpu);
+      }
+      recording.stop();
+      Path file = dir.resolve("telemetry.jfr");
+      recording.dump(file);
+      events = RecordingFile.readAllEvents(file);
+    }
+
+    long instructions = 0;
+    long cycles = 0;
+    double mhz = 0;
+    long stallCycles = 0;
+    long dmaCycles = 0;
+    long interrupts = 0;
+    long maxLatency = 0;
+    for (RecordedEvent event : events) {
+      if (!"recorded".equals(event.getString("machine"))) {
+        continue;
+      }
+      switch (event.getEventType().getName()) {
+        case "com.emulation.cpu.Throughput":
+          instructions += event.getLong("instructions");
+          cycles += event.getLong("cycles");
+          mhz = Math.max(mhz, event.getDouble("mhz"));
+          break;
+        case "com.emulation.cpu.Stall":
+          stallCycles += event.getLong("stallCycles");
+          dmaCycles += event.getLong("dmaCycles");
+          break;
+        default:
+          long n = event.getLong("interrupts");
+          interrupts += n;
+          maxLatency = Math.max(maxLatency, event.getLong("maxLatency"));
+          if (n > 0) {
+            assertEquals(ENTRY, event.getDouble("meanLatency"), 1e-9);
+          }
+          break;
+      }
+    }
+    assertEquals(cpu.instructions, instructions);
+    assertEquals(cpu.cycles, cycles);
+    assertTrue(mhz > 0);
+    // 20 DMAs of 513 or 514 cycles, all taken
+    assertEquals(cpu.dmaCycles, dmaCycles);
+    assertTrue(dmaCycles >= 20 * 513 && dmaCycles <= 20 * 514);
+    assertEquals(cpu.stallCycles, stallCycles);
+    assertEquals(dmaCycles, stallCycles);
+    assertEquals(cpu.interrupts, interrupts);
+    assertTrue(interrupts > 1000);
+    assertEquals(ENTRY, maxLatency);
+  }
+}
@@ -0,0 +1,158 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the lines TextTraceSink writes and when it writes them.
+ */
+class TextTraceSinkTest {
+
+  // the longest line, 63 characters with its newline
+  static final String LONGEST = "PC:FFFF SP:FF A:FF X:FF Y:FF P:FF NONE "
+      + "CYC:9223372036854775807\n";
+
+  // a Writer that keeps every write separately and counts flushes
+  static final class Chunks extends Writer {
+    final List<String> writes = new ArrayList<>();
+    int                flushes;
+    boolean            closed;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      this.writes.add(new String(cbuf, off, len));
+    }
+
+    @Override
+    public void flush() {
+      this.flushes++;
+    }
+
+    @Override
+    public void close() {
+      this.closed = true;
+    }
+
+    String text() {
+      return String.join("", this.writes);
+    }
+  }
+
+  static void longest(TraceSink sink) {
+    sink.trace(0xffff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+        (byte) 0xff, 0, Long.MAX_VALUE);
+  }
+
+  @Test
+  void linesShowTheRegisters() throws IOException {
+    StringWriter out = new StringWriter();
+    try (TextTraceSink sink = new TextTraceSink(out)) {
+      sink.trace(0x3412, (byte) 0xfd, (byte) 0, (byte) 0, (byte) 0,
+          (byte) 0x24, 0, 7);
+      sink.trace(0x00a0, (byte) 0x0f, (byte) 0x9c, (byte) 0x01, (byte) 0xe0,
+          (byte) 0xa5, 1, 0);
+      sink.trace(0xc5f5, (byte) 0x80, (byte) 0x7f, (byte) 0xab, (byte) 0x10,
+          (byte) 0x04, 2, 1234567890);
+      longest(sink);
+    }
+    assertEquals("PC:3412 SP:FD A:00 X:00 Y:00 P:24 NONE CYC:7\n" //
+        + "PC:00A0 SP:0F A:9C X:01 Y:E0 P:A5 NMI CYC:0\n" //
+        + "PC:C5F5 SP:80 A:7F X:AB Y:10 P:04 IRQ CYC:1234567890\n" //
+        + LONGEST, out.toString());
+    assertEquals(63, LONGEST.length());
+  }
+
+  @Test
+  void buffersDrainBeforeALineCouldOverflow() throws IOException {
+    // smaller sizes are raised to one line of 64
+    for (int size : new int[] { 1, 64, 127, 128, 200 }) {
+      Chunks out = new Chunks();
+      TextTraceSink sink = new TextTraceSink(out, size);
+      int lines = 10;
+      for (int i = 0; i < lines; i++) {
+        longest(sink);
+      }
+      // whole lines, as long as 64 more fit after the last one
+      int perWrite = (Math.max(size, 64) - 64) / LONGEST.length() + 1;
+      assertEquals((lines - 1) / perWrite, out.writes.size(), "size " + size);
+      for (String write : out.writes) {
+        assertEquals(perWrite * LONGEST.length(), write.length());
+      }
+      sink.flush();
+      assertEquals(LONGEST.repeat(lines), out.text());
+    }
+  }
+
+  @Test
+  void shortLinesFillTheBuffer() throws IOException {
+    Chunks out = new Chunks();
+    TextTraceSink sink = new TextTraceSink(out, 100);
+    for (int cycles = 0; cycles < 50; cycles++) {
+      sink.trace(0x8000, (byte) 0xfd, (byte) 0, (byte) 0, (byte) 0,
+          (byte) 0x24, 0, cycles);
+    }
+    sink.flush();
+    // lines of 44 or 45 are written once 64 more no longer fit
+    for (String write : out.writes) {
+      assertTrue(write.length() <= 100 && write.endsWith("\n"), write);
+    }
+    StringBuilder expected = new StringBuilder();
+    for (int cycles = 0; cycles < 50; cycles++) {
+      expected.append("PC:8000 SP:FD A:00 X:00 Y:00 P:24 NONE CYC:")
+          .append(cycles).append('\n');
+    }
+    assertEquals(expected.toString(), out.text());
+  }
+
+  @Test
+  void flushAndCloseReachTheWriter() throws IOException {
+    Chunks out = new Chunks();
+    TextTraceSink sink = new TextTraceSink(out);
+    longest(sink);
+    assertEquals(0, out.writes.size());
+
+    sink.flush();
+    assertEquals(LONGEST, out.text());
+    assertEquals(1, out.flushes);
+
+    // a flush with nothing buffered writes nothing more
+    sink.flush();
+    assertEquals(LONGEST, out.text());
+    assertEquals(2, out.flushes);
+
+    longest(sink);
+    sink.close();
+    assertEquals(LONGEST + LONGEST, out.text());
+    assertEquals(3, out.flushes);
+    assertTrue(out.closed);
+  }
+
+  @Test
+  void cpusTraceBeforeInterrupts() throws IOException {
+    PagedMemMapper m = Machines.ram();
+    Machines.load(m, Machines.COUNT, "nmi");
+    CPU6502 cpu = Machines.create(m, CPU6502.Dispatch.SWITCH, false);
+    StringWriter out = new StringWriter();
+    try (TextTraceSink sink = new TextTraceSink(out)) {
+      cpu.setTraceSink(sink);
+      cpu.runInstructions(2);
+      cpu.triggerNMI();
+      cpu.runInstructions(2);
+      cpu.setTraceSink(null);
+    }
+    // the line of the instruction the NMI interrupts names it, and the
+    // entry runs with the first instruction of the handler
+    assertEquals("PC:8000 SP:FD A:00 X:00 Y:00 P:24 NONE CYC:0\n" //
+        + "PC:8001 SP:FD A:00 X:01 Y:00 P:24 NONE CYC:2\n" //
+        + "PC:8000 SP:FD A:00 X:01 Y:00 P:24 NMI CYC:5\n" //
+        + "PC:8005 SP:FA A:00 X:01 Y:01 P:24 NONE CYC:14\n", out.toString());
+  }
+}
@@ -0,0 +1,195 @@
+package com.emulation.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.emulation.cpu.CPU6502.Dispatch;
+
+/**
+ * Compares CPUs against hand written and recorded reference traces.
+ */
+class TraceComparatorTest {
+
+  // INX, JMP at 0x8001, and an RTI handler at 0x8004
+  static final String PROGRAM = String.join("\n", //
+      "loop:   INX", //
+      "        JMP loop", //
+      "nmi:    RTI");
+
+  // the first instructions of PROGRAM as nestest logs them, with an NMI
+  // raised before the fourth, which logs the RTI of the handler instead
+  static final String[] NESTEST = {
+      "8000  E8        INX                             "
+          + "A:00 X:00 Y:00 P:24 SP:FD PPU:  0, 21 CYC:7",
+      "8001  4C 00 80  JMP $8000                       "
+          + "A:00 X:01 Y:00 P:24 SP:FD PPU:  0, 27 CYC:9",
+      "8000  E8        INX                             "
+          + "A:00 X:01 Y:00 P:24 SP:FD PPU:  0, 36 CYC:12",
+      "8004  40        RTI                             "
+          + "A:00 X:02 Y:00 P:24 SP:FA PPU:  0, 63 CYC:21",
+      "8001  4C 00 80  JMP $8000                       "
+          + "A:00 X:02 Y:00 P:24 SP:FD PPU:  0, 81 CYC:27" };
+
+  static TraceComparator comparator(CPU6502 cpu, String reference) {
+    return new TraceComparator(cpu, Channels.newChannel(
+        new ByteArrayInputStream(reference.getBytes(
+            StandardCharsets.ISO_8859_1))), TraceComparator.MAX_LINE);
+  }
+
+  static CPU6502 create() {
+    return Machines.create(
+        Machines.load(new SimpleMemMapper(), PROGRAM, "nmi"),
+        Dispatch.SWITCH, false);
+  }
+
+  // compare steps a CPU running PROGRAM against reference, with an NMI
+  // before the instruction at nmi, and returns the comparator
+  static TraceComparator compare(String reference, int steps, int nmi) {
+    CPU6502 cpu = create();
+    TraceComparator comparator = comparator(cpu, reference);
+    cpu.setTraceSink(comparator);
+    for (int i = 0; i < steps; i++) {
+      if (i == nmi) {
+        cpu.triggerNMI();
+      }
+      cpu.step();
+    }
+    return comparator;
+  }
+
+  @Test
+  void nestestLinesMatch() {
+    TraceComparator comparator = compare(
+        String.join("\n", NESTEST) + "\n", 5, 3);
+    assertEquals(5, comparator.getLine());
+    assertFalse(comparator.isDone());
+    assertNull(comparator.getMismatch());
+  }
+
+  @Test
+  void carriageReturnsAndEmptyLinesAreSkipped() {
+    TraceComparator comparator = compare(
+        "\r\n" + String.join("\r\n\r\n", NESTEST), 5, 3);
+    assertEquals(5, comparator.getLine());
+    assertNull(comparator.getMismatch());
+  }
+
+  @Test
+  void missingFieldsAreNotCompared() {
+    String reference = String.join("\n", //
+        "PC:8000", //
+        "8001", //
+        "8000  E8", //
+        "PC:8004 SP:FA", //
+        "PC:8001 X:02 CYC:100");
+    TraceComparator comparator = compare(reference, 5, 3);
+    assertEquals(5, comparator.getLine());
+    assertNull(comparator.getMismatch());
+  }
+
+  @Test
+  void cyclesAreRelativeToTheFirstLine() {
+    String reference = String.join("\n", //
+        "PC:8000 CYC:1000", //
+        "PC:8001 CYC:1002", //
+        "PC:8000 CYC:1006");
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> compare(reference, 3, -1));
+    assertTrue(e.getMessage().startsWith("trace diverges in CYC at line 3"),
+        e.getMessage());
+    assertTrue(e.getMessage().endsWith("CYC:1005"), e.getMessage());
+  }
+
+  @Test
+  void breakAndUnusedBitsAreIgnored() {
+    compare("PC:8000 P:34\nPC:8001 P:04", 2, -1);
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> compare("PC:8000 P:25", 1, -1));
+    assertTrue(e.getMessage().startsWith("trace diverges in P at line 1"));
+  }
+
+  @Test
+  void overlongLinesAreRejected() {
+    String line = "PC:8000" + " ".repeat(TraceComparator.MAX_LINE);
+    IllegalArgumentException e = assertThrows(
+        IllegalArgumentException.class, () -> compare(line, 1, -1));
+    assertEquals("line 1 is longer than 256 bytes", e.getMessage());
+    assertThrows(IllegalArgumentException.class,
+        () -> compare("PC:8000\n" + line + "\n", 2, -1));
+  }
+
+  @Test
+  void divergencesShowTheContext() {
+    StringBuilder reference = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      // the tenth line expects X:04, the CPU has X:05
+      int x = (i + 1) / 2 - (i == 9 ? 1 : 0);
+      reference.append(String.format("PC:%04X X:%02X CYC:%d\n",
+          i % 2 == 0 ? 0x8000 : 0x8001, x, 100 + i / 2 * 5 + i % 2 * 2));
+    }
+    CPU6502 cpu = create();
+    TraceComparator comparator = comparator(cpu, reference.toString());
+    cpu.setTraceSink(comparator);
+    cpu.runInstructions(9);
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        cpu::step);
+    String[] lines = e.getMessage().split("\n");
+    assertEquals(2 + TraceComparator.CONTEXT, lines.length);
+    assertEquals("trace diverges in X at line 10", lines[0]);
+    assertEquals("         PC:8000 X:01 CYC:105", lines[1]);
+    assertEquals("expected PC:8001 X:04 CYC:122", lines[8]);
+    assertEquals("actual   PC:8001 4C A:00 X:05 Y:00 P:24 SP:FD CYC:122",
+        lines[9]);
+    assertTrue(comparator.isDone());
+    assertEquals(e.getMessage(), comparator.getMismatch());
+    // nothing is compared after a divergence
+    cpu.step();
+  }
+
+  @Test
+  void comparisonsEndWithTheReference() {
+    TraceComparator comparator = compare(NESTEST[0] + "\n" + NESTEST[1], 10,
+        -1);
+    assertTrue(comparator.isDone());
+    assertEquals(2, comparator.getLine());
+    assertNull(comparator.getMismatch());
+  }
+
+  @Test
+  void textTracesMatchWithInterrupts() throws IOException {
+    StringWriter out = new StringWriter();
+    CPU6502 cpu = Machines.timed(Dispatch.SWITCH);
+    try (TextTraceSink sink = new TextTraceSink(out)) {
+      cpu.setTraceSink(sink);
+      cpu.runCycles(20_000);
+    }
+    assertTrue(out.toString().contains(" NMI "));
+    long instructions = cpu.getInstructions();
+
+    cpu = Machines.timed(Dispatch.SWITCH);
+    TraceComparator comparator = comparator(cpu, out.toString());
+    cpu.setTraceSink(comparator);
+    cpu.runCycles(20_000);
+    assertEquals(instructions, comparator.getLine());
+    assertNull(comparator.getMismatch());
+
+    // the same trace without the names is taken as a log after the entry
+    CPU6502 unnamed = Machines.timed(Dispatch.SWITCH);
+    unnamed.setTraceSink(comparator(unnamed,
+        out.toString().replace(" NMI ", " ")));
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> unnamed.runCycles(20_000));
+    assertTrue(e.getMessage().startsWith("trace diverges in PC"));
+  }
+}